@@ -105,6 +105,11 @@ public class ColorPalette {
     static private final Color[] COLORS_1BIT = new Color[VALUES_8BIT.length];
     static private final String[] ALL_NAMES = new String[VALUES_8BIT.length];
     
+    /** channel value -> coordinate in the 6x6x6 color cube */
+    static private final byte[] CUBE_COORDINATES = new byte[256];
+    /** 36 * r + 6 * g + b -> palette index (see getPaletteIndex) */
+    static private final byte[] CUBE_INDICES = new byte[216];
+    
     static public final int COLOR_8BIT = 8;
     static public final int COLOR_4BIT = 4;
     static public final int COLOR_1BIT = 1;
@@ -132,6 +137,21 @@ public class ColorPalette {
             VALUES_1BIT[i] = c.getRGB();
             COLORS_1BIT[i] = c;
         }
+        // init the color cube, the first palette entry of each color wins
+        for (int i = 0; i < 256; i++) {
+            CUBE_COORDINATES[i] = (byte) ((i + 26) / 51);
+        }
+        for (int i = 0; i < 216; i++) {
+            int color = (0xFF << 24) + (i / 36 * 51 << 16) + (i / 6 % 6 * 51 << 8) + i % 6 * 51;
+            int index = 0;
+            for (int j = 0; j < VALUES_8BIT.length; j++) {
+                if (color == VALUES_8BIT[j]) {
+                    index = j;
+                    break;
+                }
+            }
+            CUBE_INDICES[i] = (byte) index;
+        }
         
         /*
         // some quick tests
@@ -360,20 +380,17 @@ public class ColorPalette {
     }
     
     /**
-     * Returns the index of the nearest color in the palette.
+     * Returns the index of the nearest color in the palette. This is the
+     * first palette entry that has the color returned by getNearestColor,
+     * it is looked up from a table.
      * @param r
      * @param g
      * @param b
      * @return
      */
     static public int getPaletteIndex(int r, int g, int b){
-        int color = getNearestColor(r, g, b);
-        for (int i = 0; i < VALUES_8BIT.length; i++) {
-            if (color == VALUES_8BIT[i]) {
-                return i;
-            }
-        }
-        return 0;
+        return CUBE_INDICES[36 * CUBE_COORDINATES[r & 0xFF] +
+                6 * CUBE_COORDINATES[g & 0xFF] + CUBE_COORDINATES[b & 0xFF]] & 0xFF;
     }
     
     /**
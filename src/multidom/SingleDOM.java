@@ -157,13 +157,10 @@ public class SingleDOM {
      * @throws java.lang.Exception
      */
     public void loadDocument() throws Exception {
-        doc = Tools.loadDocument(getName(), SCHEMA);
-        
         // Map<String,Element> map = Tools.createNameMap(doc);
 	// Tools.createMissingNames(doc, map);
 	// Tools.removeNesting(doc);
-        Tools.createRoles(doc.getDocumentElement());
-        Tools.checkNaming(doc);
+        doc = Tools.loadPool(getName(), SCHEMA); // roles and naming too
         treeModel.setDocument(doc);       
     }
     
@@ -40,6 +40,10 @@ import java.awt.dnd.DropTarget;
 import java.awt.dnd.DropTargetListener;
 import java.awt.dnd.InvalidDnDOperationException;
 import javax.swing.JTree;
+import java.util.Enumeration;
+import javax.swing.event.TreeExpansionEvent;
+import javax.swing.event.TreeExpansionListener;
+import javax.swing.event.TreeWillExpandListener;
 import javax.swing.tree.DefaultTreeCellEditor;
 import javax.swing.tree.DefaultTreeCellRenderer;
 import javax.swing.tree.TreePath;
@@ -155,6 +159,41 @@ public class ObjectTree extends JTree implements KeyListener {
         // set up keylistener
         ot.addKeyListener(ot);
         
+        // expanded nodes must stay in the model's cache, the node is pinned
+        // before the tree loads its children and unpinned when it is
+        // collapsed, together with the expanded nodes under it
+        ot.addTreeWillExpandListener(new TreeWillExpandListener() {
+            @Override
+            public void treeWillExpand(TreeExpansionEvent event) {
+                XMLTreeModel model = (XMLTreeModel) ot.getModel();
+                model.pin(event.getPath().getLastPathComponent());
+            }
+
+            @Override
+            public void treeWillCollapse(TreeExpansionEvent event) {
+                XMLTreeModel model = (XMLTreeModel) ot.getModel();
+                Enumeration<TreePath> expanded = ot.getExpandedDescendants(event.getPath());
+                while (expanded != null && expanded.hasMoreElements()) {
+                    model.unpin(expanded.nextElement().getLastPathComponent());
+                }
+                model.unpin(event.getPath().getLastPathComponent());
+            }
+        });
+        
+        // the tree drops the nodes it has loaded under a collapsed node, so
+        // it does not keep the child lists that the model may evict
+        ot.addTreeExpansionListener(new TreeExpansionListener() {
+            @Override
+            public void treeExpanded(TreeExpansionEvent event) {
+            }
+
+            @Override
+            public void treeCollapsed(TreeExpansionEvent event) {
+                XMLTreeModel model = (XMLTreeModel) ot.getModel();
+                model.reload(event.getPath());
+            }
+        });
+        
         return ot;
     }
     
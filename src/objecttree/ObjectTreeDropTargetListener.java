@@ -43,6 +43,7 @@ import javax.swing.tree.TreePath;
 import org.w3c.dom.Element;
 import pooledit.PoolException;
 import pooledit.Tools;
+import treemodel.NameAllocator;
 import treemodel.XMLTreeNode;
 
 /**
@@ -452,7 +453,7 @@ public class ObjectTreeDropTargetListener implements DropTargetListener {
             // if copy has a name, it needs to be unique
             String name = fragment.getAttribute(NAME);
             if (!name.isEmpty()) {
-                String newname = Tools.findFreeName(name, Tools.createNameMap(doc, true));
+                String newname = NameAllocator.getInstance(doc).allocate(name);
                 fragment.setAttribute(NAME, newname);  
             }
             
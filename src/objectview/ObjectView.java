@@ -99,6 +99,9 @@ public class ObjectView extends JComponent implements TreeModelListener,
     private XMLTreeModel model;
     private TreePath path;
     private boolean newModel = true;
+    private boolean updateScheduled = false;
+    /** depth of the root level objects (root, category, subcategory, object) */
+    private static final int RENDER_ROOT_DEPTH = 3;
     
     private double zoom = 1.0;
     
@@ -222,6 +225,7 @@ public class ObjectView extends JComponent implements TreeModelListener,
         // set model
 	if (this.model != null) {
 	    this.model.removeTreeModelListener(this);            
+            unpinPath();
 	}
 	this.model = model;
         this.newModel = true;
@@ -254,13 +258,35 @@ public class ObjectView extends JComponent implements TreeModelListener,
         if (Utils.equalObjects(this.path, path) && !newModel) {
             return;
         }
+        unpinPath();
         this.path = path;
         this.newModel = false;
+        pinPath();
         // System.out.println(getClass().getName() + ": setActivePath(): " + path);
         // try { throw new Exception(); } catch (Exception e) { e.printStackTrace(); }
         repaint();
     }
     
+    /**
+     * Pins the rendered part of the tree (the object at the root level of
+     * the active path and everything under it) so that the model does not
+     * evict it from its cache.
+     */
+    private void pinPath() {
+        if (model != null && path != null && path.getPathCount() > RENDER_ROOT_DEPTH) {
+            model.pinSubtree(path.getPathComponent(RENDER_ROOT_DEPTH));
+        }
+    }
+    
+    /**
+     * Removes the pin set by pinPath().
+     */
+    private void unpinPath() {
+        if (model != null && path != null && path.getPathCount() > RENDER_ROOT_DEPTH) {
+            model.unpinSubtree(path.getPathComponent(RENDER_ROOT_DEPTH));
+        }
+    }
+    
     /**
      * Gets the active path.
      * @return
@@ -1397,31 +1423,38 @@ public class ObjectView extends JComponent implements TreeModelListener,
     //------------------------------------------------------------//
 
     /**
-     * Invoked after a node (or a set of siblings) has changed in some way.
+     * Schedules one path regeneration and repaint for all tree model
+     * events received during this EDT turn.
      */
-    @Override
-    public void treeNodesChanged(TreeModelEvent e) {
+    private void scheduleUpdate() {
+        if (updateScheduled) {
+            return;
+        }
+        updateScheduled = true;
         SwingUtilities.invokeLater(new Runnable() {
             @Override
             public void run() {
+                updateScheduled = false;
                 regeneratePath();
                 repaint();
             }
         });
     }
+
+    /**
+     * Invoked after a node (or a set of siblings) has changed in some way.
+     */
+    @Override
+    public void treeNodesChanged(TreeModelEvent e) {
+        scheduleUpdate();
+    }
           
     /**
      * Invoked after nodes have been inserted into the tree.
      */
     @Override
     public void treeNodesInserted(TreeModelEvent e) {
-        SwingUtilities.invokeLater(new Runnable() {
-            @Override
-            public void run() {
-                regeneratePath();
-                repaint();
-            }
-        });
+        scheduleUpdate();
     }
           
     /**
@@ -1430,13 +1463,7 @@ public class ObjectView extends JComponent implements TreeModelListener,
     @Override
     public void treeNodesRemoved(TreeModelEvent e) {
         selrect.unSet();
-        SwingUtilities.invokeLater(new Runnable() {
-            @Override
-            public void run() {
-                regeneratePath();
-                repaint();
-            }
-        });
+        scheduleUpdate();
     }
           
     /**
@@ -1446,13 +1473,7 @@ public class ObjectView extends JComponent implements TreeModelListener,
     @Override
     public void treeStructureChanged(TreeModelEvent e) {
         selrect.unSet();
-        SwingUtilities.invokeLater(new Runnable() {
-            @Override
-            public void run() {
-                regeneratePath();
-                repaint();
-            }
-        });
+        scheduleUpdate();
     }
 
     //------------------------------------------------------------//
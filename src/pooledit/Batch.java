@@ -0,0 +1,502 @@
+/*
+ * Copyright (C) 2019 Automation technology laboratory,
+ * Helsinki University of Technology
+ *
+ * Visit automation.tkk.fi for information about the automation
+ * technology laboratory.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 3
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston,
+ * MA 02111-1307, USA.
+ */
+package pooledit;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import multidom.SingleDOM;
+import org.w3c.dom.Document;
+
+/**
+ * Validates and exports pools without the editor:
+ * <pre>
+ * java -cp PoolEdit.jar:lib/* pooledit.Batch [options] pool.xml dir 'glob/*.xml' ...
+ *
+ *   -o dir     write the exports to dir (default: next to each pool)
+ *   -j n       number of pools processed at the same time
+ *              (default: number of processors)
+ *   -s file    write the summary to file (default: standard output)
+ *   -n         only load and validate, do not export
+ * </pre>
+ * A directory stands for the .xml files in it, a glob (with *, ?, [ or
+ * {) is matched against the files under the directory before the first
+ * wildcard, "**" matches across directories. Earlier exports (*_export.xml
+ * and *_embedded.xml) are skipped.
+ * <p>
+ * Each pool is loaded like in the editor, validated (see
+ * Tools.validateDocument) and exported to pool_export.xml (see
+ * Tools.exportToISOAgLibXML) and pool_embedded.xml (see
+ * Tools.exportToEmbeddedXML). The messages go to pool.log next to the
+ * exports. Relative picture paths are resolved against the working
+ * directory, as in the editor.
+ * <p>
+ * The summary is a JSON object with the result and the step timings of
+ * each pool. The exit code is 0 if all pools are valid and exported, 1 if
+ * some pool is invalid, 2 if some pool could not be loaded or exported
+ * and 64 if the arguments are wrong.
+ *
+ * @author mohman
+ */
+public class Batch {
+
+    static final int EXIT_OK = 0;
+    static final int EXIT_INVALID = 1;
+    static final int EXIT_FAILED = 2;
+    static final int EXIT_USAGE = 64;
+
+    static final String ISO_SUFFIX = "_export.xml";
+    static final String EMBEDDED_SUFFIX = "_embedded.xml";
+
+    /**
+     * Result of one pool.
+     */
+    private static class Result {
+        final File pool;
+        String status = "ok";
+        String error;
+        /** step -> milliseconds, in the order of the steps */
+        final Map<String, Double> timings = new LinkedHashMap<>();
+        final List<File> outputs = new ArrayList<>();
+
+        Result(File pool) {
+            this.pool = pool;
+        }
+    }
+
+    /**
+     * System.out and System.err of the batch. The messages that the load
+     * and the exports print there go to the log of the pool that the
+     * thread is working on.
+     */
+    private static final ThreadLocal<PrintStream> LOG = new ThreadLocal<>();
+
+    private static class ThreadOutput extends OutputStream {
+        private final PrintStream console;
+
+        ThreadOutput(PrintStream console) {
+            this.console = console;
+        }
+
+        private PrintStream target() {
+            PrintStream log = LOG.get();
+            return log != null ? log : console;
+        }
+
+        @Override
+        public void write(int b) {
+            target().write(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            target().write(b, off, len);
+        }
+
+        @Override
+        public void flush() {
+            target().flush();
+        }
+    }
+
+    private File outputDir;
+    private int threads = Runtime.getRuntime().availableProcessors();
+    private File summaryFile;
+    private boolean export = true;
+    private final Set<File> pools = new LinkedHashSet<>();
+
+    /**
+     * Runs the batch.
+     * @param args
+     */
+    public static void main(String[] args) {
+        Locale.setDefault(Locale.ROOT);
+        System.setProperty("java.awt.headless", "true");
+        Batch batch = new Batch();
+        int status;
+        try {
+            batch.parseArguments(args);
+            status = batch.run();
+        }
+        catch (IllegalArgumentException ex) {
+            System.err.println(ex.getMessage());
+            System.err.println("usage: pooledit.Batch [-o dir] [-j threads] [-s summary.json] [-n] pool.xml|dir|glob ...");
+            status = EXIT_USAGE;
+        }
+        catch (IOException ex) {
+            ex.printStackTrace();
+            status = EXIT_FAILED;
+        }
+        System.exit(status);
+    }
+
+    private void parseArguments(String[] args) throws IOException {
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            if (arg.equals("-n")) {
+                export = false;
+            }
+            else if (arg.equals("-o") || arg.equals("-j") || arg.equals("-s")) {
+                if (++i == args.length) {
+                    throw new IllegalArgumentException("missing value of " + arg);
+                }
+                String value = args[i];
+                if (arg.equals("-o")) {
+                    outputDir = new File(value);
+                }
+                else if (arg.equals("-s")) {
+                    summaryFile = new File(value);
+                }
+                else {
+                    try {
+                        threads = Integer.parseInt(value);
+                    }
+                    catch (NumberFormatException ex) {
+                        threads = 0;
+                    }
+                    if (threads < 1) {
+                        throw new IllegalArgumentException("invalid number of threads: " + value);
+                    }
+                }
+            }
+            else if (arg.startsWith("-")) {
+                throw new IllegalArgumentException("unknown option " + arg);
+            }
+            else {
+                addPools(arg);
+            }
+        }
+        if (pools.isEmpty()) {
+            throw new IllegalArgumentException("no pools");
+        }
+    }
+
+    /**
+     * Adds the pools of a file, directory or glob argument.
+     */
+    private void addPools(String arg) throws IOException {
+        int wildcard = -1;
+        for (int i = 0; i < arg.length() && wildcard < 0; i++) {
+            if ("*?[{".indexOf(arg.charAt(i)) >= 0) {
+                wildcard = i;
+            }
+        }
+        File file = new File(arg);
+        if (wildcard < 0) {
+            if (file.isDirectory()) {
+                File[] files = file.listFiles();
+                if (files != null) {
+                    Arrays.sort(files);
+                    for (File f : files) {
+                        if (f.isFile() && isPool(f)) {
+                            pools.add(f.getCanonicalFile());
+                        }
+                    }
+                }
+            }
+            else if (file.isFile()) {
+                pools.add(file.getCanonicalFile());
+            }
+            else {
+                throw new IllegalArgumentException("no such file or directory: " + arg);
+            }
+            return;
+        }
+
+        // walk the directory before the first wildcard
+        int slash = Math.max(arg.lastIndexOf('/', wildcard), arg.lastIndexOf(File.separatorChar, wildcard));
+        Path base = Paths.get(slash < 0 ? "." : arg.substring(0, slash + 1));
+        final PathMatcher matcher = FileSystems.getDefault().getPathMatcher("glob:" +
+                arg.substring(slash + 1));
+        final Path root = base;
+        final List<File> found = new ArrayList<>();
+        if (Files.isDirectory(root)) {
+            Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult visitFile(Path path, BasicFileAttributes attrs) {
+                    if (attrs.isRegularFile() && matcher.matches(root.relativize(path)) &&
+                            isPool(path.toFile())) {
+                        found.add(path.toFile());
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        }
+        if (found.isEmpty()) {
+            throw new IllegalArgumentException("no pools match " + arg);
+        }
+        Collections.sort(found);
+        for (File f : found) {
+            pools.add(f.getCanonicalFile());
+        }
+    }
+
+    private static boolean isPool(File file) {
+        String name = file.getName();
+        return name.endsWith(".xml") && !name.endsWith(ISO_SUFFIX) &&
+                !name.endsWith(EMBEDDED_SUFFIX);
+    }
+
+    /**
+     * Gets the output file of the pool.
+     */
+    private File getOutput(File pool, String suffix) {
+        String name = pool.getName();
+        name = name.substring(0, name.length() - 4) + suffix; // .xml
+        return new File(outputDir != null ? outputDir : pool.getParentFile(), name);
+    }
+
+    private int run() throws IOException {
+        if (outputDir != null && !outputDir.isDirectory() && !outputDir.mkdirs()) {
+            throw new IOException("Can't create directory " + outputDir);
+        }
+        PrintStream console = System.out;
+        PrintStream errors = System.err;
+        PrintStream output = new PrintStream(new ThreadOutput(console), true);
+        System.setOut(output);
+        System.setErr(output);
+
+        long start = System.nanoTime();
+        List<Result> results = new ArrayList<>();
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            // pools with the same name would write the same outputs
+            Map<String, File> names = new HashMap<>();
+            Map<Future<?>, Result> tasks = new LinkedHashMap<>();
+            for (final File pool : pools) {
+                final Result result = new Result(pool);
+                results.add(result);
+                File other = names.put(getOutput(pool, ".log").getPath(), pool);
+                if (other != null) {
+                    result.status = "failed";
+                    result.error = "same output files as " + other;
+                    continue;
+                }
+                tasks.put(executor.submit(new Runnable() {
+                    @Override
+                    public void run() {
+                        process(result);
+                    }
+                }), result);
+            }
+            for (Map.Entry<Future<?>, Result> task : tasks.entrySet()) {
+                try {
+                    task.getKey().get();
+                }
+                catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("interrupted");
+                }
+                catch (ExecutionException ex) {
+                    ex.getCause().printStackTrace();
+                    task.getValue().status = "failed";
+                    task.getValue().error = ex.getCause().toString();
+                }
+            }
+        }
+        finally {
+            executor.shutdownNow();
+            System.setOut(console);
+            System.setErr(errors);
+        }
+        double total = (System.nanoTime() - start) / 1e6;
+
+        int status = EXIT_OK;
+        for (Result result : results) {
+            if (result.status.equals("failed")) {
+                status = EXIT_FAILED;
+            }
+            else if (result.status.equals("invalid") && status == EXIT_OK) {
+                status = EXIT_INVALID;
+            }
+        }
+        writeSummary(results, total, status);
+        return status;
+    }
+
+    /**
+     * Loads, validates and exports one pool.
+     */
+    private void process(Result result) {
+        File pool = result.pool;
+        File logFile = getOutput(pool, ".log");
+        result.outputs.add(logFile);
+        try (PrintStream log = new PrintStream(new FileOutputStream(logFile), true)) {
+            LOG.set(log);
+            try {
+                long t = System.nanoTime();
+                // the same as SingleDOM.loadDocument
+                Document doc = Tools.loadPool(pool.toURI().getPath(), SingleDOM.SCHEMA);
+                t = time(result, "load", t);
+
+                if (!Tools.validateDocument(log, doc)) {
+                    result.status = "invalid";
+                }
+                t = time(result, "validate", t);
+
+                if (export) {
+                    File iso = getOutput(pool, ISO_SUFFIX);
+                    Tools.exportToISOAgLibXML(log, iso.getPath(), doc);
+                    result.outputs.add(iso);
+                    t = time(result, "iso", t);
+
+                    File embedded = getOutput(pool, EMBEDDED_SUFFIX);
+                    Tools.exportToEmbeddedXML(log, embedded.getPath(), doc);
+                    result.outputs.add(embedded);
+                    time(result, "embedded", t);
+                }
+            }
+            catch (Throwable ex) {
+                // errors too, e.g. a class that fails to initialize
+                ex.printStackTrace(log);
+                result.status = "failed";
+                result.error = ex.toString();
+            }
+            finally {
+                LOG.remove();
+            }
+        }
+        catch (IOException ex) {
+            result.status = "failed";
+            result.error = ex.toString();
+        }
+    }
+
+    private static long time(Result result, String step, long start) {
+        long now = System.nanoTime();
+        result.timings.put(step, (now - start) / 1e6);
+        return now;
+    }
+
+    //------------------------------------------------------------//
+
+    private void writeSummary(List<Result> results, double total, int status)
+            throws IOException {
+        int ok = 0, invalid = 0, failed = 0;
+        for (Result result : results) {
+            switch (result.status) {
+                case "ok": ok++; break;
+                case "invalid": invalid++; break;
+                default: failed++; break;
+            }
+        }
+        StringBuilder sb = new StringBuilder();
+        sb.append("{\n");
+        sb.append("  \"threads\": ").append(threads).append(",\n");
+        sb.append("  \"total_ms\": ").append(format(total)).append(",\n");
+        sb.append("  \"ok\": ").append(ok).append(",\n");
+        sb.append("  \"invalid\": ").append(invalid).append(",\n");
+        sb.append("  \"failed\": ").append(failed).append(",\n");
+        sb.append("  \"exit_code\": ").append(status).append(",\n");
+        sb.append("  \"pools\": [");
+        for (int i = 0; i < results.size(); i++) {
+            Result result = results.get(i);
+            sb.append(i == 0 ? "\n" : ",\n");
+            sb.append("    {\"file\": ").append(quote(result.pool.getPath()));
+            sb.append(", \"status\": ").append(quote(result.status));
+            if (result.error != null) {
+                sb.append(", \"error\": ").append(quote(result.error));
+            }
+            sb.append(", \"timings_ms\": {");
+            String separator = "";
+            for (Map.Entry<String, Double> e : result.timings.entrySet()) {
+                sb.append(separator).append(quote(e.getKey())).append(": ")
+                        .append(format(e.getValue()));
+                separator = ", ";
+            }
+            sb.append("}, \"outputs\": [");
+            separator = "";
+            for (File f : result.outputs) {
+                sb.append(separator).append(quote(f.getPath()));
+                separator = ", ";
+            }
+            sb.append("]}");
+        }
+        sb.append(results.isEmpty() ? "]\n" : "\n  ]\n");
+        sb.append("}\n");
+
+        if (summaryFile == null) {
+            System.out.print(sb);
+            System.out.flush();
+        }
+        else {
+            final String summary = sb.toString();
+            Tools.writeAtomically(summaryFile, "UTF-8", new Tools.FileContent() {
+                @Override
+                public void write(Writer out) throws IOException {
+                    out.write(summary);
+                }
+            });
+        }
+    }
+
+    private static String format(double ms) {
+        return String.format(Locale.ROOT, "%.1f", ms);
+    }
+
+    /**
+     * Quotes a JSON string.
+     */
+    private static String quote(String s) {
+        StringBuilder sb = new StringBuilder(s.length() + 2);
+        sb.append('"');
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == '"' || c == '\\') {
+                sb.append('\\').append(c);
+            }
+            else if (c < 0x20) {
+                sb.append(String.format("\\u%04x", (int) c));
+            }
+            else {
+                sb.append(c);
+            }
+        }
+        return sb.append('"').toString();
+    }
+}
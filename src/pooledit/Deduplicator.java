@@ -0,0 +1,464 @@
+/*
+ * Copyright (C) 2019 Automation technology laboratory,
+ * Helsinki University of Technology
+ *
+ * Visit automation.tkk.fi for information about the automation
+ * technology laboratory.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 3
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston,
+ * MA 02111-1307, USA.
+ */
+package pooledit;
+
+import static pooledit.Definitions.*;
+import java.awt.Dimension;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+import treemodel.NameRegistry;
+import treemodel.ReferenceIndex;
+
+/**
+ * Replaces structurally identical objects with links to one of them.
+ * Every subtree gets a class bottom-up: the class of an object is given
+ * by its type, its attributes and the classes of its children (links are
+ * followed), so identical subtrees get the same class in one pass over
+ * the document. The name and the attributes that place the object in
+ * its parent are not part of the class (see Tools.equalAttributes), the
+ * placement of the children is.
+ * <p>
+ * Only presentation objects (attribute objects, pictures, shapes and
+ * static strings) are merged. The other objects hold the state of the
+ * application, and so do the objects that macro commands change.
+ * <p>
+ * The first root level object of a class is kept, if there is none, the
+ * first object is moved to the root level. The other objects are
+ * replaced with include_objects, or removed and their links (and the
+ * block_font attributes naming them) renamed if they are on the root
+ * level. Callers should make this one edit of the
+ * tree model (see XMLTreeModel.beginUpdate).
+ *
+ * @author mohman
+ */
+class Deduplicator {
+
+    /** attributes that place an object in its parent, links keep them */
+    private static final String[] PLACEMENT =
+            {NAME, POS_X, POS_Y, BLOCK_COL, BLOCK_ROW, BLOCK_FONT, ROLE};
+
+    /**
+     * Objects that can be merged, the others hold a value or other state
+     * of the application and are never the same object, even if their
+     * initial values are.
+     */
+    private static final String[] PRESENTATION = {
+        FONTATTRIBUTES, LINEATTRIBUTES, FILLATTRIBUTES, INPUTATTRIBUTES,
+        PICTUREGRAPHIC, LINE, RECTANGLE, ELLIPSE, POLYGON, OUTPUTSTRING};
+
+    private final Document doc;
+    private final Map<String, Element> nameMap;
+    private final String bitmapPath;
+
+    /** canonical form -> class */
+    private final Map<String, Integer> classes = new HashMap<>();
+    /** element -> class of its subtree */
+    private final Map<Element, Integer> classOf = new HashMap<>();
+    /** elements whose class is being built, links can form cycles */
+    private final Set<Element> visiting = new HashSet<>();
+    /** objects that macro commands refer to */
+    private final Set<Element> addressed = new HashSet<>();
+    /** font name -> elements whose block_font it is, created when needed */
+    private Map<String, List<Element>> blockFonts;
+    private int nextClass;
+
+    private int groupCount;
+    private int objectCount;
+    private long byteCount;
+
+    /**
+     * @param doc
+     */
+    Deduplicator(Document doc) {
+        this.doc = doc;
+        this.nameMap = NameRegistry.getInstance(doc).getRootMap();
+        this.bitmapPath = doc.getDocumentElement().getAttribute(STD_BITMAP_PATH);
+    }
+
+    /**
+     * Replaces the duplicates.
+     */
+    void run() {
+        List<Element> objects = new ArrayList<>();
+        collectObjects(doc.getDocumentElement(), objects);
+        collectAddressed(doc.getDocumentElement());
+        Map<Integer, Integer> counts = new HashMap<>();
+        for (Element e : objects) {
+            Integer c = getClass(e);
+            Integer n = counts.get(c);
+            counts.put(c, n == null ? 1 : n + 1);
+        }
+
+        // the objects on the root level are kept, they are already linkable
+        Map<Integer, Element> kept = new HashMap<>();
+        for (Element e : objects) {
+            Integer c = classOf.get(e);
+            if (counts.get(c) > 1 && isRootObject(e) && !kept.containsKey(c)) {
+                kept.put(c, e);
+            }
+        }
+
+        // document order, objects are replaced before the objects in them
+        IOPWriter writer = new IOPWriter(new ExportOverlay(doc), nameMap);
+        Set<Integer> groups = new HashSet<>();
+        for (Element e : objects) {
+            Integer c = classOf.get(e);
+            if (counts.get(c) < 2 || !isAttached(e)) {
+                continue;
+            }
+            Element original = kept.get(c);
+            if (original == null) {
+                kept.put(c, e);
+                continue;
+            }
+            if (original == e) {
+                continue;
+            }
+            if (!isRootObject(original)) {
+                moveToRoot(original);
+            }
+            groups.add(c);
+            countSavings(writer, e);
+            replace(e, original.getAttribute(NAME));
+        }
+        groupCount = groups.size();
+    }
+
+    /**
+     * Gets the number of classes that had duplicates.
+     * @return
+     */
+    int getGroupCount() {
+        return groupCount;
+    }
+
+    /**
+     * Gets the number of removed objects, the objects in them included.
+     * @return
+     */
+    int getObjectCount() {
+        return objectCount;
+    }
+
+    /**
+     * Gets the number of bytes that the removed objects took in a binary
+     * object pool (see IOPWriter).
+     * @return
+     */
+    long getByteCount() {
+        return byteCount;
+    }
+
+    //------------------------------------------------------------//
+
+    private static void collectObjects(Element element, List<Element> objects) {
+        for (Element child : Tools.getChildElementList(element)) {
+            if (Utils.equals(child.getNodeName(), OBJECTS)) {
+                objects.add(child);
+            }
+            collectObjects(child, objects);
+        }
+    }
+
+    /**
+     * Collects the objects that the commands refer to, by name or as
+     * their children (see IOPWriter.getCommandRef).
+     */
+    private void collectAddressed(Element element) {
+        for (Element child : Tools.getChildElementList(element)) {
+            if (child.getNodeName().startsWith(COMMAND)) {
+                NamedNodeMap attributes = child.getAttributes();
+                for (int i = 0, n = attributes.getLength(); i < n; i++) {
+                    Element object = nameMap.get(attributes.item(i).getNodeValue());
+                    if (object != null) {
+                        addressed.add(object);
+                    }
+                }
+                for (Element ref : Tools.getChildElementList(child)) {
+                    Element object = ref.getNodeName().equals(INCLUDE_OBJECT) ?
+                            nameMap.get(ref.getAttribute(NAME)) : ref;
+                    if (object != null) {
+                        addressed.add(object);
+                    }
+                }
+            }
+            collectAddressed(child);
+        }
+    }
+
+    /**
+     * Checks whether the object can be merged with the same objects.
+     * Objects with a language are chosen by the language, not linked.
+     */
+    private boolean isMergeable(Element e) {
+        String type = e.getNodeName();
+        if (!Utils.equals(type, PRESENTATION) || !e.getAttribute(LANGUAGE).isEmpty() ||
+                addressed.contains(e)) {
+            return false;
+        }
+        if (type.equals(OUTPUTSTRING)) {
+            // only the strings whose text is fixed in the pool
+            if (e.hasAttribute(VARIABLE_REFERENCE)) {
+                return false;
+            }
+            for (Element child : Tools.getChildElementList(e)) {
+                if (child.getAttribute(ROLE).equals(VARIABLE_REFERENCE)) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Gets the class of the subtree.
+     */
+    private Integer getClass(Element e) {
+        Integer c = classOf.get(e);
+        if (c != null) {
+            return c;
+        }
+        String type = e.getNodeName();
+        boolean object = Utils.equals(type, OBJECTS);
+        if (object && !isMergeable(e)) {
+            c = nextClass++;
+            classOf.put(e, c);
+            return c;
+        }
+        if (!visiting.add(e)) {
+            return nextClass++; // the object is in itself
+        }
+
+        StringBuilder key = new StringBuilder(type);
+        if (object) {
+            appendAttributes(key, e, PLACEMENT);
+        }
+        else {
+            appendAttributes(key, e);
+        }
+        for (Element child : Tools.getChildElementList(e)) {
+            String childType = child.getNodeName();
+            key.append('(');
+            if (childType.equals(INCLUDE_OBJECT)) {
+                appendPlacement(key, child);
+                Element linked = nameMap.get(child.getAttribute(NAME));
+                if (linked == null) {
+                    key.append('?').append(child.getAttribute(NAME));
+                }
+                else {
+                    key.append('#').append(getClass(linked));
+                }
+            }
+            else {
+                if (Utils.equals(childType, OBJECTS)) {
+                    appendPlacement(key, child);
+                }
+                key.append('#').append(getClass(child));
+            }
+            key.append(')');
+        }
+        visiting.remove(e);
+
+        String k = key.toString();
+        c = classes.get(k);
+        if (c == null) {
+            c = nextClass++;
+            classes.put(k, c);
+        }
+        classOf.put(e, c);
+        return c;
+    }
+
+    /**
+     * Appends the attributes sorted by name, the values are prefixed
+     * with their lengths so that any value can be appended.
+     */
+    private static void appendAttributes(StringBuilder key, Element e, String ... skipped) {
+        for (String name : getSortedNames(e)) {
+            if (!Utils.equals(name, skipped)) {
+                appendAttribute(key, name, e.getAttribute(name));
+            }
+        }
+    }
+
+    /**
+     * Appends the placement of a child object or link the same way, so
+     * that an object and a link to the same object in the same place
+     * give the same key.
+     */
+    private static void appendPlacement(StringBuilder key, Element e) {
+        for (String name : getSortedNames(e)) {
+            if (!name.equals(NAME) && Utils.equals(name, PLACEMENT)) {
+                appendAttribute(key, name, e.getAttribute(name));
+            }
+        }
+    }
+
+    private static String[] getSortedNames(Element e) {
+        NamedNodeMap attributes = e.getAttributes();
+        String[] names = new String[attributes.getLength()];
+        for (int i = 0; i < names.length; i++) {
+            names[i] = attributes.item(i).getNodeName();
+        }
+        Arrays.sort(names);
+        return names;
+    }
+
+    private static void appendAttribute(StringBuilder key, String name, String value) {
+        key.append(' ').append(name).append('=')
+                .append(value.length()).append(':').append(value);
+    }
+
+    /**
+     * Only root level objects are in the name map.
+     */
+    private boolean isRootObject(Element element) {
+        return element.getParentNode() == doc.getDocumentElement();
+    }
+
+    private boolean isAttached(Node node) {
+        while (node != null && node != doc) {
+            node = node.getParentNode();
+        }
+        return node == doc;
+    }
+
+    /**
+     * Moves the object to the root level and leaves a link in its place.
+     * The object is renamed if its name is taken on the root level.
+     */
+    private void moveToRoot(Element object) {
+        String name = object.getAttribute(NAME);
+        if (name.isEmpty() || nameMap.containsKey(name)) {
+            name = Tools.findFreeName(name.isEmpty() ? object.getNodeName() : name, nameMap);
+        }
+        Element parent = (Element) object.getParentNode();
+        parent.insertBefore(createLink(object, name), object);
+        parent.removeChild(object);
+        Tools.removeXYAttribs(object);
+        object.removeAttribute(ROLE);
+        object.setAttribute(NAME, name);
+        doc.getDocumentElement().appendChild(object);
+    }
+
+    /**
+     * Replaces the duplicate with a link to the kept object.
+     */
+    private void replace(Element duplicate, String name) {
+        Element parent = (Element) duplicate.getParentNode();
+        if (isRootObject(duplicate)) {
+            String oldName = duplicate.getAttribute(NAME);
+            parent.removeChild(duplicate);
+            if (!oldName.isEmpty() && !nameMap.containsKey(oldName)) {
+                // the index changes while the links are renamed
+                List<Element> links = new ArrayList<>(
+                        ReferenceIndex.getInstance(doc).getReferences(oldName));
+                for (Element link : links) {
+                    link.setAttribute(NAME, name);
+                }
+                for (Element user : getBlockFontUsers(oldName)) {
+                    if (user.getAttribute(BLOCK_FONT).equals(oldName)) {
+                        user.setAttribute(BLOCK_FONT, name);
+                    }
+                }
+            }
+        }
+        else {
+            parent.insertBefore(createLink(duplicate, name), duplicate);
+            parent.removeChild(duplicate);
+        }
+    }
+
+    /**
+     * Gets the elements whose block_font is the font attributes object,
+     * the block_font attributes are not in the reference index.
+     */
+    private List<Element> getBlockFontUsers(String name) {
+        if (blockFonts == null) {
+            blockFonts = new HashMap<>();
+            NodeList elements = doc.getElementsByTagName("*");
+            for (int i = 0, n = elements.getLength(); i < n; i++) {
+                Element e = (Element) elements.item(i);
+                String font = e.getAttribute(BLOCK_FONT);
+                if (!font.isEmpty()) {
+                    getBlockFontUsers(font).add(e);
+                }
+            }
+        }
+        List<Element> users = blockFonts.get(name);
+        if (users == null) {
+            users = new ArrayList<>();
+            blockFonts.put(name, users);
+        }
+        return users;
+    }
+
+    private Element createLink(Element object, String name) {
+        Element link = doc.createElement(INCLUDE_OBJECT);
+        link.setAttribute(NAME, name);
+        Tools.copyAttributes(object, link, POS_X, POS_Y, BLOCK_COL, BLOCK_ROW, BLOCK_FONT, ROLE);
+        String font = link.getAttribute(BLOCK_FONT);
+        if (blockFonts != null && !font.isEmpty()) {
+            getBlockFontUsers(font).add(link);
+        }
+        return link;
+    }
+
+    /**
+     * Counts the objects in the subtree and their bytes.
+     */
+    private void countSavings(IOPWriter writer, Element e) {
+        if (Utils.equals(e.getNodeName(), OBJECTS)) {
+            objectCount++;
+            byteCount += writer.getSize(e);
+            String file = e.getAttribute(FILE);
+            if (e.getNodeName().equals(PICTUREGRAPHIC) && !file.isEmpty()) {
+                int format = IOPWriter.getPictureFormat(e);
+                try {
+                    Dimension size = PictureCache.readSize(
+                            new File(FileTools.joinPaths(bitmapPath, file)));
+                    byteCount += IOPWriter.getPictureDataSize(format < 0 ? 2 : format,
+                            size.width, size.height);
+                }
+                catch (IOException ex) {
+                    System.err.println("Can not read the size of " + file + ": " + ex.getMessage());
+                }
+            }
+        }
+        for (Element child : Tools.getChildElementList(e)) {
+            countSavings(writer, child);
+        }
+    }
+}
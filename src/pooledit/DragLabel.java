@@ -29,6 +29,7 @@ import multidom.SingleDOM;
 import objecttree.ObjectTreeCellRenderer;
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
+import treemodel.NameRegistry;
 
 /**
  *
@@ -59,7 +60,7 @@ public class DragLabel extends JLabel {
         List<Element> list = Tools.getChildElementList(doc.getDocumentElement());
         for (Element e : list) {
             if (e.getNodeName().equals(type)) {
-                Map<String,Element> namemap = Tools.createNameMap(doc);
+                Map<String,Element> namemap = NameRegistry.getInstance(doc).getRootMap();
                 return Tools.writeToStringNoDec(Tools.createMergedElementRecursive(e, namemap));
             }
         }
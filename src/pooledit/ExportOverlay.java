@@ -0,0 +1,502 @@
+/*
+ * Copyright (C) 2019 Automation technology laboratory,
+ * Helsinki University of Technology
+ *
+ * Visit automation.tkk.fi for information about the automation
+ * technology laboratory.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 3
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston,
+ * MA 02111-1307, USA.
+ */
+package pooledit;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import org.w3c.dom.Attr;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
+
+/**
+ * Copy-on-write view of a document for the export. The changes made by
+ * the export (new attribute values, removed nodes and new children) are
+ * recorded here and the document itself is left as it is. The view can
+ * be written out like the document would be written by the transformer
+ * after the changes, so the export does not need a copy of the document.
+ *
+ * @author mohman
+ */
+class ExportOverlay {
+
+    private final Document doc;
+    /** element -> changed attributes as name, value pairs (null: removed) */
+    private final Map<Element, String[]> attributes = new IdentityHashMap<>();
+    private final Set<Node> removed =
+            Collections.newSetFromMap(new IdentityHashMap<Node, Boolean>());
+    /** element -> element holding the new children */
+    private final Map<Element, Element> children = new IdentityHashMap<>();
+    private Document scratch;
+
+    /**
+     * @param doc the exported document
+     */
+    ExportOverlay(Document doc) {
+        this.doc = doc;
+    }
+
+    /**
+     * Gets the value of an attribute as seen by the export.
+     * @param element
+     * @param name
+     * @return the value or an empty string
+     */
+    String getAttribute(Element element, String name) {
+        String[] attrs = attributes.get(element);
+        if (attrs != null) {
+            for (int i = 0; i < attrs.length && attrs[i] != null; i += 2) {
+                if (attrs[i].equals(name)) {
+                    return attrs[i + 1] == null ? "" : attrs[i + 1];
+                }
+            }
+        }
+        return element.getAttribute(name);
+    }
+
+    /**
+     * Sets the value of an attribute in the export.
+     * @param element
+     * @param name
+     * @param value
+     */
+    void setAttribute(Element element, String name, String value) {
+        String[] attrs = attributes.get(element);
+        int i = 0;
+        if (attrs == null) {
+            attrs = new String[4];
+            attributes.put(element, attrs);
+        }
+        else {
+            while (i < attrs.length && attrs[i] != null && !attrs[i].equals(name)) {
+                i += 2;
+            }
+            if (i == attrs.length) {
+                attrs = Arrays.copyOf(attrs, attrs.length * 2);
+                attributes.put(element, attrs);
+            }
+        }
+        attrs[i] = name;
+        attrs[i + 1] = value;
+    }
+
+    /**
+     * Removes an attribute from the export.
+     * @param element
+     * @param name
+     */
+    void removeAttribute(Element element, String name) {
+        if (element.hasAttribute(name) || attributes.containsKey(element)) {
+            setAttribute(element, name, null);
+        }
+    }
+
+    /**
+     * Removes the specified attributes from the export.
+     * @param element
+     * @param names
+     */
+    void removeAttributes(Element element, String... names) {
+        for (String name : names) {
+            removeAttribute(element, name);
+        }
+    }
+
+    /**
+     * Leaves the node and its children out of the export.
+     * @param node
+     */
+    void remove(Node node) {
+        removed.add(node);
+    }
+
+    /**
+     * Checks whether the node has been left out of the export.
+     * @param node
+     * @return
+     */
+    boolean isRemoved(Node node) {
+        return removed.contains(node);
+    }
+
+    /**
+     * Creates an element that can be added to the export with
+     * replaceChildren.
+     * @param name
+     * @return
+     */
+    Element createElement(String name) {
+        if (scratch == null) {
+            scratch = doc.getImplementation().createDocument(null, null, null);
+        }
+        return scratch.createElement(name);
+    }
+
+    /**
+     * Replaces the children of the element in the export.
+     * @param element
+     * @param newChildren elements created with createElement
+     */
+    void replaceChildren(Element element, Element... newChildren) {
+        Element holder = createElement(element.getTagName());
+        for (Element child : newChildren) {
+            holder.appendChild(child);
+        }
+        children.put(element, holder);
+    }
+
+    /**
+     * Gets the first child of the node in the export.
+     * @param node
+     * @return
+     */
+    Node getFirstChild(Node node) {
+        Element holder = children.get(node);
+        Node child = holder != null ? holder.getFirstChild() : node.getFirstChild();
+        while (child != null && removed.contains(child)) {
+            child = child.getNextSibling();
+        }
+        return child;
+    }
+
+    /**
+     * Gets the next sibling of the node in the export.
+     * @param node
+     * @return
+     */
+    Node getNextSibling(Node node) {
+        Node next = node.getNextSibling();
+        while (next != null && removed.contains(next)) {
+            next = next.getNextSibling();
+        }
+        return next;
+    }
+
+    /**
+     * Gets the child elements of the element in the export (see
+     * Tools.getChildElementList).
+     * @param element
+     * @return
+     */
+    List<Element> getChildElementList(Element element) {
+        List<Element> list = new ArrayList<>();
+        for (Node child = getFirstChild(element); child != null;
+                child = getNextSibling(child)) {
+            if (child.getNodeType() == Node.ELEMENT_NODE) {
+                list.add((Element) child);
+            }
+        }
+        return list;
+    }
+
+    //------------------------------------------------------------//
+
+    /**
+     * Checks whether write can produce the same text as the transformer.
+     * The export only has elements, comments and text-only elements,
+     * other kinds of content are left to the transformer (see
+     * materialize).
+     * @return
+     */
+    boolean isWritable() {
+        for (Node node = doc.getFirstChild(); node != null; node = node.getNextSibling()) {
+            if (node.getNodeType() != Node.ELEMENT_NODE) {
+                return false;
+            }
+        }
+        return isWritable(doc.getDocumentElement());
+    }
+
+    private boolean isWritable(Element element) {
+        NamedNodeMap attrs = element.getAttributes();
+        for (int i = 0, n = attrs.getLength(); i < n; i++) {
+            Node attr = attrs.item(i);
+            if (attr.getNamespaceURI() != null || attr.getNodeName().startsWith("xmlns")) {
+                return false;
+            }
+        }
+        int texts = 0;
+        int others = 0;
+        for (Node child = getFirstChild(element); child != null;
+                child = getNextSibling(child)) {
+            switch (child.getNodeType()) {
+                case Node.ELEMENT_NODE:
+                    if (!isWritable((Element) child)) {
+                        return false;
+                    }
+                    others++;
+                    break;
+                case Node.COMMENT_NODE:
+                    others++;
+                    break;
+                case Node.TEXT_NODE:
+                    texts++;
+                    break;
+                default:
+                    return false;
+            }
+        }
+        return texts == 0 || (texts == 1 && others == 0);
+    }
+
+    /**
+     * Writes the export in the format of the transformer used by
+     * Tools.writeXML (indented by two spaces). The document must be
+     * writable (see isWritable).
+     * @param out
+     * @param encoding
+     * @throws IOException
+     */
+    void write(Writer out, String encoding) throws IOException {
+        String eol = System.getProperty("line.separator");
+        Escaper escaper = new Escaper(out, encoding);
+        out.write("<?xml version=\"1.0\" encoding=\"" + encoding +
+                "\" standalone=\"no\"?>");
+        out.write(eol);
+        write(doc.getDocumentElement(), 0, out, escaper, eol);
+        out.write(eol);
+    }
+
+    private void write(Element element, int depth, Writer out, Escaper escaper,
+            String eol) throws IOException {
+        String name = element.getTagName();
+        out.write('<');
+        out.write(name);
+        String[] changed = attributes.get(element);
+        NamedNodeMap attrs = element.getAttributes();
+        if (changed == null) {
+            // the attributes of the document are already sorted by name
+            for (int i = 0, n = attrs.getLength(); i < n; i++) {
+                Attr attr = (Attr) attrs.item(i);
+                writeAttribute(attr.getName(), attr.getValue(), out, escaper);
+            }
+        }
+        else {
+            TreeMap<String, String> sorted = new TreeMap<>();
+            for (int i = 0, n = attrs.getLength(); i < n; i++) {
+                Attr attr = (Attr) attrs.item(i);
+                sorted.put(attr.getName(), attr.getValue());
+            }
+            for (int i = 0; i < changed.length && changed[i] != null; i += 2) {
+                if (changed[i + 1] == null) {
+                    sorted.remove(changed[i]);
+                }
+                else {
+                    sorted.put(changed[i], changed[i + 1]);
+                }
+            }
+            for (Map.Entry<String, String> e : sorted.entrySet()) {
+                writeAttribute(e.getKey(), e.getValue(), out, escaper);
+            }
+        }
+
+        Node child = getFirstChild(element);
+        if (child != null && child.getNodeType() == Node.TEXT_NODE &&
+                child.getNodeValue().isEmpty()) {
+            child = null; // nothing to write
+        }
+        if (child == null) {
+            out.write("/>");
+            return;
+        }
+        out.write('>');
+        if (child.getNodeType() == Node.TEXT_NODE) {
+            escaper.write(child.getNodeValue(), false);
+        }
+        else {
+            for (; child != null; child = getNextSibling(child)) {
+                out.write(eol);
+                indent(depth + 1, out);
+                if (child.getNodeType() == Node.ELEMENT_NODE) {
+                    write((Element) child, depth + 1, out, escaper, eol);
+                }
+                else {
+                    out.write("<!--");
+                    out.write(child.getNodeValue());
+                    out.write("-->");
+                }
+            }
+            out.write(eol);
+            indent(depth, out);
+        }
+        out.write("</");
+        out.write(name);
+        out.write('>');
+    }
+
+    private static void writeAttribute(String name, String value, Writer out,
+            Escaper escaper) throws IOException {
+        out.write(' ');
+        out.write(name);
+        out.write("=\"");
+        escaper.write(value, true);
+        out.write('"');
+    }
+
+    private static void indent(int depth, Writer out) throws IOException {
+        for (int i = 0; i < depth; i++) {
+            out.write("  ");
+        }
+    }
+
+    /**
+     * Escapes text and attribute values like the transformer does.
+     * Characters that can not be encoded are written as character
+     * references.
+     */
+    private static class Escaper {
+
+        private final Writer out;
+        private final CharsetEncoder encoder;
+        private final int limit; // characters below this can be encoded
+
+        Escaper(Writer out, String encoding) {
+            this.out = out;
+            Charset charset = Charset.forName(encoding);
+            this.encoder = charset.newEncoder();
+            String name = charset.name();
+            if (name.equals("UTF-8") || name.startsWith("UTF-16")) {
+                limit = Character.MIN_SURROGATE;
+            }
+            else if (name.equals("ISO-8859-1")) {
+                limit = 0x100;
+            }
+            else {
+                limit = 0x80;
+            }
+        }
+
+        void write(String s, boolean attribute) throws IOException {
+            int start = 0;
+            for (int i = 0, n = s.length(); i < n; i++) {
+                char c = s.charAt(i);
+                String ref;
+                if (c >= 0x20 && c < limit) {
+                    if (c == '&') {
+                        ref = "&amp;";
+                    }
+                    else if (c == '<') {
+                        ref = "&lt;";
+                    }
+                    else if (c == '>') {
+                        ref = "&gt;";
+                    }
+                    else if (c == '"' && attribute) {
+                        ref = "&quot;";
+                    }
+                    else {
+                        continue;
+                    }
+                }
+                else if ((c == '\n' || c == '\t') && !attribute) {
+                    continue;
+                }
+                else if (c >= limit && !Character.isSurrogate(c) &&
+                        encoder.canEncode(c)) {
+                    continue;
+                }
+                else if (Character.isHighSurrogate(c) && i + 1 < n &&
+                        Character.isLowSurrogate(s.charAt(i + 1))) {
+                    out.write(s, start, i - start);
+                    out.write("&#" + Character.toCodePoint(c, s.charAt(i + 1)) + ";");
+                    start = ++i + 1;
+                    continue;
+                }
+                else {
+                    ref = "&#" + (int) c + ";";
+                }
+                out.write(s, start, i - start);
+                out.write(ref);
+                start = i + 1;
+            }
+            out.write(s, start, s.length() - start);
+        }
+    }
+
+    //------------------------------------------------------------//
+
+    /**
+     * Creates a copy of the document with the changes of the export. This
+     * is used for documents that write can not handle.
+     * @return
+     */
+    Document materialize() {
+        Document copy = (Document) doc.cloneNode(true);
+        apply(doc, copy);
+        return copy;
+    }
+
+    private void apply(Node node, Node copy) {
+        String[] changed = attributes.get(node);
+        if (changed != null) {
+            Element element = (Element) copy;
+            for (int i = 0; i < changed.length && changed[i] != null; i += 2) {
+                if (changed[i + 1] == null) {
+                    element.removeAttribute(changed[i]);
+                }
+                else {
+                    element.setAttribute(changed[i], changed[i + 1]);
+                }
+            }
+        }
+        Element holder = children.get(node);
+        if (holder != null) {
+            while (copy.getFirstChild() != null) {
+                copy.removeChild(copy.getFirstChild());
+            }
+            Document owner = copy.getOwnerDocument();
+            for (Node child = holder.getFirstChild(); child != null;
+                    child = child.getNextSibling()) {
+                Node imported = owner.importNode(child, true);
+                copy.appendChild(imported);
+                apply(child, imported);
+            }
+            return;
+        }
+        Node child = node.getFirstChild();
+        Node childCopy = copy.getFirstChild();
+        while (child != null) {
+            Node next = child.getNextSibling();
+            Node nextCopy = childCopy.getNextSibling();
+            if (removed.contains(child)) {
+                copy.removeChild(childCopy);
+            }
+            else {
+                apply(child, childCopy);
+            }
+            child = next;
+            childCopy = nextCopy;
+        }
+    }
+}
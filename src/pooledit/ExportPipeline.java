@@ -0,0 +1,183 @@
+/*
+ * Copyright (C) 2019 Automation technology laboratory,
+ * Helsinki University of Technology
+ *
+ * Visit automation.tkk.fi for information about the automation
+ * technology laboratory.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 3
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston,
+ * MA 02111-1307, USA.
+ */
+package pooledit;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+
+/**
+ * Export pipeline. The stages of a pass are run on every element of the
+ * document during one walk in document order: all stages of a pass see
+ * an element before any stage sees the next element. A stage that needs
+ * the results of another stage for the whole document goes to a later
+ * pass.
+ * <p>
+ * The document is not changed, the stages make their changes through
+ * the overlay of the pipeline (see ExportOverlay). A stage may change
+ * the attributes and the children of the element it visits, the
+ * children are walked after all stages have visited the element. A
+ * stage may also remove the element, the remaining stages then skip it
+ * and its children.
+ * <p>
+ * The messages of each stage are buffered and printed after the pass in
+ * stage order, so the log looks as if every stage had walked the
+ * document by itself.
+ *
+ * @author mohman
+ */
+class ExportPipeline {
+
+    /**
+     * A step of the export.
+     */
+    static abstract class Stage {
+
+        private final String name;
+        private long time;
+        private ByteArrayOutputStream log;
+
+        /** messages of the stage */
+        protected PrintStream out;
+        /** changes of the export */
+        protected ExportOverlay overlay;
+
+        Stage(String name) {
+            this.name = name;
+        }
+
+        /**
+         * Called for every element of the document in document order.
+         * @param element
+         * @throws IOException
+         * @throws PoolException
+         */
+        abstract void visit(Element element) throws IOException, PoolException;
+
+        /**
+         * Called after all elements have been visited.
+         * @throws IOException
+         * @throws PoolException
+         */
+        void finish() throws IOException, PoolException {
+        }
+    }
+
+    private final PrintStream out;
+    private final ExportOverlay overlay;
+    private final List<List<Stage>> passes = new ArrayList<>();
+    private int visited;
+
+    /**
+     * @param out messages of the stages and the timing report
+     * @param overlay overlay of the exported document
+     */
+    ExportPipeline(PrintStream out, ExportOverlay overlay) {
+        this.out = out;
+        this.overlay = overlay;
+    }
+
+    /**
+     * Adds a pass, the stages visit each element in the given order.
+     * @param stages
+     * @return this pipeline
+     */
+    ExportPipeline addPass(Stage... stages) {
+        passes.add(Arrays.asList(stages));
+        return this;
+    }
+
+    /**
+     * Runs all passes over the document and reports the time spent in
+     * each stage.
+     * @param doc
+     * @throws IOException
+     * @throws PoolException
+     */
+    void run(Document doc) throws IOException, PoolException {
+        long start = System.nanoTime();
+        for (List<Stage> pass : passes) {
+            for (Stage stage : pass) {
+                stage.log = new ByteArrayOutputStream();
+                stage.out = new PrintStream(stage.log);
+                stage.overlay = overlay;
+            }
+            try {
+                walk(doc.getDocumentElement(), pass);
+                for (Stage stage : pass) {
+                    long t = System.nanoTime();
+                    stage.finish();
+                    stage.time += System.nanoTime() - t;
+                }
+            }
+            finally {
+                for (Stage stage : pass) {
+                    stage.out.flush();
+                    stage.log.writeTo(out);
+                }
+            }
+        }
+        report(System.nanoTime() - start);
+    }
+
+    private void walk(Element element, List<Stage> stages)
+            throws IOException, PoolException {
+        visited++;
+        for (int i = 0, n = stages.size(); i < n; i++) {
+            Stage stage = stages.get(i);
+            long t = System.nanoTime();
+            stage.visit(element);
+            stage.time += System.nanoTime() - t;
+            if (overlay.isRemoved(element)) {
+                return; // removed by the stage
+            }
+        }
+        for (Node child = overlay.getFirstChild(element); child != null;
+                child = overlay.getNextSibling(child)) {
+            if (child.getNodeType() == Node.ELEMENT_NODE) {
+                walk((Element) child, stages);
+            }
+        }
+    }
+
+    private void report(long total) {
+        long stages = 0;
+        out.println("Export: " + passes.size() + " passes, " + visited +
+                " elements visited");
+        for (List<Stage> pass : passes) {
+            for (Stage stage : pass) {
+                out.println(String.format("  %-26s %8.2f ms", stage.name,
+                        stage.time / 1e6));
+                stages += stage.time;
+            }
+        }
+        out.println(String.format("  %-26s %8.2f ms", "walk",
+                (total - stages) / 1e6));
+    }
+}
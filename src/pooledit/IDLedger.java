@@ -0,0 +1,165 @@
+/*
+ * Copyright (C) 2019 Automation technology laboratory,
+ * Helsinki University of Technology
+ *
+ * Visit automation.tkk.fi for information about the automation
+ * technology laboratory.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 3
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston,
+ * MA 02111-1307, USA.
+ */
+package pooledit;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.Writer;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.BitSet;
+import java.util.Properties;
+import org.w3c.dom.Document;
+
+/**
+ * Object ids given to the objects of a pool by earlier exports. The
+ * ledger maps object names to ids and is stored in a properties file next
+ * to the pool (pool.xml -> pool.ids), so an object keeps its id from one
+ * export to the next even when other objects are added or removed.
+ *
+ * @author mohman
+ */
+class IDLedger {
+
+    private final File file;
+    private final Properties ids = new Properties();
+    /** all ids in the ledger */
+    private final BitSet used = new BitSet();
+    private boolean modified;
+
+    private IDLedger(File file) {
+        this.file = file;
+        if (file == null || !file.isFile()) {
+            return;
+        }
+        try (Reader in = new InputStreamReader(new FileInputStream(file),
+                StandardCharsets.UTF_8)) {
+            ids.load(in);
+        }
+        catch (IOException ex) {
+            System.err.println("Can't read object ids from " + file + ": " + ex.getMessage());
+            ids.clear();
+        }
+        for (String name : ids.stringPropertyNames()) {
+            Integer id = get(name);
+            if (id == null) {
+                System.err.println("Invalid object id in " + file + ": " +
+                        name + "=" + ids.getProperty(name));
+                ids.remove(name);
+            }
+            else {
+                used.set(id);
+            }
+        }
+    }
+
+    /**
+     * Gets the ledger of the pool the document was loaded from. Documents
+     * that have no file get an empty ledger that is not stored.
+     * @param doc
+     * @return
+     */
+    static IDLedger getInstance(Document doc) {
+        return new IDLedger(getFile(doc));
+    }
+
+    private static File getFile(Document doc) {
+        String uri = doc.getDocumentURI();
+        if (uri == null) {
+            return null;
+        }
+        try {
+            File pool = new File(new URI(uri));
+            String name = pool.getName();
+            int dot = name.lastIndexOf('.');
+            if (dot > 0) {
+                name = name.substring(0, dot);
+            }
+            return new File(pool.getParentFile(), name + ".ids");
+        }
+        catch (Exception ex) {
+            return null; // not a local file
+        }
+    }
+
+    /**
+     * Gets the id of the object from the ledger.
+     * @param name
+     * @return the id or null if the object has no valid id
+     */
+    Integer get(String name) {
+        String value = ids.getProperty(name);
+        if (value == null) {
+            return null;
+        }
+        try {
+            int id = Integer.parseInt(value.trim());
+            return id >= 0 && id < 65536 ? id : null;
+        }
+        catch (NumberFormatException ex) {
+            return null;
+        }
+    }
+
+    /**
+     * Records the id of the object.
+     * @param name
+     * @param id
+     */
+    void put(String name, int id) {
+        String value = Integer.toString(id);
+        if (!value.equals(ids.getProperty(name))) {
+            ids.setProperty(name, value);
+            used.set(id);
+            modified = true;
+        }
+    }
+
+    /**
+     * Gets a copy of the ids in the ledger.
+     * @return
+     */
+    BitSet getIDs() {
+        return (BitSet) used.clone();
+    }
+
+    /**
+     * Stores the ledger if it has changed.
+     * @throws IOException
+     */
+    void save() throws IOException {
+        if (file == null || !modified) {
+            return;
+        }
+        Tools.writeAtomically(file, "UTF-8", new Tools.FileContent() {
+            @Override
+            public void write(Writer out) throws IOException {
+                ids.store(out, "object ids of the last export");
+            }
+        });
+        modified = false;
+    }
+}
@@ -0,0 +1,1192 @@
+/*
+ * Copyright (C) 2019 Automation technology laboratory,
+ * Helsinki University of Technology
+ *
+ * Visit automation.tkk.fi for information about the automation
+ * technology laboratory.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 3
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston,
+ * MA 02111-1307, USA.
+ */
+package pooledit;
+
+import static pooledit.Definitions.*;
+import attributetable.AttributeTable;
+import color.ColorPalette;
+import font.BitmapFont;
+import java.awt.Dimension;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+
+/**
+ * Writes an exported document as a binary object pool (.iop), the format
+ * read by poolimporter.PoolImporter: the objects in document order, each
+ * as its id, type and attributes (ISO 11783-6 annex B) in little-endian
+ * byte order. The writer reads the export overlay, so the objects and
+ * include_objects must already have their ids and the pictures their
+ * image data (see Tools.exportToIOP). Pictures are written without RLE.
+ *
+ * @author mohman
+ */
+class IOPWriter {
+
+    private static final int NULL_ID = 0xFFFF;
+
+    private static final PrintStream NO_OUTPUT = new PrintStream(new OutputStream() {
+        @Override
+        public void write(int b) {
+        }
+    });
+
+    /**
+     * Bytes of each object type without its lists, strings and picture
+     * data, the id and the type included (see getSize).
+     */
+    private static final int[] FIXED_SIZES = {
+        10, 8, 10, 10, 6, 7, 13, 13, 19, 38, 13, 17, 29, 11, 13, 15,
+        14, 21, 24, 27, 17, 7, 5, 8, 8, 8, 6, 5, 5, 6, 7
+    };
+
+    /** macro roles, the ISO event number is the index + 1 */
+    private static final String[] EVENTS = {
+        ON_ACTIVATE, ON_DEACTIVATE, ON_SHOW, ON_HIDE, ON_ENABLE, ON_DISABLE,
+        ON_CHANGE_ACTIVE_MASK, ON_CHANGE_SOFT_KEY_MASK, ON_CHANGE_ATTRIBUTE,
+        ON_CHANGE_BACKGROUND_COLOUR, ON_CHANGE_FONT_ATTRIBUTES,
+        ON_CHANGE_LINE_ATTRIBUTES, ON_CHANGE_FILL_ATTRIBUTES,
+        ON_CHANGE_CHILD_LOCATION, ON_CHANGE_SIZE, ON_CHANGE_VALUE,
+        ON_CHANGE_PRIORITY, ON_CHANGE_END_POINT, ON_INPUT_FIELD_SELECTION,
+        ON_INPUT_FIELD_DESELECTION, ON_ESC, ON_ENTRY_OF_VALUE,
+        ON_ENTRY_OF_NEW_VALUE, ON_KEY_PRESS, ON_KEY_RELEASE,
+        ON_CHANGE_CHILD_POSITION
+    };
+
+    // enumerated values, the first one is the default
+    private static final String[] PRIORITIES = {"high", "medium", "low"};
+    private static final String[] SIGNALS = {"high", "medium", "low", "none"};
+    private static final String[] JUSTIFICATIONS = {"left", "middle", "right"};
+    private static final String[] NUMBER_FORMATS = {"fixed", "exponential"};
+    private static final String[] PICTURE_FORMATS = {"1bit", "4bit", "8bit"};
+    private static final String[] DIRECTIONS = {"toplefttobottomright", "bottomlefttotopright"};
+    private static final String[] ELLIPSE_TYPES = {"closed", "open", "closedsegment", "closedsection"};
+    private static final String[] POLYGON_TYPES = {"convex", "nonconvex", "complex", "open"};
+    private static final String[] FILL_TYPES = {"nofill", "linecolour", "fillcolour", "pattern"};
+    private static final String[] VALIDATION_TYPES = {"validcharacters", "invalidcharacters"};
+    private static final String[] FUNCTION_TYPES = {"boolean", "analog"};
+    private static final String[] FONT_TYPES = {"latin1", "latin9", "latin5"};
+    private static final String[] MASK_TYPES = {null, "datamask", "alarmmask"};
+
+    // options, bit 0 first
+    private static final String[] STRING_OPTIONS = {"transparent", "autowrap"};
+    private static final String[] NUMBER_OPTIONS = {"transparent", "leadingzeros", "blankzero"};
+    private static final String[] METER_OPTIONS = {"arc", "border", "ticks", "clockwise"};
+    private static final String[] LINEAR_BAR_GRAPH_OPTIONS =
+            {"border", "targetline", "ticks", "nofill", "horizontal", "growpositive"};
+    private static final String[] ARCHED_BAR_GRAPH_OPTIONS =
+            {"border", "targetline", null, "nofill", "clockwise"};
+    private static final String[] PICTURE_OPTIONS = {"transparent", "flashing"};
+    private static final String[] FONT_STYLES = {"bold", "crossed", "underlined",
+            "italic", "inverted", "flashinginverted", "flashinghidden"};
+    private static final String[] LINE_SUPPRESSIONS = {"top", "right", "bottom", "left"};
+
+    private static final String VALIDATION_STRING = "validation_string";
+
+    /** see XMLTreeNode.isTrue */
+    private static final String[] TRUE_VALUES = {"yes", "true", "on", "show", "enable", "1"};
+
+    /** palette index -> 1 and 4 bit picture values */
+    private static final byte[] PIXELS_1BIT = new byte[256];
+    private static final byte[] PIXELS_4BIT = new byte[256];
+
+    static {
+        for (int i = 0, n = ColorPalette.getNroColors(); i < n; i++) {
+            int rgb1 = ColorPalette.getColor(i, ColorPalette.COLOR_1BIT).getRGB();
+            int rgb4 = ColorPalette.getColor(i, ColorPalette.COLOR_4BIT).getRGB();
+            for (int j = 0; j < 16; j++) {
+                int rgb = ColorPalette.getColor(j, ColorPalette.COLOR_8BIT).getRGB();
+                if (j < 2 && rgb == rgb1) {
+                    PIXELS_1BIT[i] = (byte) j;
+                }
+                if (rgb == rgb4) {
+                    PIXELS_4BIT[i] = (byte) j;
+                    break;
+                }
+            }
+        }
+    }
+
+    /**
+     * Children of an object sorted by what they are used for.
+     */
+    private static class Children {
+        /** role -> object */
+        final Map<String, Element> roles = new HashMap<>();
+        /** include_objects and nested objects without a role */
+        final List<Element> links = new ArrayList<>();
+        final List<Element> objects = new ArrayList<>();
+        /** event, macro pairs */
+        final List<Integer> events = new ArrayList<>();
+        final List<Element> macros = new ArrayList<>();
+        final List<Element> points = new ArrayList<>();
+        final List<Element> languages = new ArrayList<>();
+    }
+
+    private final PrintStream out;
+    private final ExportOverlay overlay;
+    private final Map<String, Element> nameMap;
+    private final ByteBuffer buffer = ByteBuffer.allocate(1 << 16).order(ByteOrder.LITTLE_ENDIAN);
+    /** the commands of a macro are collected here to get their length */
+    private final ByteBuffer commands = ByteBuffer.allocate(0xFFFF).order(ByteOrder.LITTLE_ENDIAN);
+    private WritableByteChannel channel;
+    private long size;
+    private int count;
+
+    /**
+     * @param out error messages and the summary
+     * @param overlay overlay of the exported document
+     * @param nameMap see Tools.createNameMap
+     */
+    IOPWriter(PrintStream out, ExportOverlay overlay, Map<String, Element> nameMap) {
+        this.out = out;
+        this.overlay = overlay;
+        this.nameMap = nameMap;
+    }
+
+    /**
+     * Creates a writer that is only used to measure objects (see getSize),
+     * errors are not reported.
+     * @param overlay
+     * @param nameMap
+     */
+    IOPWriter(ExportOverlay overlay, Map<String, Element> nameMap) {
+        this(NO_OUTPUT, overlay, nameMap);
+    }
+
+    /**
+     * Writes all objects under the element to the channel.
+     * @param root
+     * @param channel
+     * @throws IOException
+     */
+    void write(Element root, WritableByteChannel channel) throws IOException {
+        this.channel = channel;
+        walk(root);
+        flush();
+        out.println("Wrote " + count + " objects (" + size + " bytes)");
+    }
+
+    private void walk(Element element) throws IOException {
+        int type = Utils.indexEquals(element.getNodeName(), OBJECTS);
+        if (type >= 0) {
+            writeObject(element, type);
+            count++;
+        }
+        for (Node child = overlay.getFirstChild(element); child != null;
+                child = overlay.getNextSibling(child)) {
+            if (child.getNodeType() == Node.ELEMENT_NODE) {
+                walk((Element) child);
+            }
+        }
+    }
+
+    /**
+     * Writes the object, the type is the index in OBJECTS (which is in
+     * the order of the ISO object types).
+     */
+    private void writeObject(Element e, int type) throws IOException {
+        Children c = getChildren(e);
+        putShort(getId(e));
+        putByte(type);
+        switch (type) {
+            case 0: // working set
+                putByte(getColour(e, BACKGROUND_COLOUR));
+                putByte(getBoolean(e, SELECTABLE, false) ? 1 : 0);
+                putRef(c, ACTIVE_MASK);
+                putCount(e, c.objects.size());
+                putCount(e, c.macros.size());
+                putCount(e, c.languages.size());
+                putObjects(c, true);
+                putMacros(c);
+                for (Element language : c.languages) {
+                    putString(overlay.getAttribute(language, CODE), 2);
+                }
+                break;
+            case 1: // data mask
+                putByte(getColour(e, BACKGROUND_COLOUR));
+                putRef(c, SOFT_KEY_MASK);
+                putCount(e, c.objects.size());
+                putCount(e, c.macros.size());
+                putObjects(c, true);
+                putMacros(c);
+                break;
+            case 2: // alarm mask
+                putByte(getColour(e, BACKGROUND_COLOUR));
+                putRef(c, SOFT_KEY_MASK);
+                putByte(getEnum(e, PRIORITY, PRIORITIES, 0));
+                putByte(getEnum(e, ACOUSTIC_SIGNAL, SIGNALS, 0));
+                putCount(e, c.objects.size());
+                putCount(e, c.macros.size());
+                putObjects(c, true);
+                putMacros(c);
+                break;
+            case 3: // container
+                putShort(getInt(e, WIDTH, 1));
+                putShort(getInt(e, HEIGHT, 1));
+                putByte(getBoolean(e, HIDDEN, false) ? 1 : 0);
+                putCount(e, c.objects.size());
+                putCount(e, c.macros.size());
+                putObjects(c, true);
+                putMacros(c);
+                break;
+            case 4: // soft key mask
+                putByte(getColour(e, BACKGROUND_COLOUR));
+                putCount(e, c.objects.size());
+                putCount(e, c.macros.size());
+                putObjects(c, false);
+                putMacros(c);
+                break;
+            case 5: // key
+                putByte(getColour(e, BACKGROUND_COLOUR));
+                putByte(getInt(e, "key_code", 1));
+                putCount(e, c.objects.size());
+                putCount(e, c.macros.size());
+                putObjects(c, true);
+                putMacros(c);
+                break;
+            case 6: // button
+                putShort(getInt(e, WIDTH, 1));
+                putShort(getInt(e, HEIGHT, 1));
+                putByte(getColour(e, BACKGROUND_COLOUR));
+                putByte(getColour(e, BORDER_COLOUR));
+                putByte(getInt(e, "key_code", 1));
+                putByte(getBoolean(e, LATCHABLE, false) ? 1 : 0);
+                putCount(e, c.objects.size());
+                putCount(e, c.macros.size());
+                putObjects(c, true);
+                putMacros(c);
+                break;
+            case 7: // input boolean
+                putByte(getColour(e, BACKGROUND_COLOUR));
+                putShort(getInt(e, WIDTH, 1));
+                putRef(c, FOREGROUND_COLOUR);
+                putRef(c, VARIABLE_REFERENCE);
+                putByte(getInt(e, VALUE, 0));
+                putByte(getBoolean(e, ENABLED, true) ? 1 : 0);
+                putCount(e, c.macros.size());
+                putMacros(c);
+                break;
+            case 8: { // input string
+                int length = getStringLength(e, VALUE, 0xFFFF);
+                if (length > 0xFF) {
+                    error(e, "string is longer than 255 characters");
+                    length = 0xFF;
+                }
+                putShort(getInt(e, WIDTH, 1));
+                putShort(getInt(e, HEIGHT, 1));
+                putByte(getColour(e, BACKGROUND_COLOUR));
+                putRef(c, FONT_ATTRIBUTES);
+                putRef(c, INPUT_ATTRIBUTES);
+                putByte(getOptions(e, OPTIONS, STRING_OPTIONS));
+                putRef(c, VARIABLE_REFERENCE);
+                putByte(getEnum(e, HORIZONTAL_JUSTIFICATION, JUSTIFICATIONS, 0));
+                putByte(length);
+                putString(overlay.getAttribute(e, VALUE), length);
+                putByte(getBoolean(e, ENABLED, true) ? 1 : 0);
+                putCount(e, c.macros.size());
+                putMacros(c);
+                break;
+            }
+            case 9: // input number
+                putShort(getInt(e, WIDTH, 1));
+                putShort(getInt(e, HEIGHT, 1));
+                putByte(getColour(e, BACKGROUND_COLOUR));
+                putRef(c, FONT_ATTRIBUTES);
+                putByte(getOptions(e, OPTIONS, NUMBER_OPTIONS));
+                putRef(c, VARIABLE_REFERENCE);
+                putInt(getInt(e, VALUE, 0));
+                putInt(getInt(e, MIN_VALUE, 0));
+                putInt(getInt(e, MAX_VALUE, 1000));
+                putInt(getInt(e, OFFSET, 0));
+                putFloat(getFloat(e, SCALE, 1));
+                putByte(getInt(e, NUMBER_OF_DECIMALS, 0));
+                putByte(getEnum(e, FORMAT, NUMBER_FORMATS, 0));
+                putByte(getEnum(e, HORIZONTAL_JUSTIFICATION, JUSTIFICATIONS, 0));
+                putByte(getBoolean(e, ENABLED, true) ? 1 : 0);
+                putCount(e, c.macros.size());
+                putMacros(c);
+                break;
+            case 10: // input list
+                putShort(getInt(e, WIDTH, 1));
+                putShort(getInt(e, HEIGHT, 1));
+                putRef(c, VARIABLE_REFERENCE);
+                putByte(getInt(e, VALUE, 0));
+                putCount(e, c.objects.size());
+                putByte(getBoolean(e, ENABLED, true) ? 1 : 0);
+                putCount(e, c.macros.size());
+                putObjects(c, false);
+                putMacros(c);
+                break;
+            case 11: { // output string
+                int length = getStringLength(e, VALUE, 0xFFFF);
+                putShort(getInt(e, WIDTH, 1));
+                putShort(getInt(e, HEIGHT, 1));
+                putByte(getColour(e, BACKGROUND_COLOUR));
+                putRef(c, FONT_ATTRIBUTES);
+                putByte(getOptions(e, OPTIONS, STRING_OPTIONS));
+                putRef(c, VARIABLE_REFERENCE);
+                putByte(getEnum(e, HORIZONTAL_JUSTIFICATION, JUSTIFICATIONS, 0));
+                putShort(length);
+                putString(overlay.getAttribute(e, VALUE), length);
+                putCount(e, c.macros.size());
+                putMacros(c);
+                break;
+            }
+            case 12: // output number
+                putShort(getInt(e, WIDTH, 1));
+                putShort(getInt(e, HEIGHT, 1));
+                putByte(getColour(e, BACKGROUND_COLOUR));
+                putRef(c, FONT_ATTRIBUTES);
+                putByte(getOptions(e, OPTIONS, NUMBER_OPTIONS));
+                putRef(c, VARIABLE_REFERENCE);
+                putInt(getInt(e, VALUE, 0));
+                putInt(getInt(e, OFFSET, 0));
+                putFloat(getFloat(e, SCALE, 1));
+                putByte(getInt(e, NUMBER_OF_DECIMALS, 0));
+                putByte(getEnum(e, FORMAT, NUMBER_FORMATS, 0));
+                putByte(getEnum(e, HORIZONTAL_JUSTIFICATION, JUSTIFICATIONS, 0));
+                putCount(e, c.macros.size());
+                putMacros(c);
+                break;
+            case 13: // line
+                putRef(c, LINE_ATTRIBUTES);
+                putShort(getInt(e, WIDTH, 1));
+                putShort(getInt(e, HEIGHT, 1));
+                putByte(getEnum(e, LINE_DIRECTION, DIRECTIONS, 0));
+                putCount(e, c.macros.size());
+                putMacros(c);
+                break;
+            case 14: // rectangle
+                putRef(c, LINE_ATTRIBUTES);
+                putShort(getInt(e, WIDTH, 1));
+                putShort(getInt(e, HEIGHT, 1));
+                putByte(getOptions(e, LINE_SUPPRESSION, LINE_SUPPRESSIONS));
+                putRef(c, FILL_ATTRIBUTES);
+                putCount(e, c.macros.size());
+                putMacros(c);
+                break;
+            case 15: // ellipse
+                putRef(c, LINE_ATTRIBUTES);
+                putShort(getInt(e, WIDTH, 1));
+                putShort(getInt(e, HEIGHT, 1));
+                putByte(getEnum(e, ELLIPSE_TYPE, ELLIPSE_TYPES, 0));
+                putByte(getInt(e, START_ANGLE, 0)); // halved by the export
+                putByte(getInt(e, END_ANGLE, 0));
+                putRef(c, FILL_ATTRIBUTES);
+                putCount(e, c.macros.size());
+                putMacros(c);
+                break;
+            case 16: // polygon
+                putShort(getInt(e, WIDTH, 1));
+                putShort(getInt(e, HEIGHT, 1));
+                putRef(c, LINE_ATTRIBUTES);
+                putRef(c, FILL_ATTRIBUTES);
+                putByte(getEnum(e, POLYGON_TYPE, POLYGON_TYPES, 0));
+                putCount(e, c.points.size());
+                putCount(e, c.macros.size());
+                for (Element point : c.points) {
+                    putShort(getInt(point, POS_X, 0));
+                    putShort(getInt(point, POS_Y, 0));
+                }
+                putMacros(c);
+                break;
+            case 17: // meter
+                putShort(getInt(e, WIDTH, 1));
+                putByte(getColour(e, NEEDLE_COLOUR));
+                putByte(getColour(e, BORDER_COLOUR));
+                putByte(getColour(e, ARC_AND_TICK_COLOUR));
+                putByte(getOptions(e, OPTIONS, METER_OPTIONS));
+                putByte(getInt(e, NUMBER_OF_TICKS, 0));
+                putByte(getInt(e, START_ANGLE, 0));
+                putByte(getInt(e, END_ANGLE, 0));
+                putShort(getInt(e, MIN_VALUE, 0));
+                putShort(getInt(e, MAX_VALUE, 1000));
+                putRef(c, VARIABLE_REFERENCE);
+                putShort(getInt(e, VALUE, 0));
+                putCount(e, c.macros.size());
+                putMacros(c);
+                break;
+            case 18: // linear bar graph
+                putShort(getInt(e, WIDTH, 1));
+                putShort(getInt(e, HEIGHT, 1));
+                putByte(getColour(e, COLOUR));
+                putByte(getColour(e, TARGET_LINE_COLOUR));
+                putByte(getOptions(e, OPTIONS, LINEAR_BAR_GRAPH_OPTIONS));
+                putByte(getInt(e, NUMBER_OF_TICKS, 0));
+                putShort(getInt(e, MIN_VALUE, 0));
+                putShort(getInt(e, MAX_VALUE, 1000));
+                putRef(c, VARIABLE_REFERENCE);
+                putShort(getInt(e, VALUE, 0));
+                putRef(c, TARGET_VALUE_VARIABLE_REFERENCE);
+                putShort(getInt(e, TARGET_VALUE, 0));
+                putCount(e, c.macros.size());
+                putMacros(c);
+                break;
+            case 19: // arched bar graph
+                putShort(getInt(e, WIDTH, 1));
+                putShort(getInt(e, HEIGHT, 1));
+                putByte(getColour(e, COLOUR));
+                putByte(getColour(e, TARGET_LINE_COLOUR));
+                putByte(getOptions(e, OPTIONS, ARCHED_BAR_GRAPH_OPTIONS));
+                putByte(getInt(e, START_ANGLE, 0));
+                putByte(getInt(e, END_ANGLE, 0));
+                putShort(getInt(e, BAR_GRAPH_WIDTH, 1));
+                putShort(getInt(e, MIN_VALUE, 0));
+                putShort(getInt(e, MAX_VALUE, 1000));
+                putRef(c, VARIABLE_REFERENCE);
+                putShort(getInt(e, VALUE, 0));
+                putRef(c, TARGET_VALUE_VARIABLE_REFERENCE);
+                putShort(getInt(e, TARGET_VALUE, 0));
+                putCount(e, c.macros.size());
+                putMacros(c);
+                break;
+            case 20: // picture graphic
+                writePicture(e, c);
+                break;
+            case 21: // number variable
+                putInt(getInt(e, VALUE, 0));
+                break;
+            case 22: { // string variable
+                int length = getStringLength(e, VALUE, 0xFFFF);
+                putShort(length);
+                putString(overlay.getAttribute(e, VALUE), length);
+                break;
+            }
+            case 23: // font attributes
+                putByte(getColour(e, FONT_COLOUR));
+                putByte(getFontSize(e, FONT_SIZE));
+                putByte(getFontType(e, FONT_TYPE));
+                putByte(getOptions(e, FONT_STYLE, FONT_STYLES));
+                putCount(e, c.macros.size());
+                putMacros(c);
+                break;
+            case 24: // line attributes
+                putByte(getColour(e, LINE_COLOUR));
+                putByte(getInt(e, LINE_WIDTH, 1));
+                putShort(getLineArt(e, LINE_ART));
+                putCount(e, c.macros.size());
+                putMacros(c);
+                break;
+            case 25: // fill attributes
+                putByte(getEnum(e, FILL_TYPE, FILL_TYPES, 0));
+                putByte(getColour(e, FILL_COLOUR));
+                putRef(c, FILL_PATTERN);
+                putCount(e, c.macros.size());
+                putMacros(c);
+                break;
+            case 26: { // input attributes
+                int length = getStringLength(e, VALIDATION_STRING, 0xFF);
+                putByte(getEnum(e, VALIDATION_TYPE, VALIDATION_TYPES, 0));
+                putByte(length);
+                putString(overlay.getAttribute(e, VALIDATION_STRING), length);
+                putCount(e, c.macros.size());
+                putMacros(c);
+                break;
+            }
+            case 27: { // object pointer
+                Element value = c.roles.get(VALUE);
+                if (value == null && !c.objects.isEmpty()) {
+                    value = c.objects.get(0);
+                }
+                putShort(value == null ? NULL_ID : getId(value));
+                break;
+            }
+            case 28: // macro
+                writeMacro(e);
+                break;
+            case 29: // auxiliary function
+                putByte(getColour(e, BACKGROUND_COLOUR));
+                putByte(getEnum(e, FUNCTION_TYPE, FUNCTION_TYPES, 0));
+                putCount(e, c.objects.size());
+                putObjects(c, true);
+                break;
+            case 30: // auxiliary input
+                putByte(getColour(e, BACKGROUND_COLOUR));
+                putByte(getEnum(e, FUNCTION_TYPE, FUNCTION_TYPES, 0));
+                putByte(getInt(e, "input_id", 0));
+                putCount(e, c.objects.size());
+                putObjects(c, true);
+                break;
+        }
+    }
+
+    /**
+     * Writes the picture data as 1, 4 or 8 bit pixels. The image data
+     * has one palette index per pixel in base64.
+     */
+    private void writePicture(Element e, Children c) throws IOException {
+        Element data = null;
+        for (Element child : overlay.getChildElementList(e)) {
+            if (child.getNodeName().equals(IMAGE_DATA)) {
+                data = child;
+            }
+        }
+        int width = 0;
+        int height = 0;
+        byte[] pixels = new byte[0];
+        if (data != null) {
+            width = getInt(data, IMAGE_WIDTH, 0);
+            height = getInt(data, IMAGE_HEIGHT, 0);
+            pixels = Base64.getDecoder().decode(data.getTextContent());
+        }
+        if (pixels.length != width * height) {
+            error(e, "picture data does not match its size");
+            width = height = 0;
+            pixels = new byte[0];
+        }
+
+        int format = getPictureFormat(e);
+        if (format < 0) {
+            error(e, "unknown format \"" + e.getAttribute(FORMAT) + "\"");
+            format = 2;
+        }
+        byte[] bytes;
+        if (format == 0) {
+            int row = (width + 7) / 8;
+            bytes = new byte[getPictureDataSize(format, width, height)];
+            for (int y = 0, i = 0; y < height; y++) {
+                for (int x = 0; x < width; x++, i++) {
+                    if (PIXELS_1BIT[pixels[i] & 0xFF] != 0) {
+                        bytes[y * row + x / 8] |= 0x80 >>> (x % 8);
+                    }
+                }
+            }
+        }
+        else if (format == 1) {
+            int row = (width + 1) / 2;
+            bytes = new byte[getPictureDataSize(format, width, height)];
+            for (int y = 0, i = 0; y < height; y++) {
+                for (int x = 0; x < width; x++, i++) {
+                    int p = PIXELS_4BIT[pixels[i] & 0xFF];
+                    bytes[y * row + x / 2] |= x % 2 == 0 ? p << 4 : p;
+                }
+            }
+        }
+        else {
+            bytes = pixels;
+        }
+
+        putShort(getInt(e, WIDTH, width));
+        putShort(width);
+        putShort(height);
+        putByte(format);
+        putByte(getOptions(e, OPTIONS, PICTURE_OPTIONS)); // no rle
+        putByte(getColour(e, TRANSPARENCY_COLOUR));
+        putInt(bytes.length);
+        putCount(e, c.macros.size());
+        putBytes(bytes);
+        putMacros(c);
+    }
+
+    /**
+     * Gets the format of the picture: 0 (1 bit), 1 (4 bit), 2 (8 bit) or
+     * -1 if the format is unknown.
+     * @param picture
+     * @return
+     */
+    static int getPictureFormat(Element picture) {
+        // the export removes the format attribute from the overlay
+        String format = picture.getAttribute(FORMAT);
+        return format.isEmpty() ? 2 : Utils.indexEquals(format, PICTURE_FORMATS);
+    }
+
+    /**
+     * Gets the number of bytes of the picture data, the rows of 1 and 4
+     * bit pictures are padded to whole bytes.
+     * @param format see getPictureFormat
+     * @param width
+     * @param height
+     * @return
+     */
+    static int getPictureDataSize(int format, int width, int height) {
+        switch (format) {
+            case 0: return (width + 7) / 8 * height;
+            case 1: return (width + 1) / 2 * height;
+            default: return width * height;
+        }
+    }
+
+    /**
+     * Gets the number of bytes that write uses for the object, without
+     * the picture data of a picture graphic (see getPictureDataSize).
+     * @param e
+     * @return
+     */
+    int getSize(Element e) {
+        int type = Utils.indexEquals(e.getNodeName(), OBJECTS);
+        Children c = getChildren(e);
+        int size = FIXED_SIZES[type] + 2 * c.macros.size();
+        switch (type) {
+            case 0: // working set
+                size += 6 * c.objects.size() + 2 * c.languages.size();
+                break;
+            case 1: case 2: case 3: case 5: case 6: case 29: case 30:
+                size += 6 * c.objects.size();
+                break;
+            case 4: case 10: // soft key mask, input list
+                size += 2 * c.objects.size();
+                break;
+            case 8: // input string
+                size += getStringLength(e, VALUE, 0xFF);
+                break;
+            case 11: case 22: // output string, string variable
+                size += getStringLength(e, VALUE, 0xFFFF);
+                break;
+            case 16: // polygon
+                size += 4 * c.points.size();
+                break;
+            case 26: // input attributes
+                size += getStringLength(e, VALIDATION_STRING, 0xFF);
+                break;
+            case 28: // macro
+                size += getCommands(e).remaining();
+                break;
+        }
+        return size;
+    }
+
+    /**
+     * Gets the objects that the object refers to: its role objects, its
+     * object list and its macros.
+     * @param e
+     * @return
+     */
+    List<Element> getReferences(Element e) {
+        Children c = getChildren(e);
+        List<Element> list = new ArrayList<>(c.roles.values());
+        list.addAll(c.objects);
+        list.addAll(c.macros);
+        return list;
+    }
+
+    /**
+     * Writes the number of bytes and the commands of the macro.
+     */
+    private void writeMacro(Element e) throws IOException {
+        ByteBuffer b = getCommands(e);
+        putShort(b.remaining());
+        putBytes(b);
+    }
+
+    /**
+     * Encodes the commands of the macro.
+     * @return the commands, ready to be read
+     */
+    private ByteBuffer getCommands(Element e) {
+        commands.clear();
+        try {
+            for (Element command : overlay.getChildElementList(e)) {
+                writeCommand(command);
+            }
+        }
+        catch (BufferOverflowException ex) {
+            error(e, "macro is longer than " + commands.capacity() + " bytes");
+        }
+        commands.flip();
+        return commands;
+    }
+
+    /**
+     * Writes the command to the commands of the macro. The commands are 8
+     * bytes long, unused bytes are 0xFF.
+     */
+    private void writeCommand(Element e) {
+        ByteBuffer b = commands;
+        int start = b.position();
+        switch (e.getNodeName()) {
+            case COMMAND_HIDE_SHOW_OBJECT:
+                b.put((byte) 160);
+                b.putShort((short) getCommandRef(e, "object_id"));
+                b.put((byte) (getBoolean(e, "hide_show", false) ? 1 : 0));
+                break;
+            case COMMAND_ENABLE_DISABLE_OBJECT:
+                b.put((byte) 161);
+                b.putShort((short) getCommandRef(e, "object_id"));
+                b.put((byte) (getBoolean(e, "enable_disable", true) ? 1 : 0));
+                break;
+            case COMMAND_SELECT_INPUT_OBJECT:
+                b.put((byte) 162);
+                b.putShort((short) getCommandRef(e, "object_id"));
+                break;
+            case COMMAND_CONTROL_AUDIO_DEVICE:
+                b.put((byte) 163);
+                b.put((byte) getInt(e, "number_of_repetitions", 0));
+                b.putShort((short) getInt(e, "frequency", 0));
+                b.putShort((short) getInt(e, "on_time", 0));
+                b.putShort((short) getInt(e, "off_time", 0));
+                break;
+            case COMMAND_SET_AUDIO_VOLUME:
+                b.put((byte) 164);
+                b.put((byte) getInt(e, "volume", 0));
+                break;
+            case COMMAND_CHANGE_CHILD_LOCATION:
+                b.put((byte) 165);
+                b.putShort((short) getCommandRef(e, "parent_id"));
+                b.putShort((short) getCommandRef(e, "child_id"));
+                b.put((byte) (getInt(e, "d_pos_x", 0) + 127));
+                b.put((byte) (getInt(e, "d_pos_y", 0) + 127));
+                break;
+            case COMMAND_CHANGE_SIZE:
+                b.put((byte) 166);
+                b.putShort((short) getCommandRef(e, "object_id"));
+                b.putShort((short) getInt(e, WIDTH, 0));
+                b.putShort((short) getInt(e, HEIGHT, 0));
+                break;
+            case COMMAND_CHANGE_BACKGROUND_COLOUR:
+                b.put((byte) 167);
+                b.putShort((short) getCommandRef(e, "object_id"));
+                b.put((byte) getColour(e, BACKGROUND_COLOUR));
+                break;
+            case COMMAND_CHANGE_NUMERIC_VALUE:
+                b.put((byte) 168);
+                b.putShort((short) getCommandRef(e, "object_id"));
+                b.put((byte) 0xFF);
+                b.putInt(getInt(e, VALUE, 0));
+                break;
+            case COMMAND_CHANGE_END_POINT:
+                b.put((byte) 169);
+                b.putShort((short) getCommandRef(e, "object_id"));
+                b.putShort((short) getInt(e, WIDTH, 0));
+                b.putShort((short) getInt(e, HEIGHT, 0));
+                b.put((byte) getEnum(e, LINE_DIRECTION, DIRECTIONS, 0));
+                break;
+            case COMMAND_CHANGE_FONT_ATTRIBUTES:
+                b.put((byte) 170);
+                b.putShort((short) getCommandRef(e, "object_id"));
+                b.put((byte) getColour(e, FONT_COLOUR));
+                b.put((byte) getFontSize(e, FONT_SIZE));
+                b.put((byte) getFontType(e, FONT_TYPE));
+                b.put((byte) getOptions(e, FONT_STYLE, FONT_STYLES));
+                break;
+            case COMMAND_CHANGE_LINE_ATTRIBUTES:
+                b.put((byte) 171);
+                b.putShort((short) getCommandRef(e, "object_id"));
+                b.put((byte) getColour(e, LINE_COLOUR));
+                b.put((byte) getInt(e, LINE_WIDTH, 1));
+                b.putShort((short) getLineArt(e, LINE_ART));
+                break;
+            case COMMAND_CHANGE_FILL_ATTRIBUTES:
+                b.put((byte) 172);
+                b.putShort((short) getCommandRef(e, "object_id"));
+                b.put((byte) getEnum(e, FILL_TYPE, FILL_TYPES, 0));
+                b.put((byte) getColour(e, FILL_COLOUR));
+                b.putShort((short) getCommandRef(e, FILL_PATTERN));
+                break;
+            case COMMAND_CHANGE_ACTIVE_MASK:
+                b.put((byte) 173);
+                b.putShort((short) getCommandRef(e, "parent_id"));
+                b.putShort((short) getCommandRef(e, "child_id"));
+                break;
+            case COMMAND_CHANGE_SOFT_KEY_MASK:
+                b.put((byte) 174);
+                b.put((byte) getEnum(e, "mask_type", MASK_TYPES, 1));
+                b.putShort((short) getCommandRef(e, "parent_id"));
+                b.putShort((short) getCommandRef(e, "child_id"));
+                break;
+            case COMMAND_CHANGE_ATTRIBUTE:
+                b.put((byte) 175);
+                b.putShort((short) getCommandRef(e, "object_id"));
+                b.put((byte) getInt(e, "attribute_id", 1));
+                b.putInt(getInt(e, VALUE, 0));
+                break;
+            case COMMAND_CHANGE_PRIORITY:
+                b.put((byte) 176);
+                b.putShort((short) getCommandRef(e, "object_id"));
+                b.put((byte) getEnum(e, PRIORITY, PRIORITIES, 0));
+                break;
+            case COMMAND_CHANGE_LIST_ITEM:
+                b.put((byte) 177);
+                b.putShort((short) getCommandRef(e, "parent_id"));
+                b.put((byte) getInt(e, "list_index", 0));
+                b.putShort((short) getCommandRef(e, "child_id"));
+                break;
+            case COMMAND_CHANGE_STRING_VALUE: {
+                // the only command without padding
+                byte[] value = overlay.getAttribute(e, VALUE).getBytes(StandardCharsets.ISO_8859_1);
+                b.put((byte) 179);
+                b.putShort((short) getCommandRef(e, "object_id"));
+                b.putShort((short) value.length);
+                b.put(value);
+                return;
+            }
+            case COMMAND_CHANGE_CHILD_POSITION:
+                // 9 bytes
+                b.put((byte) 180);
+                b.putShort((short) getCommandRef(e, "parent_id"));
+                b.putShort((short) getCommandRef(e, "child_id"));
+                b.putShort((short) getInt(e, "c_pos_x", 0));
+                b.putShort((short) getInt(e, "c_pos_y", 0));
+                return;
+            default:
+                return; // not a command
+        }
+        while (b.position() - start < 8) {
+            b.put((byte) 0xFF);
+        }
+    }
+
+    //------------------------------------------------------------//
+
+    /**
+     * Sorts the children by their roles. An empty role is the first
+     * possible role that is still free (see AttributeTable.findPossibleRoles).
+     */
+    private Children getChildren(Element e) {
+        Children c = new Children();
+        String type = e.getNodeName();
+        for (Element child : overlay.getChildElementList(e)) {
+            String name = child.getNodeName();
+            Element object;
+            if (name.equals(INCLUDE_OBJECT)) {
+                object = nameMap.get(overlay.getAttribute(child, NAME));
+                if (object == null) {
+                    continue; // reported by the include_object id stage
+                }
+            }
+            else if (Utils.equals(name, OBJECTS)) {
+                object = child;
+            }
+            else if (name.equals(POINT)) {
+                c.points.add(child);
+                continue;
+            }
+            else if (name.equals(LANGUAGE)) {
+                c.languages.add(child);
+                continue;
+            }
+            else {
+                continue;
+            }
+
+            String role = overlay.getAttribute(child, ROLE);
+            if (role.isEmpty()) {
+                for (String r : AttributeTable.findPossibleRoles(type, object.getNodeName())) {
+                    if (!c.roles.containsKey(r)) {
+                        role = r;
+                        break;
+                    }
+                }
+            }
+            int event = Utils.indexEquals(role, EVENTS);
+            if (event >= 0) {
+                c.events.add(event + 1);
+                c.macros.add(object);
+            }
+            else if (role.isEmpty()) {
+                c.links.add(child);
+                c.objects.add(object);
+            }
+            else if (!c.roles.containsKey(role)) {
+                c.roles.put(role, object);
+            }
+        }
+        return c;
+    }
+
+    private int getId(Element object) {
+        String id = overlay.getAttribute(object, "id");
+        try {
+            return Integer.parseInt(id);
+        }
+        catch (NumberFormatException ex) {
+            error(object, "no id");
+            return NULL_ID;
+        }
+    }
+
+    /**
+     * Gets the object of a command attribute: an include_object or object
+     * with the attribute as the role, or the attribute itself as an id
+     * or a name.
+     */
+    private int getCommandRef(Element command, String attr) {
+        for (Element child : overlay.getChildElementList(command)) {
+            if (overlay.getAttribute(child, ROLE).equals(attr)) {
+                Element object = child.getNodeName().equals(INCLUDE_OBJECT) ?
+                        nameMap.get(overlay.getAttribute(child, NAME)) : child;
+                return object == null ? NULL_ID : getId(object);
+            }
+        }
+        String value = overlay.getAttribute(command, attr);
+        if (value.isEmpty()) {
+            return NULL_ID;
+        }
+        Element object = nameMap.get(value);
+        if (object != null) {
+            return getId(object);
+        }
+        return getInt(command, attr, NULL_ID);
+    }
+
+    /**
+     * Gets the length of a string, at least the length of its value.
+     */
+    private int getStringLength(Element e, String attr, int max) {
+        int length = Math.max(getInt(e, LENGTH, 0), overlay.getAttribute(e, attr).length());
+        return Math.min(length, max);
+    }
+
+    private int getInt(Element e, String attr, int def) {
+        String value = overlay.getAttribute(e, attr).trim();
+        if (value.isEmpty()) {
+            return def;
+        }
+        try {
+            // unsigned 32 bit values do not fit in an int
+            return (int) Long.parseLong(value);
+        }
+        catch (NumberFormatException ex) {
+            error(e, attr + " \"" + value + "\" is not a number");
+            return def;
+        }
+    }
+
+    private float getFloat(Element e, String attr, float def) {
+        String value = overlay.getAttribute(e, attr).trim();
+        if (value.isEmpty()) {
+            return def;
+        }
+        try {
+            return Float.parseFloat(value);
+        }
+        catch (NumberFormatException ex) {
+            error(e, attr + " \"" + value + "\" is not a number");
+            return def;
+        }
+    }
+
+    private boolean getBoolean(Element e, String attr, boolean def) {
+        String value = overlay.getAttribute(e, attr);
+        return value.isEmpty() ? def : Utils.equals(value, TRUE_VALUES);
+    }
+
+    private int getColour(Element e, String attr) {
+        return ColorPalette.getIndex(overlay.getAttribute(e, attr));
+    }
+
+    private int getEnum(Element e, String attr, String[] names, int def) {
+        String value = overlay.getAttribute(e, attr);
+        if (value.isEmpty()) {
+            return def;
+        }
+        int i = Utils.indexEquals(value, names);
+        return i >= 0 ? i : getInt(e, attr, def);
+    }
+
+    private int getOptions(Element e, String attr, String[] names) {
+        String value = overlay.getAttribute(e, attr);
+        if (!value.isEmpty() && Character.isDigit(value.charAt(0))) {
+            return getInt(e, attr, 0);
+        }
+        int bits = 0;
+        for (int i = 0; i < names.length; i++) {
+            if (names[i] != null && Utils.optionsContain(value, names[i])) {
+                bits |= 1 << i;
+            }
+        }
+        return bits;
+    }
+
+    private int getFontSize(Element e, String attr) {
+        String value = overlay.getAttribute(e, attr);
+        if (value.isEmpty()) {
+            return 0;
+        }
+        try {
+            return BitmapFont.nameToIndex(value);
+        }
+        catch (RuntimeException ex) {
+            return getInt(e, attr, 0);
+        }
+    }
+
+    private int getFontType(Element e, String attr) {
+        String value = overlay.getAttribute(e, attr);
+        return value.equals("proprietary") ? 255 : getEnum(e, attr, FONT_TYPES, 0);
+    }
+
+    /**
+     * Line art is a string of 16 bits, the first one is the most
+     * significant.
+     */
+    private int getLineArt(Element e, String attr) {
+        String value = overlay.getAttribute(e, attr);
+        if (value.isEmpty()) {
+            return 0xFFFF;
+        }
+        if (value.length() == 16) {
+            try {
+                return Integer.parseInt(value, 2);
+            }
+            catch (NumberFormatException ex) {
+                // a number
+            }
+        }
+        return getInt(e, attr, 0xFFFF);
+    }
+
+    private void error(Element e, String message) {
+        out.println("ERROR: " + Tools.getPath(e) + ": " + message);
+    }
+
+    //------------------------------------------------------------//
+
+    private void putRef(Children c, String role) throws IOException {
+        Element object = c.roles.get(role);
+        putShort(object == null ? NULL_ID : getId(object));
+    }
+
+    /**
+     * Writes the object list, with positions when the object has them.
+     * The position is on the include_object or on the nested object.
+     */
+    private void putObjects(Children c, boolean positions) throws IOException {
+        for (int i = 0, n = c.objects.size(); i < n; i++) {
+            putShort(getId(c.objects.get(i)));
+            if (positions) {
+                Element link = c.links.get(i);
+                int x = getInt(link, POS_X, 0);
+                int y = getInt(link, POS_Y, 0);
+                Element font = nameMap.get(overlay.getAttribute(link, BLOCK_FONT));
+                if (font != null) {
+                    try {
+                        Dimension dim = BitmapFont.nameToDimension(
+                                overlay.getAttribute(font, FONT_SIZE));
+                        x += getInt(link, BLOCK_COL, 0) * dim.width;
+                        y += getInt(link, BLOCK_ROW, 0) * dim.height;
+                    }
+                    catch (RuntimeException ex) {
+                        error(font, "unknown font size");
+                    }
+                }
+                putShort(x);
+                putShort(y);
+            }
+        }
+    }
+
+    /**
+     * Writes the event, macro id pairs of the object.
+     */
+    private void putMacros(Children c) throws IOException {
+        for (int i = 0, n = c.macros.size(); i < n; i++) {
+            int id = getId(c.macros.get(i));
+            if (id > 0xFF) {
+                error(c.macros.get(i), "macro id " + id + " is over 255");
+            }
+            putByte(c.events.get(i));
+            putByte(id);
+        }
+    }
+
+    private void putCount(Element e, int count) throws IOException {
+        if (count > 0xFF) {
+            error(e, "more than 255 objects, macros or points");
+        }
+        putByte(count);
+    }
+
+    /**
+     * Writes the string in ISO 8859-1 padded with spaces to the length.
+     */
+    private void putString(String value, int length) throws IOException {
+        byte[] bytes = new byte[length];
+        byte[] chars = value.getBytes(StandardCharsets.ISO_8859_1);
+        for (int i = 0; i < length; i++) {
+            bytes[i] = i < chars.length ? chars[i] : (byte) ' ';
+        }
+        putBytes(bytes);
+    }
+
+    private void putByte(int value) throws IOException {
+        if (buffer.remaining() < 1) {
+            flush();
+        }
+        buffer.put((byte) value);
+    }
+
+    private void putShort(int value) throws IOException {
+        if (buffer.remaining() < 2) {
+            flush();
+        }
+        buffer.putShort((short) value);
+    }
+
+    private void putInt(int value) throws IOException {
+        if (buffer.remaining() < 4) {
+            flush();
+        }
+        buffer.putInt(value);
+    }
+
+    private void putFloat(float value) throws IOException {
+        if (buffer.remaining() < 4) {
+            flush();
+        }
+        buffer.putFloat(value);
+    }
+
+    private void putBytes(byte[] bytes) throws IOException {
+        putBytes(ByteBuffer.wrap(bytes));
+    }
+
+    /**
+     * Copies the bytes to the buffer, bytes that do not fit in the buffer
+     * are written straight to the channel.
+     */
+    private void putBytes(ByteBuffer bytes) throws IOException {
+        if (bytes.remaining() > buffer.remaining()) {
+            flush();
+            if (bytes.remaining() > buffer.capacity()) {
+                size += bytes.remaining();
+                while (bytes.hasRemaining()) {
+                    channel.write(bytes);
+                }
+                return;
+            }
+        }
+        buffer.put(bytes);
+    }
+
+    private void flush() throws IOException {
+        buffer.flip();
+        size += buffer.remaining();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+}
@@ -66,6 +66,7 @@ import javax.swing.JMenuItem;
 import javax.swing.JOptionPane;
 import javax.swing.JRadioButtonMenuItem;
 import javax.swing.JScrollPane;
+import javax.swing.JTable;
 import javax.swing.JTextArea;
 import javax.swing.JToolBar;
 import javax.swing.SwingUtilities;
@@ -158,10 +159,17 @@ public class Main {
     private final View atView = new View("Attribute Table", Icons.VIEW_ICON, new JScrollPane(attributetable));
     private final View xmlView = new View("XML Code", Icons.VIEW_ICON, docScroll);
     private final View msgView = new View("Messages", Icons.VIEW_ICON, msgScroll);
+    
+    private final ValidationTableModel validationModel = new ValidationTableModel();
+    private final JTable validationTable = new JTable(validationModel);
+    private final View valView = new View("Validation", Icons.VIEW_ICON, new JScrollPane(validationTable));
+    private final SizeTableModel sizeModel = new SizeTableModel();
+    private final JTable sizeTable = new JTable(sizeModel);
+    private final View sizeView = new View("Pool Size", Icons.VIEW_ICON, new JScrollPane(sizeTable));
     private SingleDOM libdoc;
     
     /** An array of the static views */
-    private final View[] views = new View[] {ovView, atView, xmlView, msgView};
+    private final View[] views = new View[] {ovView, atView, xmlView, msgView, valView, sizeView};
     
     /** Contains all the static views */
     private final ViewMap viewMap = new ViewMap(views);
@@ -323,6 +331,8 @@ public class Main {
                 SingleDOM doc = multidom.getActiveDocument();
                 objectview.setModel(doc.getTreeModel());
                 tablemodel.setDocument(doc.actual());
+                validationModel.setDocument(doc.actual());
+                sizeModel.setDocument(doc.actual());
                 int len = plaindoc.getLength();                
                 try {                                                        
                     String text = Tools.writeToString(doc.actual());
@@ -393,6 +403,41 @@ public class Main {
             }
         });
         
+        // this listener is called when the user double clicks a problem 
+        // in the validation view
+        validationTable.addMouseListener(new MouseAdapter() {
+            @Override
+            public void mouseClicked(MouseEvent e) {
+                int row = validationTable.getSelectedRow();
+                SingleDOM doc = multidom.getActiveDocument();
+                if (e.getClickCount() != 2 || row < 0 || doc == null) {
+                    return;
+                }
+                String path = validationModel.getDiagnostic(row).path;
+                TreePath treePath = doc.getTreeModel().findPathByPath(path);
+                if (treePath != null) {
+                    multidom.setActivePath(treePath);
+                }
+            }
+        });
+        
+        // the same for the objects in the pool size view
+        sizeTable.addMouseListener(new MouseAdapter() {
+            @Override
+            public void mouseClicked(MouseEvent e) {
+                int row = sizeTable.getSelectedRow();
+                SingleDOM doc = multidom.getActiveDocument();
+                if (e.getClickCount() != 2 || row < 0 || doc == null) {
+                    return;
+                }
+                String path = sizeModel.getSize(row).path;
+                TreePath treePath = doc.getTreeModel().findPathByPath(path);
+                if (treePath != null) {
+                    multidom.setActivePath(treePath);
+                }
+            }
+        });
+        
         docArea.setDragEnabled(true);
         
         @SuppressWarnings("unchecked")
@@ -576,17 +621,17 @@ public class Main {
             rootWindow.setWindow(
                 new SplitWindow(true, 0.6f,
                 new SplitWindow(false, 0.7f, new TabWindow(ovView),
-                    new TabWindow(new View[] {xmlView, msgView})),
+                    new TabWindow(new View[] {xmlView, msgView, valView})),
                 new SplitWindow(false, 0.5f,
                     new SplitWindow(true, 0.5f, new TabWindow(pool),
-                        new TabWindow(lib)), new TabWindow(atView))));
+                        new TabWindow(lib)), new TabWindow(new View[] {atView, sizeView}))));
         } catch (Exception e) { 
             e.printStackTrace(); 
             rootWindow.setWindow(
                 new SplitWindow(true, 0.6f,
                 new SplitWindow(false, 0.7f, new TabWindow(ovView),
-                    new TabWindow(new View[] {xmlView, msgView})),
-                new TabWindow(atView)));
+                    new TabWindow(new View[] {xmlView, msgView, valView})),
+                new TabWindow(new View[] {atView, sizeView})));
         }
         /*
         WindowBar windowBar = rootWindow.getWindowBar(Direction.DOWN);
@@ -747,10 +792,7 @@ public class Main {
                 if (node != null) {
                     JFrame wizardFrame = new JFrame("Meter Wizard");
                     MeterWizard wizard = new MeterWizard();
-                    String name = Tools.findFreeName("meter_wiz", 
-                            Tools.createNameMap(node.getModel().getDocument(), true));
-                        // node.getModel().getNameMap());
-                    MeterGenerator generator = new MeterGenerator(wizard, node, name);
+                    MeterGenerator generator = new MeterGenerator(wizard, node, "meter_wiz");
                     wizardFrame.getContentPane().add(wizard);
                     wizardFrame.pack();
                     wizardFrame.setLocationRelativeTo(frame);
@@ -766,10 +808,7 @@ public class Main {
                 if (node != null) {
                     JFrame wizardFrame = new JFrame("Table Wizard");
                     TableWizard wizard = new TableWizard();
-                    String name = Tools.findFreeName("table_wiz", 
-                            Tools.createNameMap(node.getModel().getDocument(), true));
-                        // node.getModel().getNameMap());
-                    TableGenerator generator = new TableGenerator(wizard, node, name);
+                    TableGenerator generator = new TableGenerator(wizard, node, "table_wiz");
                     wizardFrame.getContentPane().add(wizard);
                     wizardFrame.pack();
                     wizardFrame.setLocationRelativeTo(frame);
@@ -785,10 +824,7 @@ public class Main {
                 if (node != null) {
                     JFrame wizardFrame = new JFrame("Trend Wizard");
                     TrendWizard wizard = new TrendWizard();
-                    String name = Tools.findFreeName("trend_wiz", 
-                            Tools.createNameMap(node.getModel().getDocument(), true));
-                        // node.getModel().getNameMap());
-                    TrendGenerator generator = new TrendGenerator(wizard, node, name);
+                    TrendGenerator generator = new TrendGenerator(wizard, node, "trend_wiz");
                     wizardFrame.getContentPane().add(wizard);
                     wizardFrame.pack();
                     wizardFrame.setLocationRelativeTo(frame);
@@ -804,10 +840,7 @@ public class Main {
                 if (node != null) {
                     JFrame wizardFrame = new JFrame("Line Trend Wizard");
                     LineTrendWizard wizard = new LineTrendWizard();
-                    String name = Tools.findFreeName("line_trend_wiz", 
-                            Tools.createNameMap(node.getModel().getDocument(), true));
-                        // node.getModel().getNameMap());
-                    LineTrendGenerator generator = new LineTrendGenerator(wizard, node, name);
+                    LineTrendGenerator generator = new LineTrendGenerator(wizard, node, "line_trend_wiz");
                     wizardFrame.getContentPane().add(wizard);
                     wizardFrame.pack();
                     wizardFrame.setLocationRelativeTo(frame);
@@ -948,17 +981,42 @@ public class Main {
                             "Validate Error", JOptionPane.ERROR_MESSAGE);
                     return;
                 }
-                try {
-                    if (Tools.validateDocument(msgOutput, doc.actual())) {
-                        System.out.println("No errors detected");
-                    }
-                    else {
-                        System.out.println("Pool has errors");
-                    }
-                } 
-                catch (Exception ex) {
-                    ex.printStackTrace();
-                }                    
+                // the document is validated in the background while it is
+                // edited, this only checks everything again and shows the
+                // results
+                validationModel.setDocument(doc.actual());
+                validationModel.revalidate();
+                if (valView.getRootWindow() != null) {
+                    valView.restoreFocus();
+                }
+                else {
+                    DockingUtil.addWindow(valView, rootWindow);
+                }
+            }
+        });
+        
+        layoutMenu.add("Pool Size").addActionListener(new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                
+                SingleDOM doc = multidom.getActiveDocument();
+                if (doc == null) {
+                    JOptionPane.showMessageDialog(frame, 
+                            "No active document selected!", 
+                            "Pool Size Error", JOptionPane.ERROR_MESSAGE);
+                    return;
+                }
+                // the sizes are kept up to date while the document is
+                // edited, this counts everything again (the image files
+                // may have changed) and shows the results
+                sizeModel.setDocument(doc.actual());
+                sizeModel.recount();
+                if (sizeView.getRootWindow() != null) {
+                    sizeView.restoreFocus();
+                }
+                else {
+                    DockingUtil.addWindow(sizeView, rootWindow);
+                }
             }
         });
         
@@ -1115,6 +1173,52 @@ public class Main {
             }            
         });
         
+        layoutMenu.add("Export to IOP...").addActionListener(new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                
+                SingleDOM doc = multidom.getActiveDocument();
+                if (doc == null) {
+                    JOptionPane.showMessageDialog(frame, 
+                            "No active document to export!", 
+                            "Export Error", JOptionPane.ERROR_MESSAGE);
+                    return;
+                }
+                
+                String testName = doc.getName().replace(".xml", ".iop");
+                JFileChooser fc = FileTools.getNewFileChooser();
+                fc.setSelectedFile(new File(testName));
+                
+                // show dialog
+                int rv = fc.showSaveDialog(frame);                
+                if (rv != JFileChooser.APPROVE_OPTION) {
+                    return;
+                }
+                
+                File file = fc.getSelectedFile();
+                if (file.isDirectory()) { // this really should not happen?
+                    JOptionPane.showMessageDialog(frame, 
+                            "Cannot save document as a directory!", 
+                            "Save Error", JOptionPane.ERROR_MESSAGE);
+                    return;
+                }
+                
+                // if file already exist prompt user
+                if (file.exists() && JOptionPane.showConfirmDialog(frame,
+                        "Do you want to overwrite?", "Save...", JOptionPane.YES_NO_OPTION) != 0) {
+                    return;
+                }
+                try {
+                    Tools.exportToIOP(msgOutput, file.getAbsolutePath(), doc.actual());
+                } catch (Exception ex) {
+                    JOptionPane.showMessageDialog(frame,
+                            ex.getMessage(),
+                            "Export Error", JOptionPane.ERROR_MESSAGE);
+                    ex.printStackTrace();
+                }
+            }            
+        });
+        
         layoutMenu.addSeparator();
         
         layoutMenu.add("Exit").addActionListener(new ActionListener() {
@@ -0,0 +1,289 @@
+/*
+ * Copyright (C) 2019 Automation technology laboratory,
+ * Helsinki University of Technology
+ *
+ * Visit automation.tkk.fi for information about the automation
+ * technology laboratory.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 3
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston,
+ * MA 02111-1307, USA.
+ */
+package pooledit;
+
+import java.awt.Dimension;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+
+/**
+ * Converts image files to the embedded image format (see
+ * PictureConverter.convertToString). The conversions run on the common
+ * fork-join pool and the results are cached in ~/.pooledit/pictures by
+ * the SHA-256 hash of the file content, so an image is converted again
+ * only when the file changes.
+ *
+ * @author mohman
+ */
+class PictureCache {
+
+    /**
+     * Format of the cached data: 8 bit palette indices without
+     * transparency or colour reduction. Change this if the conversion
+     * changes, old entries are then ignored.
+     */
+    private static final String FORMAT = "8bit";
+
+    private static final File DIRECTORY = new File(System.getProperty("user.home"),
+            ".pooledit" + File.separator + "pictures");
+
+    /**
+     * Converted image.
+     */
+    static class Picture {
+        final int width;
+        final int height;
+        final String data;
+
+        Picture(int width, int height, String data) {
+            this.width = width;
+            this.height = height;
+            this.data = data;
+        }
+    }
+
+    /** file -> conversion, a file used by many pictures is converted once */
+    private final Map<File, ForkJoinTask<Picture>> tasks = new HashMap<>();
+    private final AtomicInteger hits = new AtomicInteger();
+
+    /**
+     * Starts converting the image file.
+     * @param file
+     * @return the conversion, see get
+     */
+    ForkJoinTask<Picture> convert(final File file) {
+        ForkJoinTask<Picture> task = tasks.get(file);
+        if (task == null) {
+            task = ForkJoinPool.commonPool().submit(new Callable<Picture>() {
+                @Override
+                public Picture call() throws IOException {
+                    return load(file);
+                }
+            });
+            tasks.put(file, task);
+        }
+        return task;
+    }
+
+    /**
+     * Waits for the conversion and throws its exception if it failed.
+     * @param task
+     * @return
+     * @throws IOException
+     */
+    static Picture get(ForkJoinTask<Picture> task) throws IOException {
+        try {
+            return task.get();
+        }
+        catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IOException(ex.getMessage());
+        }
+        catch (ExecutionException ex) {
+            // the fork-join pool wraps the exception of the task (more
+            // than once if it was thrown in another thread)
+            Throwable cause = ex.getCause();
+            for (Throwable t = cause; t != null; t = t.getCause()) {
+                if (t instanceof IOException) {
+                    throw (IOException) t;
+                }
+                cause = t;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IOException(cause);
+        }
+    }
+
+    /**
+     * Gets the number of image files converted with this cache.
+     * @return
+     */
+    int getFileCount() {
+        return tasks.size();
+    }
+
+    /**
+     * Gets the number of image files found in the cache.
+     * @return
+     */
+    int getHitCount() {
+        return hits.get();
+    }
+
+    /**
+     * Reads the size of the image from the header of the file.
+     * @param file
+     * @return
+     * @throws IOException if the file can not be read or its format is
+     *                     unknown
+     */
+    static Dimension readSize(File file) throws IOException {
+        try (ImageInputStream in = ImageIO.createImageInputStream(file)) {
+            Iterator<ImageReader> readers = in == null ?
+                    Collections.<ImageReader>emptyIterator() : ImageIO.getImageReaders(in);
+            if (!readers.hasNext()) {
+                throw new IOException("Unknown image format " + file);
+            }
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(in);
+                return new Dimension(reader.getWidth(0), reader.getHeight(0));
+            }
+            finally {
+                reader.dispose();
+            }
+        }
+    }
+
+    //------------------------------------------------------------//
+
+    private Picture load(File file) throws IOException {
+        if (!file.canRead()) {
+            // the same message as ImageIO.read(file)
+            throw new IOException("Can't read input file! " + file);
+        }
+        byte[] content = Files.readAllBytes(file.toPath());
+        String hash = hash(content);
+        Picture picture = read(hash);
+        if (picture != null) {
+            hits.incrementAndGet();
+            return picture;
+        }
+
+        BufferedImage image;
+        try {
+            image = ImageIO.read(new ByteArrayInputStream(content));
+        }
+        catch (IOException ex) {
+            throw new IOException(ex.getMessage() + " " + file);
+        }
+        if (image == null) {
+            throw new IOException("Unknown image format " + file);
+        }
+        picture = new Picture(image.getWidth(), image.getHeight(),
+                PictureConverter.convertToString(image));
+        write(hash, picture);
+        return picture;
+    }
+
+    private static String hash(byte[] content) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(content);
+            StringBuilder sb = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                sb.append(Character.forDigit((b >> 4) & 0xF, 16));
+                sb.append(Character.forDigit(b & 0xF, 16));
+            }
+            return sb.toString();
+        }
+        catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException(ex); // every JRE has SHA-256
+        }
+    }
+
+    private static File getEntry(String hash) {
+        return new File(DIRECTORY, hash + "-" + FORMAT);
+    }
+
+    /**
+     * Reads a cache entry: "width height" on the first line and the data
+     * on the second.
+     */
+    private static Picture read(String hash) {
+        File entry = getEntry(hash);
+        if (!entry.isFile()) {
+            return null;
+        }
+        try {
+            String s = new String(Files.readAllBytes(entry.toPath()), StandardCharsets.US_ASCII);
+            int eol = s.indexOf('\n');
+            String[] size = s.substring(0, eol).split(" ");
+            int width = Integer.parseInt(size[0]);
+            int height = Integer.parseInt(size[1]);
+            String data = s.substring(eol + 1);
+            if (data.length() != (width * height * 4 + 2) / 3) {
+                return null; // truncated
+            }
+            return new Picture(width, height, data);
+        }
+        catch (IOException | RuntimeException ex) {
+            return null; // convert again
+        }
+    }
+
+    private static void write(String hash, Picture picture) {
+        Path tmp = null;
+        try {
+            Files.createDirectories(DIRECTORY.toPath());
+            tmp = Files.createTempFile(DIRECTORY.toPath(), ".", ".tmp");
+            Files.write(tmp, (picture.width + " " + picture.height + "\n" +
+                    picture.data).getBytes(StandardCharsets.US_ASCII));
+            Path target = getEntry(hash).toPath();
+            try {
+                Files.move(tmp, target, StandardCopyOption.ATOMIC_MOVE,
+                        StandardCopyOption.REPLACE_EXISTING);
+            }
+            catch (AtomicMoveNotSupportedException ex) {
+                Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING);
+            }
+        }
+        catch (IOException ex) {
+            // the picture is converted again next time
+            System.err.println("Can't cache picture: " + ex.getMessage());
+            if (tmp != null) {
+                try {
+                    Files.deleteIfExists(tmp);
+                }
+                catch (IOException ex2) {
+                    // ignore
+                }
+            }
+        }
+    }
+}
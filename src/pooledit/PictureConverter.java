@@ -25,6 +25,11 @@ package pooledit;
 import color.ColorPalette;
 import java.awt.Color;
 import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.ComponentColorModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.IndexColorModel;
+import java.awt.image.WritableRaster;
 
 /**
  *
@@ -38,26 +43,121 @@ public class PictureConverter {
     private PictureConverter() {
     }
     
+    private static final char[] BASE64 =
+            "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".toCharArray();
+    
     /**
      * Converts the specified image to base64 encoded string, which is the
-     * embedded XML image format.
+     * embedded XML image format. The palette indices are computed a row
+     * at a time and encoded right away (see convertToBase64).
      * @param image
      * @return 
      */
     public static String convertToString(BufferedImage image) {
         int width = image.getWidth();
         int height = image.getHeight();
-        int pictureData[] = new int[width * height];
+        char[] base64 = new char[(width * height * 4 + 2) / 3];
+        int[] row = new int[width];
+        RowReader reader = createRowReader(image);
         
+        int bits = 0; // up to three bytes that are not encoded yet
+        int n = 0;
+        int pos = 0;
         for (int y = 0; y < height; y++) {
+            reader.read(y, row);
             for (int x = 0; x < width; x++) {
-                pictureData[y * width + x] = ColorPalette.getPaletteIndex(image.getRGB(x, y)); 
+                bits = (bits << 8) | row[x];
+                if (++n == 3) {
+                    base64[pos++] = BASE64[bits >> 18];
+                    base64[pos++] = BASE64[(bits >> 12) & 0x3F];
+                    base64[pos++] = BASE64[(bits >> 6) & 0x3F];
+                    base64[pos++] = BASE64[bits & 0x3F];
+                    bits = 0;
+                    n = 0;
+                }
             }
         }
-        char[] base64 = convertToBase64(pictureData);
-        
+        // pad with zeros
+        if (n == 1) {
+            base64[pos++] = BASE64[bits >> 2];
+            base64[pos++] = BASE64[(bits & 0x03) << 4];
+        }
+        else if (n == 2) {
+            base64[pos++] = BASE64[bits >> 10];
+            base64[pos++] = BASE64[(bits >> 4) & 0x3F];
+            base64[pos++] = BASE64[(bits & 0x0F) << 2];
+        }
         return new String(base64);
-    }    
+    }
+    
+    /**
+     * Reads the palette indices of an image row.
+     */
+    private interface RowReader {
+        void read(int y, int[] indices);
+    }
+    
+    /**
+     * Creates a row reader that gives the same indices as
+     * ColorPalette.getPaletteIndex(image.getRGB(x, y)). Indexed images
+     * and 8 bit sRGB images are read from the raster, other images with
+     * getRGB.
+     */
+    private static RowReader createRowReader(final BufferedImage image) {
+        final int width = image.getWidth();
+        final WritableRaster raster = image.getRaster();
+        ColorModel cm = image.getColorModel();
+        
+        int sampleSize = raster.getSampleModel().getSampleSize(0);
+        if (cm instanceof IndexColorModel && raster.getNumBands() == 1 &&
+                sampleSize <= 8) {
+            // the color of each pixel value is looked up once
+            IndexColorModel icm = (IndexColorModel) cm;
+            final int[] palette = new int[1 << sampleSize];
+            for (int i = 0; i < palette.length; i++) {
+                palette[i] = ColorPalette.getPaletteIndex(icm.getRGB(i));
+            }
+            return new RowReader() {
+                @Override
+                public void read(int y, int[] indices) {
+                    raster.getSamples(0, y, width, 1, 0, indices);
+                    for (int x = 0; x < width; x++) {
+                        indices[x] = palette[indices[x]];
+                    }
+                }
+            };
+        }
+        
+        if (cm instanceof ComponentColorModel && cm.getColorSpace().isCS_sRGB() &&
+                cm.getTransferType() == DataBuffer.TYPE_BYTE &&
+                !cm.isAlphaPremultiplied() && cm.getNumColorComponents() == 3 &&
+                raster.getNumBands() == cm.getNumComponents() &&
+                cm.getPixelSize() == 8 * cm.getNumComponents()) {
+            // the samples are r, g, b (and alpha) of each pixel
+            final int bands = raster.getNumBands();
+            final byte[] samples = new byte[width * bands];
+            return new RowReader() {
+                @Override
+                public void read(int y, int[] indices) {
+                    raster.getDataElements(0, y, width, 1, samples);
+                    for (int x = 0, i = 0; x < width; x++, i += bands) {
+                        indices[x] = ColorPalette.getPaletteIndex(samples[i],
+                                samples[i + 1], samples[i + 2]);
+                    }
+                }
+            };
+        }
+        
+        return new RowReader() {
+            @Override
+            public void read(int y, int[] indices) {
+                image.getRGB(0, y, width, 1, indices, 0, width);
+                for (int x = 0; x < width; x++) {
+                    indices[x] = ColorPalette.getPaletteIndex(indices[x]);
+                }
+            }
+        };
+    }
     
     public static BufferedImage applyTransparencyAndReduceColors(BufferedImage image, 
             Color transparencyColor, boolean transparent, 
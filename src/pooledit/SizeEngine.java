@@ -0,0 +1,466 @@
+/*
+ * Copyright (C) 2019 Automation technology laboratory,
+ * Helsinki University of Technology
+ *
+ * Visit automation.tkk.fi for information about the automation
+ * technology laboratory.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 3
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston,
+ * MA 02111-1307, USA.
+ */
+package pooledit;
+
+import static pooledit.Definitions.*;
+import java.awt.Dimension;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import javax.swing.SwingUtilities;
+import javax.swing.event.ChangeEvent;
+import javax.swing.event.ChangeListener;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+import org.w3c.dom.events.Event;
+import org.w3c.dom.events.EventListener;
+import org.w3c.dom.events.EventTarget;
+import org.w3c.dom.events.MutationEvent;
+import treemodel.NameRegistry;
+import treemodel.ReferenceIndex;
+
+/**
+ * Keeps count of the size of a document as a binary object pool (see
+ * IOPWriter). The engine collects the objects changed by DOM mutation
+ * events and measures only them again, the sizes of the pictures and the
+ * sums of the masks are counted on a background thread and the results
+ * are published on the event dispatch thread, like in ValidationEngine.
+ * <p>
+ * There is one engine per document, it is stored as user data of the
+ * document.
+ *
+ * @author mohman
+ */
+class SizeEngine implements EventListener {
+
+    /**
+     * The size of an object, a mask or the whole pool in bytes.
+     */
+    static class Size {
+        final Element element;
+        final String path;
+        final String type;
+        /** bytes of the object itself, of all objects for the pool */
+        final long bytes;
+        /** bytes with all objects that the mask refers to, -1 for other objects */
+        final long total;
+
+        Size(Element element, String path, String type, long bytes, long total) {
+            this.element = element;
+            this.path = path;
+            this.type = type;
+            this.bytes = bytes;
+            this.total = total;
+        }
+    }
+
+    /**
+     * What the size of an object depends on. The snapshot is taken on the
+     * thread that owns the document.
+     */
+    private static class Entry {
+        final Element element;
+        final String path;
+        final String type;
+        /** bytes without the picture data */
+        final int size;
+        final List<Element> references;
+        /** image file and format of a picture */
+        final File picture;
+        final int format;
+        /** bytes with the picture data, set on the worker thread */
+        int bytes;
+
+        Entry(IOPWriter writer, Element element, String bitmapPath) {
+            this.element = element;
+            this.path = Tools.getPath(element);
+            this.type = element.getNodeName();
+            this.size = writer.getSize(element);
+            this.references = writer.getReferences(element);
+            String file = element.getAttribute(FILE);
+            if (type.equals(PICTUREGRAPHIC) && !file.isEmpty()) {
+                this.picture = new File(FileTools.joinPaths(bitmapPath, file));
+                int f = IOPWriter.getPictureFormat(element);
+                this.format = f < 0 ? 2 : f; // as in the writer
+            }
+            else {
+                this.picture = null;
+                this.format = 0;
+            }
+            this.bytes = size;
+        }
+    }
+
+    private static final String KEY = SizeEngine.class.getName();
+
+    private static final String[] MASKS = {WORKINGSET, DATAMASK, ALARMMASK, SOFTKEYMASK};
+
+    /** all engines share one thread */
+    private static final ExecutorService WORKER =
+            Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "pool size");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    /** masks by path, then the biggest objects first */
+    private static final Comparator<Size> ORDER = new Comparator<Size>() {
+        @Override
+        public int compare(Size a, Size b) {
+            boolean am = a.total >= 0;
+            boolean bm = b.total >= 0;
+            if (am != bm) {
+                return am ? -1 : 1;
+            }
+            if (!am && a.bytes != b.bytes) {
+                return a.bytes > b.bytes ? -1 : 1;
+            }
+            return a.path.compareTo(b.path);
+        }
+    };
+
+    private final Document doc;
+
+    /** changed objects, only used on the event dispatch thread */
+    private final Set<Element> dirty = new LinkedHashSet<>();
+    private boolean scheduled;
+
+    /** only used on the worker thread */
+    private final Map<Element, Entry> entries = new HashMap<>();
+    /** image file -> last modified, width, height */
+    private final Map<File, long[]> images = new HashMap<>();
+
+    /** the latest published results */
+    private List<Size> sizes = Collections.emptyList();
+    private final List<ChangeListener> listeners = new ArrayList<>();
+
+    private SizeEngine(Document doc) {
+        this.doc = doc;
+        // the indices must see the same mutations as the engine
+        NameRegistry.getInstance(doc);
+        ReferenceIndex.getInstance(doc);
+        ((EventTarget) doc).addEventListener("DOMNodeRemoved", this, false);
+        ((EventTarget) doc).addEventListener("DOMNodeInserted", this, false);
+        ((EventTarget) doc).addEventListener("DOMAttrModified", this, false);
+        recount();
+    }
+
+    /**
+     * Gets the size engine of the document, the engine is created (and
+     * the whole document measured) when it is first needed.
+     * @param doc
+     * @return
+     */
+    static SizeEngine getInstance(Document doc) {
+        SizeEngine engine = (SizeEngine) doc.getUserData(KEY);
+        if (engine == null) {
+            engine = new SizeEngine(doc);
+            doc.setUserData(KEY, engine, null);
+        }
+        return engine;
+    }
+
+    /**
+     * Measures all objects of the document again, this also notices
+     * changed image files.
+     */
+    void recount() {
+        markAll(doc.getElementsByTagName("*"));
+        schedule();
+    }
+
+    /**
+     * Gets the latest results: the pool first, then the masks sorted by
+     * path and the other objects by size.
+     * @return
+     */
+    List<Size> getSizes() {
+        return sizes;
+    }
+
+    /**
+     * Adds a listener that is notified on the event dispatch thread when
+     * new results are published.
+     * @param l
+     */
+    void addChangeListener(ChangeListener l) {
+        listeners.add(l);
+    }
+
+    /**
+     * Removes a listener.
+     * @param l
+     */
+    void removeChangeListener(ChangeListener l) {
+        listeners.remove(l);
+    }
+
+    //------------------------------------------------------------//
+
+    /**
+     * Marks the object that the node belongs to: the node itself or the
+     * closest object above it.
+     */
+    private void mark(Node node) {
+        while (node != null && node.getNodeType() == Node.ELEMENT_NODE) {
+            if (Utils.equals(node.getNodeName(), OBJECTS)) {
+                dirty.add((Element) node);
+                return;
+            }
+            node = node.getParentNode();
+        }
+    }
+
+    private void markAll(NodeList elements) {
+        for (int i = 0, n = elements.getLength(); i < n; i++) {
+            mark(elements.item(i));
+        }
+    }
+
+    /**
+     * Marks the element and all elements under it, and the objects that
+     * link to the objects among them.
+     */
+    private void markTree(Element element) {
+        mark(element);
+        markLinks(element);
+        NodeList elements = element.getElementsByTagName("*");
+        for (int i = 0, n = elements.getLength(); i < n; i++) {
+            Element e = (Element) elements.item(i);
+            mark(e);
+            markLinks(e);
+        }
+    }
+
+    private void markLinks(Element element) {
+        if (isRootObject(element)) {
+            markLinks(element.getAttribute(NAME));
+        }
+    }
+
+    /**
+     * Only root level objects are in the name map.
+     */
+    private boolean isRootObject(Element element) {
+        return element.getParentNode() == doc.getDocumentElement() &&
+                !element.getNodeName().equals(INCLUDE_OBJECT);
+    }
+
+    private void markLinks(String name) {
+        if (name != null && !name.isEmpty()) {
+            for (Element link : ReferenceIndex.getInstance(doc).getReferences(name)) {
+                mark(link);
+            }
+        }
+    }
+
+    private boolean isAttached(Node node) {
+        while (node != null && node != doc) {
+            node = node.getParentNode();
+        }
+        return node == doc;
+    }
+
+    /**
+     * Collects the changed objects. This is called while the document is
+     * being modified, removed nodes are still attached to their parents.
+     * @param evt
+     */
+    @Override
+    public void handleEvent(Event evt) {
+        if (!(evt.getTarget() instanceof Element)) {
+            return;
+        }
+        MutationEvent mev = (MutationEvent) evt;
+        Element target = (Element) mev.getTarget();
+        if (!mev.getType().equals("DOMAttrModified")) {
+            // the lists of the parent change too
+            markTree(target);
+            mark(target.getParentNode());
+        }
+        else {
+            String attr = mev.getAttrName();
+            if (attr.equals(NAME)) {
+                // the name is in the paths of the objects under it
+                markTree(target);
+                if (isRootObject(target)) {
+                    markLinks(mev.getPrevValue());
+                }
+            }
+            else {
+                mark(target);
+                if (target == doc.getDocumentElement() && attr.equals(STD_BITMAP_PATH)) {
+                    markAll(doc.getElementsByTagName(PICTUREGRAPHIC));
+                }
+                else if (attr.equals(LANGUAGE)) {
+                    // the language is part of the key in the name map
+                    markLinks(target);
+                }
+            }
+        }
+        schedule();
+    }
+
+    /**
+     * Takes the snapshot after the current edit, an edit can fire many
+     * events.
+     */
+    private void schedule() {
+        if (scheduled) {
+            return;
+        }
+        scheduled = true;
+        SwingUtilities.invokeLater(new Runnable() {
+            @Override
+            public void run() {
+                scheduled = false;
+                flush();
+            }
+        });
+    }
+
+    private void flush() {
+        Map<String, Element> nameMap = NameRegistry.getInstance(doc).getRootMap();
+        IOPWriter writer = new IOPWriter(new ExportOverlay(doc), nameMap);
+        String bitmapPath = doc.getDocumentElement().getAttribute(STD_BITMAP_PATH);
+        final List<Entry> changed = new ArrayList<>();
+        final List<Element> removed = new ArrayList<>();
+        for (Element element : dirty) {
+            if (isAttached(element)) {
+                changed.add(new Entry(writer, element, bitmapPath));
+            }
+            else {
+                removed.add(element);
+            }
+        }
+        dirty.clear();
+        final Element root = doc.getDocumentElement();
+        final String rootPath = Tools.getPath(root);
+        WORKER.execute(new Runnable() {
+            @Override
+            public void run() {
+                for (Element element : removed) {
+                    entries.remove(element);
+                }
+                for (Entry entry : changed) {
+                    if (entry.picture != null) {
+                        long[] image = getImage(entry.picture);
+                        entry.bytes += IOPWriter.getPictureDataSize(entry.format,
+                                (int) image[1], (int) image[2]);
+                    }
+                    entries.put(entry.element, entry);
+                }
+                long pool = 0;
+                List<Size> list = new ArrayList<>(entries.size() + 1);
+                for (Entry entry : entries.values()) {
+                    pool += entry.bytes;
+                    list.add(new Size(entry.element, entry.path, entry.type, entry.bytes,
+                            Utils.equals(entry.type, MASKS) ? getTotal(entry) : -1));
+                }
+                Collections.sort(list, ORDER);
+                list.add(0, new Size(root, rootPath, OBJECTPOOL + " (" +
+                        entries.size() + " objects)", pool, pool));
+                publish(Collections.unmodifiableList(list));
+            }
+        });
+    }
+
+    /**
+     * Gets the bytes of the object and of all objects that it refers to,
+     * directly or through other objects. Each object is counted once.
+     */
+    private long getTotal(Entry mask) {
+        Set<Element> visited = new HashSet<>();
+        List<Entry> stack = new ArrayList<>();
+        visited.add(mask.element);
+        stack.add(mask);
+        long total = 0;
+        while (!stack.isEmpty()) {
+            Entry entry = stack.remove(stack.size() - 1);
+            total += entry.bytes;
+            for (Element element : entry.references) {
+                Entry ref = entries.get(element);
+                if (ref != null && visited.add(element)) {
+                    stack.add(ref);
+                }
+            }
+        }
+        return total;
+    }
+
+    /**
+     * Gets the size of the image from the header of the file, the sizes
+     * are cached until the file changes. Missing and unreadable files
+     * have no pixels.
+     * @return last modified, width and height
+     */
+    private long[] getImage(File file) {
+        long modified = file.lastModified();
+        long[] image = images.get(file);
+        if (image != null && image[0] == modified) {
+            return image;
+        }
+        image = new long[] {modified, 0, 0};
+        if (file.isFile()) {
+            try {
+                Dimension size = PictureCache.readSize(file);
+                image[1] = size.width;
+                image[2] = size.height;
+            }
+            catch (IOException ex) {
+                System.err.println("Can not read the size of " + file + ": " + ex.getMessage());
+            }
+        }
+        images.put(file, image);
+        return image;
+    }
+
+    private void publish(final List<Size> list) {
+        SwingUtilities.invokeLater(new Runnable() {
+            @Override
+            public void run() {
+                sizes = list;
+                ChangeEvent e = new ChangeEvent(SizeEngine.this);
+                for (ChangeListener l : new ArrayList<>(listeners)) {
+                    l.stateChanged(e);
+                }
+            }
+        });
+    }
+}
@@ -0,0 +1,125 @@
+/*
+ * Copyright (C) 2019 Automation technology laboratory,
+ * Helsinki University of Technology
+ *
+ * Visit automation.tkk.fi for information about the automation
+ * technology laboratory.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 3
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston,
+ * MA 02111-1307, USA.
+ */
+package pooledit;
+
+import java.util.Collections;
+import java.util.List;
+import javax.swing.event.ChangeEvent;
+import javax.swing.event.ChangeListener;
+import javax.swing.table.AbstractTableModel;
+import org.w3c.dom.Document;
+
+/**
+ * Shows the sizes counted by the size engine of the active document.
+ *
+ * @author mohman
+ */
+class SizeTableModel extends AbstractTableModel implements ChangeListener {
+
+    private static final String[] COL_NAMES = {"Object", "Type", "Bytes", "With references"};
+
+    private SizeEngine engine;
+    private List<SizeEngine.Size> sizes = Collections.emptyList();
+
+    /**
+     * Sets the document.
+     * @param doc
+     */
+    void setDocument(Document doc) {
+        SizeEngine e = doc == null ? null : SizeEngine.getInstance(doc);
+        if (engine == e) {
+            return;
+        }
+        if (engine != null) {
+            engine.removeChangeListener(this);
+        }
+        engine = e;
+        if (engine != null) {
+            engine.addChangeListener(this);
+        }
+        stateChanged(null);
+    }
+
+    /**
+     * Measures the whole document again.
+     */
+    void recount() {
+        if (engine != null) {
+            engine.recount();
+        }
+    }
+
+    /**
+     * Gets the size shown on the row.
+     * @param row
+     * @return
+     */
+    SizeEngine.Size getSize(int row) {
+        return sizes.get(row);
+    }
+
+    /**
+     * Called when the engine publishes new results.
+     * @param e
+     */
+    @Override
+    public void stateChanged(ChangeEvent e) {
+        sizes = engine == null ?
+                Collections.<SizeEngine.Size>emptyList() :
+                engine.getSizes();
+        fireTableDataChanged();
+    }
+
+    //------------------------------------------//
+
+    @Override
+    public String getColumnName(int col) {
+        return COL_NAMES[col];
+    }
+
+    @Override
+    public int getColumnCount() {
+        return COL_NAMES.length;
+    }
+
+    @Override
+    public Class<?> getColumnClass(int col) {
+        return col < 2 ? String.class : Long.class;
+    }
+
+    @Override
+    public int getRowCount() {
+        return sizes.size();
+    }
+
+    @Override
+    public Object getValueAt(int row, int col) {
+        SizeEngine.Size s = sizes.get(row);
+        switch (col) {
+            case 0: return s.path;
+            case 1: return s.type;
+            case 2: return s.bytes;
+            default: return s.total < 0 ? null : s.total;
+        }
+    }
+}
@@ -24,24 +24,36 @@ package pooledit;
 
 import static pooledit.Definitions.*;
 import attributetable.AttributeTable;
-import java.io.ByteArrayOutputStream;
 import java.io.PrintStream;
 import java.util.LinkedList;
-import java.awt.image.BufferedImage;
 import java.io.BufferedWriter;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
-import java.util.TreeSet;
-import javax.imageio.ImageIO;
+import java.util.BitSet;
+import java.util.Deque;
 import java.io.File;
 import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.io.OutputStreamWriter;
 import java.io.StringWriter;
+import java.io.Writer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ForkJoinTask;
 import javax.xml.transform.OutputKeys;
 import javax.xml.transform.Transformer;
 import javax.xml.transform.TransformerFactory;
@@ -49,6 +61,11 @@ import javax.xml.transform.dom.DOMSource;
 import javax.xml.transform.stream.StreamResult;
 import javax.xml.transform.TransformerConfigurationException;
 import javax.xml.transform.TransformerException;
+import org.apache.xerces.parsers.XMLGrammarPreparser;
+import org.apache.xerces.util.XMLGrammarPoolImpl;
+import org.apache.xerces.xni.grammars.XMLGrammarDescription;
+import org.apache.xerces.xni.grammars.XMLGrammarPool;
+import org.apache.xerces.xni.parser.XMLInputSource;
 import org.w3c.dom.Attr;
 import org.w3c.dom.DOMConfiguration;
 import org.w3c.dom.Document;
@@ -61,7 +78,12 @@ import org.w3c.dom.ls.DOMImplementationLS;
 import org.w3c.dom.ls.LSInput;
 import org.w3c.dom.ls.LSOutput;
 import org.w3c.dom.ls.LSParser;
+import org.w3c.dom.ls.LSParserFilter;
 import org.w3c.dom.ls.LSSerializer;
+import org.w3c.dom.traversal.NodeFilter;
+import treemodel.NameAllocator;
+import treemodel.NameRegistry;
+import treemodel.ReferenceIndex;
 
 /**
  *
@@ -86,6 +108,66 @@ public class Tools {
         REGISTRY = reg;
         IMPL_LS = (DOMImplementationLS) REGISTRY.getDOMImplementation("LS 3.0");
     }
+    
+    private static final String GRAMMAR_POOL =
+            "http://apache.org/xml/properties/internal/grammar-pool";
+    /** schema location -> pool with the compiled schema */
+    private static final Map<String, XMLGrammarPool> GRAMMAR_POOLS = new HashMap<>();
+    
+    /**
+     * Gets a grammar pool that contains the compiled schema. The schema
+     * is compiled when it is first needed and the pool is locked, so it
+     * can be shared by all parsers (XMLGrammarPoolImpl is synchronized).
+     * @param schema
+     * @return the pool or null if the schema could not be compiled
+     */
+    private static synchronized XMLGrammarPool getGrammarPool(String schema) {
+        if (GRAMMAR_POOLS.containsKey(schema)) {
+            return GRAMMAR_POOLS.get(schema);
+        }
+        XMLGrammarPool pool = new XMLGrammarPoolImpl();
+        try {
+            XMLGrammarPreparser preparser = new XMLGrammarPreparser();
+            preparser.registerPreparser(XMLGrammarDescription.XML_SCHEMA, null);
+            preparser.setGrammarPool(pool);
+            preparser.preparseGrammar(XMLGrammarDescription.XML_SCHEMA,
+                    new XMLInputSource(null, schema, null));
+            pool.lockPool();
+        }
+        catch (Exception ex) {
+            // parsers compile the schema themselves
+            ex.printStackTrace();
+            pool = null;
+        }
+        GRAMMAR_POOLS.put(schema, pool);
+        return pool;
+    }
+    
+    /**
+     * Creates a parser that validates against the schema. The compiled
+     * schema is taken from the shared grammar pool.
+     * @param schema
+     * @return
+     */
+    private static LSParser createValidatingParser(String schema) {
+        LSParser parser = 
+            IMPL_LS.createLSParser(DOMImplementationLS.MODE_SYNCHRONOUS,
+                                  "http://www.w3.org/2001/XMLSchema");
+        
+        DOMConfiguration config = parser.getDomConfig();
+        config.setParameter("validate", Boolean.TRUE);                      
+        config.setParameter("schema-type", "http://www.w3.org/2001/XMLSchema");
+        XMLGrammarPool pool = getGrammarPool(schema);
+        if (pool != null) {
+            // the validator finds the (no namespace) grammar in the pool,
+            // a schema location would make it load the schema again
+            config.setParameter(GRAMMAR_POOL, pool);
+        }
+        else {
+            config.setParameter("schema-location", schema);
+        }
+        return parser;
+    }
        
     /**
      * Creates a (root level) name map of all real objects that have a name 
@@ -198,33 +280,34 @@ public class Tools {
     public static void checkNaming(Document doc) {
     
         // full name map contains all the names in the document
-        Map<String, Element> fullMap = createNameMap(doc, true);
+        NameRegistry registry = NameRegistry.getInstance(doc);
+        Map<String, Element> fullMap = registry.getFullMap();
         
         // root name map contains only the names defined at the root level
-        Map<String, Element> rootMap = createNameMap(doc, false);
+        Map<String, Element> rootMap = registry.getRootMap();
         
         // nodes that need fixing are put on this work list
         List<Element> worklist = new ArrayList<>();
         
         Element root = doc.getDocumentElement();
         
-        // iterate over all references
-        NodeList elements = root.getElementsByTagName(INCLUDE_OBJECT);
-        for (int i = 0, n = elements.getLength(); i < n; i++) {
-            Element elem = (Element) elements.item(i);
-            String name = elem.getAttribute(NAME);            
+        // iterate over all referenced names
+        ReferenceIndex index = ReferenceIndex.getInstance(doc);
+        for (String name : index.getReferencedNames()) {
             if (fullMap.containsKey(name)) {                
                 if (!rootMap.containsKey(name)) {
+                    Element elem = index.getReferences(name).iterator().next();
                     System.err.println(name + " (in " + ((Element) elem.getParentNode()).getAttribute(NAME) + 
                             ") refers to an element that is not on the root level!");
                     
                     Element referenced = fullMap.get(name);
-                    rootMap.put(name, referenced);
                     worklist.add(referenced);
                 }
             }
             else {
-                System.err.println(name + " refers to an element that does not exist!");
+                for (int i = 0, n = index.getReferences(name).size(); i < n; i++) {
+                    System.err.println(name + " refers to an element that does not exist!");
+                }
             }
         }
         
@@ -252,18 +335,8 @@ public class Tools {
      */
     public static String findFreeName(String name, 
 				      Map<String, Element> nameMap) {
-
-        // separate name into basename and end digits
-	int i = name.length() - 1;
-	while (i >= 0 && Character.isDigit((name.charAt(i)))) i--;
-	String basename = name.substring(0, i + 1);
-	String digits = name.substring(i + 1);
-	int n = digits.equals("") ? 0 : Integer.parseInt(digits);
-        
-        //go through names until free name is found
-	String result;
-        while (nameMap.containsKey(result = basename + n)) n++;
-        return result;
+        // use NameAllocator.getInstance(doc) to allocate many names
+        return new NameAllocator(nameMap.keySet()).allocate(name);
     }
 
     /**
@@ -315,6 +388,33 @@ public class Tools {
             }
         }
     }
+    /**
+     * Removes the text nodes (see removeEmptyTextNodes). The image data
+     * created by convertPicturesStage is left alone.
+     */
+    private static ExportPipeline.Stage removeTextStage() {
+        return new ExportPipeline.Stage("remove text") {
+            @Override
+            void visit(Element element) {
+                if (element.getNodeName().equals(IMAGE_DATA)) {
+                    return;
+                }
+                Node child = element.getLastChild();
+                while (child != null) {
+                    Node prev = child.getPreviousSibling();
+                    if (child.getNodeType() == Node.TEXT_NODE) {
+                        String val = child.getNodeValue();
+                        if (val.trim().length() > 0) {
+                            System.err.println("*** REMOVED NON-EMPTY TEXT NODE '" +
+                                    val + "' ***");
+                        }
+                        overlay.remove(child);
+                    }
+                    child = prev;
+                }
+            }
+        };
+    }
     /**
      * 
      * @param elem 
@@ -359,14 +459,7 @@ public class Tools {
      * @return
      */
     public static Document parseDocument(String text, String schema) {
-        LSParser parser = 
-            IMPL_LS.createLSParser(DOMImplementationLS.MODE_SYNCHRONOUS,
-                                  "http://www.w3.org/2001/XMLSchema");
-        
-        DOMConfiguration config = parser.getDomConfig();
-        config.setParameter("validate", Boolean.TRUE);                      
-        config.setParameter("schema-type", "http://www.w3.org/2001/XMLSchema");
-        config.setParameter("schema-location", schema);
+        LSParser parser = createValidatingParser(schema);
         
         LSInput input = IMPL_LS.createLSInput();
         input.setStringData(text);
@@ -375,15 +468,8 @@ public class Tools {
         return doc;
     }
     
-    public static Document loadDocument(String name, String schema) {
-        LSParser parser = 
-            IMPL_LS.createLSParser(DOMImplementationLS.MODE_SYNCHRONOUS,
-                                  "http://www.w3.org/2001/XMLSchema");
-        
-        DOMConfiguration config = parser.getDomConfig();
-        config.setParameter("validate", Boolean.TRUE);                      
-        config.setParameter("schema-type", "http://www.w3.org/2001/XMLSchema");
-        config.setParameter("schema-location", schema);
+    private static Document loadDocument(String name, String schema, LSParserFilter filter) {
+        LSParser parser = createValidatingParser(schema);
             
         //config.setParameter("element-content-whitespace", Boolean.FALSE);
         
@@ -396,13 +482,135 @@ public class Tools {
         //"http://www.w3.org/2001/XMLSchema");
         //config.setParameter("validate-if-schema", Boolean.TRUE);
         //config.setParameter("schema-location", "catalog.xsd");
-        Document doc = parser.parseURI(name);
-        removeEmptyTextNodes(doc.getDocumentElement());
-        removeXYAttribsFromTopNodes(doc.getDocumentElement());
-        remoteXYAttribsFromInputLists(doc);
+        parser.setFilter(filter);
+        return parser.parseURI(name);
+    }
+    
+    /**
+     * Loads a document. Empty text nodes are removed and so are the
+     * position attributes of the root level objects and of the objects
+     * in input lists (see removeEmptyTextNodes, removeXYAttribsFromTopNodes
+     * and remoteXYAttribsFromInputLists), this is done while parsing.
+     * @param name
+     * @param schema
+     * @return
+     */
+    public static Document loadDocument(String name, String schema) {
+        return loadDocument(name, schema, new LoadFilter(false));
+    }
+    
+    /**
+     * Loads a pool for editing. This is the same as loadDocument followed
+     * by createRoles and checkNaming, but everything except moving the
+     * misplaced objects is done in the same pass as parsing. The name
+     * registry and the reference index of the document are built from
+     * the elements collected by the parser filter.
+     * @param name
+     * @param schema
+     * @return
+     */
+    public static Document loadPool(String name, String schema) {
+        LoadFilter filter = new LoadFilter(true);
+        Document doc = loadDocument(name, schema, filter);
+        filter.finish(doc);
+        checkNaming(doc);
         return doc;
     }
     
+    /**
+     * Parser filter that does the load time normalizations while the
+     * document is being built. The root element is not passed to the
+     * filter, the stack contains the open elements below it.
+     */
+    private static class LoadFilter implements LSParserFilter {
+        
+        private static final Set<String> XY_ATTRIBUTES = new HashSet<>(Arrays.asList(
+                POS_X, POS_Y, BLOCK_COL, BLOCK_ROW, BLOCK_FONT));
+        private static final Set<String> ROLE_ATTRIBUTE_SET = new HashSet<>(Arrays.asList(
+                ROLE_ATTRIBUTES));
+        
+        private final boolean roles;
+        private final List<Element> stack = new ArrayList<>();
+        
+        // collected only if roles are created
+        private final List<Pair<Element, Element>> worklist = new ArrayList<>();
+        private final List<Element> elements = new ArrayList<>();
+        private final List<Element> references = new ArrayList<>();
+        
+        LoadFilter(boolean roles) {
+            this.roles = roles;
+        }
+        
+        @Override
+        public short startElement(Element element) {
+            // one scan of the attributes instead of a removeAttribute
+            // call for every attribute that might be there
+            NamedNodeMap attributes = element.getAttributes();
+            boolean xy = false;
+            boolean role = false;
+            for (int i = 0, n = attributes.getLength(); i < n; i++) {
+                String attr = attributes.item(i).getNodeName();
+                xy |= XY_ATTRIBUTES.contains(attr);
+                role |= ROLE_ATTRIBUTE_SET.contains(attr);
+            }
+            
+            int depth = stack.size();
+            if (xy && (depth == 0 || stack.get(depth - 1).getTagName().equals(INPUTLIST))) {
+                removeXYAttribs(element);
+            }
+            stack.add(element);
+            
+            if (roles) {
+                elements.add(element);
+                if (element.getTagName().equals(INCLUDE_OBJECT)) {
+                    references.add(element);
+                }
+                // the new include objects are inserted in front of the
+                // children, so they end up in reverse order
+                int n = worklist.size();
+                if (role || element.getTagName().equals(OBJECTPOINTER)) {
+                    createRole(element, worklist);
+                }
+                for (int i = worklist.size() - 1; i >= n; i--) {
+                    references.add(worklist.get(i).getChild());
+                }
+            }
+            return FILTER_ACCEPT;
+        }
+        
+        @Override
+        public short acceptNode(Node node) {
+            if (node.getNodeType() == Node.TEXT_NODE) {
+                String val = node.getNodeValue();
+                if (val.trim().length() > 0) {
+                    System.err.println("*** REMOVED NON-EMPTY TEXT NODE '" +
+                            val + "' ***");
+                }
+                return FILTER_REJECT;
+            }
+            stack.remove(stack.size() - 1);
+            return FILTER_ACCEPT;
+        }
+        
+        @Override
+        public int getWhatToShow() {
+            return NodeFilter.SHOW_ELEMENT | NodeFilter.SHOW_TEXT;
+        }
+        
+        /**
+         * Inserts the include objects (see createRoles) and creates the
+         * name registry and the reference index of the document.
+         * @param doc
+         */
+        void finish(Document doc) {
+            for (Pair<Element, Element> p : worklist) {
+                p.getParent().insertBefore(p.getChild(), p.getParent().getFirstChild());
+            }
+            NameRegistry.createInstance(doc, elements);
+            ReferenceIndex.createInstance(doc, references);
+        }
+    }
+    
     /**
      * 
      * @param doc
@@ -429,6 +637,22 @@ public class Tools {
     
     private static String writeXMLString(Node doc, String encoding)
             throws IOException
+    {
+        StringWriter writer = new StringWriter();
+        writeXML(doc, writer, encoding);
+        return writer.toString();
+    }
+    
+    /**
+     * Writes the pretty-printed document to the writer. The encoding is
+     * only used in the XML declaration, the writer does the encoding.
+     * @param doc
+     * @param writer
+     * @param encoding
+     * @throws IOException 
+     */
+    private static void writeXML(Node doc, Writer writer, String encoding)
+            throws IOException
     {
         try {
             TransformerFactory tf = TransformerFactory.newInstance();
@@ -437,11 +661,9 @@ public class Tools {
             transformer.setOutputProperty(OutputKeys.INDENT, "yes");
             transformer.setOutputProperty(OutputKeys.ENCODING, encoding);
 
-            // initialize StreamResult with File object to save to file
-            StreamResult result = new StreamResult(new StringWriter());
+            StreamResult result = new StreamResult(writer);
             DOMSource source = new DOMSource(doc);
             transformer.transform(source, result);
-            return result.getWriter().toString();
         }
         catch (TransformerConfigurationException e) {
             throw new IOException(e.getMessage());
@@ -452,27 +674,142 @@ public class Tools {
     }
     
     /**
-     * 
+     * Writes the document to the file (see writeAtomically).
      * @param doc
-     * @param os
+     * @param file
+     * @param encoding
      * @throws IOException 
      */
-    private static void writeXML(Document doc, OutputStream os, String encoding)
+    private static void writeXML(final Node doc, File file, final String encoding)
             throws IOException
     {
-        BufferedWriter out = new BufferedWriter
-                (new OutputStreamWriter(os));
-//              (new OutputStreamWriter(os, encoding /*"8859_1"*/));
-        out.write(writeXMLString(doc, encoding));
-        out.close();
+        writeAtomically(file, encoding, new FileContent() {
+            @Override
+            public void write(Writer out) throws IOException {
+                writeXML(doc, out, encoding);
+            }
+        });
+    }
+    
+    /**
+     * Writes the export to the file (see writeAtomically). Documents
+     * with content that the overlay can not write are copied and written
+     * by the transformer.
+     * @param overlay
+     * @param file
+     * @param encoding
+     * @throws IOException 
+     */
+    private static void writeXML(final ExportOverlay overlay, File file,
+            final String encoding) throws IOException
+    {
+        if (!overlay.isWritable()) {
+            writeXML(overlay.materialize(), file, encoding);
+            return;
+        }
+        writeAtomically(file, encoding, new FileContent() {
+            @Override
+            public void write(Writer out) throws IOException {
+                overlay.write(out, encoding);
+            }
+        });
+    }
+    
+    /**
+     * Content of a file written by writeAtomically.
+     */
+    interface FileContent {
+        void write(Writer out) throws IOException;
+    }
+    
+    /**
+     * Binary content of a file written by writeAtomically.
+     */
+    interface ChannelContent {
+        void write(FileChannel channel) throws IOException;
+    }
+    
+    /**
+     * Writes the text content to the file (see below).
+     * @param file
+     * @param encoding
+     * @param content
+     * @throws IOException 
+     */
+    static void writeAtomically(File file, final String encoding, final FileContent content)
+            throws IOException
+    {
+        writeAtomically(file, new ChannelContent() {
+            @Override
+            public void write(FileChannel channel) throws IOException {
+                Writer out = new BufferedWriter(new OutputStreamWriter(
+                        Channels.newOutputStream(channel), Charset.forName(encoding)),
+                        1 << 16);
+                content.write(out);
+                out.flush();
+            }
+        });
+    }
+    
+    /**
+     * Writes the content to the file. The content is streamed to a
+     * temporary file next to the file, the temporary file is forced to
+     * the disk and then renamed over the file. If writing fails the old
+     * file is left as it was.
+     * @param file
+     * @param content
+     * @throws IOException 
+     */
+    static void writeAtomically(File file, ChannelContent content)
+            throws IOException
+    {
+        Path target = file.toPath().toAbsolutePath();
+        if (Files.isSymbolicLink(target)) {
+            target = target.toRealPath(); // replace the file, not the link
+        }
+        Path tmp = target.resolveSibling("." + target.getFileName() + ".tmp");
+        try {
+            try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE,
+                    StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+                content.write(channel);
+                channel.force(true);
+            }
+            
+            try {
+                // keep the permissions of the old file
+                if (Files.exists(target)) {
+                    Files.setPosixFilePermissions(tmp, Files.getPosixFilePermissions(target));
+                }
+            }
+            catch (UnsupportedOperationException ex) {
+                // not a POSIX file system
+            }
+            try {
+                Files.move(tmp, target, StandardCopyOption.ATOMIC_MOVE,
+                        StandardCopyOption.REPLACE_EXISTING);
+            }
+            catch (AtomicMoveNotSupportedException ex) {
+                Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING);
+            }
+        }
+        catch (IOException | RuntimeException | Error ex) {
+            // the target is untouched, only the temporary file is removed
+            try {
+                Files.deleteIfExists(tmp);
+            }
+            catch (IOException deleteEx) {
+                ex.addSuppressed(deleteEx);
+            }
+            throw ex;
+        }
     }
     
     public static void saveDocument(String name, Document doc) 
             throws FileNotFoundException, IOException
     {
         removeEmptyTextNodes(doc.getDocumentElement());
-        OutputStream os = new FileOutputStream(new File(name));
-        writeXML(doc, os, "UTF-8");
+        writeXML(doc, new File(name), "UTF-8");
+        doc.setDocumentURI(new File(name).toURI().toString()); // see IDLedger
     }
      
     /**
@@ -480,6 +817,8 @@ public class Tools {
      * <ul>
      * <li> roles are converted back to attributes
      * <li> start and end angles are converted to "double degrees" (divided by two)
+     * <li> missing ids are generated for objects, an object gets the same id
+     *      as in the previous export (see IDLedger)
      * </ul>
      *
      * @param name
@@ -489,31 +828,30 @@ public class Tools {
      */
     public static void exportToISOAgLibXML(PrintStream out, String name, Document doc) 
             throws IOException, PoolException {
-        // the whole document is cloned (this copies all attributes too!)
-        Document clone = (Document) doc.cloneNode(true);
-        removeEmptyTextNodes(clone.getDocumentElement());
-        
-        removeRoles(clone.getDocumentElement());        
-        divAngles(clone.getDocumentElement());
-        
-        setAllOutputStringLengths(clone);
-        setAllInputStringLengths(clone);
-                
-        Map<String, Element> nameMap = Tools.createNameMap(clone);
-        createObjectIDs(out, clone);
-        createObjectIDsForIncludeObjects(out, clone, nameMap);
+        // the changes are recorded in an overlay, the document is not changed
+        ExportOverlay overlay = new ExportOverlay(doc);
+        
+        Map<String, Element> nameMap = Tools.createNameMap(doc);
+        ObjectIDs ids = new ObjectIDs(doc);
+        new ExportPipeline(out, overlay)
+                .addPass(removeTextStage(), removeRolesStage(), divAnglesStage(),
+                        stringLengthsStage(), ids.reserveStage())
+                // the include_objects get the ids of the objects they refer to
+                .addPass(ids.createStage(), includeObjectIDsStage(nameMap))
+                .run(doc);
         
         // remove empty attributes? (at least file1 file4 file8... ?)
         
-        OutputStream os = new FileOutputStream(new File(name));
-        writeXML(clone, os, "UTF-8");
+        writeXML(overlay, new File(name), "UTF-8");
+        ids.save();
     }
     
     /**
      * Exports the document using a stand-alone XML format.
      * <ul>
      * <li> images are embedded into the XML using base64 encoding
-     * <li> missing ids are generated for objects
+     * <li> missing ids are generated for objects, an object gets the same id
+     *      as in the previous export (see IDLedger)
      * <li> id attributes are added to include_objects
      * </ul>
      *
@@ -526,101 +864,74 @@ public class Tools {
     public static void exportToEmbeddedXML(PrintStream out, String fileName, Document doc)
             throws IOException, PoolException {
         
-        // the document is cloned (this copies all attributes too!)
-        Document clone = (Document) doc.cloneNode(true);
-        removeEmptyTextNodes(clone.getDocumentElement());
+        // the changes are recorded in an overlay, the document is not changed
+        ExportOverlay overlay = new ExportOverlay(doc);
         
         // check the validity of document
-        if (validateDocument(out, clone)) {
+        if (validateDocument(out, doc)) {
             out.println("Document valid");
         }
         else {
             out.println("Document invalid!");
         }
         
-        divAngles(clone.getDocumentElement()); //This could be done?
-        
         //createRoles(clone.getDocumentElement()); //this shouldn't be necessary !!!
         
-        convertAllPictureElements(clone, getStdBitmapPath(doc));
-        
-        setAllOutputStringLengths(clone);
-        setAllInputStringLengths(clone);
-                
-        Map<String, Element> nameMap = Tools.createNameMap(clone);
-        createObjectIDs(out, clone);
-        createObjectIDsForIncludeObjects(out, clone, nameMap);
-        
-        replaceAllBlockFontAttributes(clone, nameMap);
-        
-        markAllChildMasksAndDesignators(out, clone, nameMap);
-        
-        OutputStream os = new FileOutputStream(new File(fileName));
-        writeXML(clone, os, "ISO-8859-1"); //"UTF-8");
+        Map<String, Element> nameMap = Tools.createNameMap(doc);
+        ObjectIDs ids = new ObjectIDs(doc);
+        new ExportPipeline(out, overlay)
+                // pictures are converted before their children are visited,
+                // the children of a picture are not exported
+                .addPass(removeTextStage(), convertPicturesStage(getStdBitmapPath(doc)),
+                        divAnglesStage(), stringLengthsStage(), ids.reserveStage())
+                // new ids can be created only after all used ids are known
+                .addPass(ids.createStage(), includeObjectIDsStage(nameMap),
+                        blockFontStage(nameMap), markMasksAndDesignatorsStage(nameMap))
+                .run(doc);
+        
+        writeXML(overlay, new File(fileName), "ISO-8859-1"); //"UTF-8");
+        ids.save();
     }
     
-    private static void markChildrenMask(PrintStream out, Element element, Map<String, Element> nameMap) {
-        String type = element.getNodeName();
-        String name = element.getAttribute(NAME);
-        String use = element.getAttribute(USE);
-        if (Utils.equals(use, "designator", "both") &&
-                !Utils.equals(type, FILLATTRIBUTES)) {
-            out.println("ERROR: element \"" + name + "\" (" + type +
-                    ") use attribute is now \"both\"!");
-            element.setAttribute(USE, "both");
+    /**
+     * Exports the document as a binary object pool (see IOPWriter). The
+     * ids are created as in the other exports, so the ids match the XML
+     * exports of the same document.
+     *
+     * @param out
+     * @param fileName
+     * @param doc
+     * @throws IOException
+     * @throws PoolException
+     */
+    public static void exportToIOP(final PrintStream out, String fileName, final Document doc)
+            throws IOException, PoolException {
+        
+        // the changes are recorded in an overlay, the document is not changed
+        final ExportOverlay overlay = new ExportOverlay(doc);
+        
+        if (validateDocument(out, doc)) {
+            out.println("Document valid");
         }
         else {
-            element.setAttribute(USE, "mask");
-        }
-        List<Element> children = getChildElementList(element);
-        for (Element e : children) {
-            // follow links
-            if (Utils.equals(e.getNodeName(), INCLUDE_OBJECT)) {
-                e = nameMap.get(e.getAttribute(NAME));
-            }
-            // skip if child is not a proper object or if
-            // the element is data / alarmmask and the child is
-            // softkeymask
-            String childType = e.getNodeName();
-            if (!Utils.equals(childType, OBJECTS) ||
-                    (Utils.equals(type, DATAMASK, ALARMMASK) &&
-                    Utils.equals(childType, SOFTKEYMASK))) {
-                continue;
-            }
-            markChildrenMask(out, e, nameMap);
-        }
-    }
-    
-    private static void markChildrenDesignator(PrintStream out, Element element, Map<String, Element> nameMap) {
-        String type = element.getNodeName();
-        String name = element.getAttribute(NAME);
-        String use = element.getAttribute(USE);
-        if (Utils.equals(use, "mask", "both") &&
-                !Utils.equals(type, FILLATTRIBUTES)) {
-            out.println("ERROR: element \"" + name + "\" (" + type +
-                    ") use attribute is now \"both\"!");
-            element.setAttribute(USE, "both");
+            out.println("Document invalid!");
         }
-        else {
-            element.setAttribute(USE, "designator");
-        }
-        List<Element> children = getChildElementList(element);
-        for (Element e : children) {
-            // follow links
-            if (Utils.equals(e.getNodeName(), INCLUDE_OBJECT)) {
-                e = nameMap.get(e.getAttribute(NAME));
-            }
-            // skip if child is not a proper object or if
-            // the element is workingset and the child is
-            // data / alarmmask
-            String childType = e.getNodeName();
-            if (!Utils.equals(childType, OBJECTS) || 
-                    (Utils.equals(type, WORKINGSET) &&
-                    Utils.equals(childType, DATAMASK, ALARMMASK))) {
-                continue;
+        
+        final Map<String, Element> nameMap = Tools.createNameMap(doc);
+        ObjectIDs ids = new ObjectIDs(doc);
+        new ExportPipeline(out, overlay)
+                .addPass(convertPicturesStage(getStdBitmapPath(doc)), divAnglesStage(),
+                        stringLengthsStage(), ids.reserveStage())
+                .addPass(ids.createStage(), includeObjectIDsStage(nameMap))
+                .run(doc);
+        
+        writeAtomically(new File(fileName), new ChannelContent() {
+            @Override
+            public void write(FileChannel channel) throws IOException {
+                new IOPWriter(out, overlay, nameMap).write(doc.getDocumentElement(), channel);
             }
-            markChildrenDesignator(out, e, nameMap);
-        }
+        });
+        ids.save();
     }
     
     /**
@@ -636,14 +947,14 @@ public class Tools {
     }
     
     /**
-     * Checks if all attributes, included objects are ok     
+     * Checks if all attributes, included objects are ok (see
+     * ValidationEngine, which checks a document incrementally while it is
+     * edited).
      * @param out
      * @param doc
      * @return 
      */
     public static boolean validateDocument(PrintStream out, Document doc) {
-        ByteArrayOutputStream bff = new ByteArrayOutputStream();
-        PrintStream tmp = new PrintStream(bff);
         boolean ok = true;
         Map<String, Element> nameMap = Tools.createNameMap( doc );
         
@@ -652,11 +963,12 @@ public class Tools {
         for (int i = 0, n = elements.getLength(); i < n; i++) {
             Element element = (Element) elements.item(i);
             
-            // validate element roles
-            if (Utils.equals(element.getNodeName(), OBJECTS)) {
-                if (!validateElementRoles(tmp, element, nameMap)) {
-                    out.println(getPath(element) + " (" +  element.getNodeName() + ")");
-                    out.print(bff);
+            // validate element roles and links
+            if (ValidationEngine.isChecked(element)) {
+                ValidationEngine.Diagnostic d = ValidationEngine.check(element, nameMap);
+                if (d != null) {
+                    out.println(d.path + " (" +  d.type + ")");
+                    out.println("\t" + d.message);
                     ok = false;
                 }
             }
@@ -680,96 +992,6 @@ public class Tools {
     }
     
     
-    private static final String[] ELEMENTS_WITH_ROLES = 
-            {DATAMASK, ALARMMASK, SOFTKEYMASK,
-             NUMBERVARIABLE, STRINGVARIABLE, FONTATTRIBUTES, 
-             LINEATTRIBUTES, FILLATTRIBUTES, INPUTATTRIBUTES};
-    
-    /**
-     * Checks that the role attribute of the given element is appropriate
-     * in the current context of the element. 
-     *
-     * If the element is a link, it is substituted with the actual object.
-     * In principle, these kinds of check should be made using XML Schema, 
-     * but linking complicates things.
-     */
-    private static boolean validateElementRoles(PrintStream out, 
-            Element element, Map<String, Element> nameMap) {
-        
-        Element linkedElement = element;
-        if (element.getNodeName().equals(INCLUDE_OBJECT)) {
-            linkedElement = nameMap.get(element.getAttribute(NAME));
-            if (linkedElement == null) {
-                out.println("\tbroken link!");
-                return false;
-            }
-        }
-        
-        String linkedElementName = linkedElement.getNodeName();
-        Element parent = (Element) element.getParentNode();
-                
-        //check if elment is a attribute or variable element
-                
-        if (Utils.equals(linkedElementName, ELEMENTS_WITH_ROLES)) {
-            
-            String role = element.getAttribute(ROLE);  //role is in the link!!          
-            
-            // if the element is on the root level, it can't have a role            
-            if (parent.getNodeName().equals(OBJECTPOOL)) {
-                if (!Utils.equals(role, "", "none")) {
-                    out.println("\tillegal role (" + role + ")!");
-                    return false;
-                }
-            } 
-            // if the element is under any other object, it must have the right role
-            else { 
-                if (Utils.equals(linkedElementName, DATAMASK, ALARMMASK)) {
-                    if (!Utils.equals(role, ACTIVE_MASK)) {
-                        out.println("\tillegal role! (" + role + ")!");
-                        return false;
-                    }
-                }
-                else if (Utils.equals(linkedElementName, SOFTKEYMASK)) {
-                    if (!Utils.equals(role, SOFT_KEY_MASK)) {
-                        out.println("\tillegal role! (" + role + ")!");
-                        return false;
-                    }
-                }
-                else if (linkedElementName.equals(NUMBERVARIABLE)) {
-                    if (!Utils.equals(role, VARIABLE_REFERENCE, TARGET_VALUE_VARIABLE_REFERENCE)) {
-                        out.println("\tillegal role! (" + role + ")!");
-                        return false;
-                    }
-                }
-                else if (linkedElementName.equals(STRINGVARIABLE)) {
-                   if (!Utils.equals(role, VARIABLE_REFERENCE)) {
-                        out.println("\tillegal role (" + role + ")!");
-                        return false;
-                    } 
-                }
-                else if (linkedElementName.equals(FONTATTRIBUTES)) {
-                    if (!Utils.equals(role, FONT_ATTRIBUTES, FOREGROUND_COLOUR)) {
-                        out.println("\tillegal role (" + role + ")!");
-                        return false;
-                    } 
-                }
-                else if (linkedElementName.equals(LINEATTRIBUTES)) {
-                    if (!Utils.equals(role, LINE_ATTRIBUTES)) {
-                        out.println("\tillegal role (" + role + ")!");
-                        return false;
-                    } 
-                }
-                else if (linkedElementName.equals(INPUTATTRIBUTES)) {
-                    if (!Utils.equals(role, INPUT_ATTRIBUTES)) {
-                        out.println("\tillegal role (" + role + ")!");
-                        return false;
-                    } 
-                }                
-            }
-        }
-        return true;
-    }
-    
     /**
      * Returns true, if some string s1 equals some of the strings in array ss
     private static boolean compareStrings(String s1, String[] ss) {
@@ -792,24 +1014,6 @@ public class Tools {
         return root.getAttribute(STD_BITMAP_PATH);
     }
     
-    private static BufferedImage getImageFile(Element element, String attrib,
-            String imagepath) throws IOException
-    {
-        String s = element.getAttribute(attrib);
-        File f = null;
-        if (s.isEmpty()) {
-            return null;
-        }
-        try {
-            String fullname = FileTools.joinPaths(imagepath, s);
-            f = new File(fullname);
-            return ImageIO.read(f);
-        }
-        catch (IOException ex) {
-            throw new IOException(ex.getMessage() + " " + f);
-        }
-    }
-    
     public static String writeToString(Node node) {
         if (node == null) { 
             return "null"; 
@@ -963,7 +1167,7 @@ public class Tools {
         String frgName = fragment.getNodeName();
         if (Utils.equals(frgName, INCLUDE_OBJECT)) {
             if (Utils.equals(trgName, OBJECTS)) {
-                Map<String, Element> nameMap = Tools.createNameMap(fragment.getOwnerDocument());
+                Map<String, Element> nameMap = NameRegistry.getInstance(fragment.getOwnerDocument()).getRootMap();
                 String name = fragment.getAttribute(NAME);
                 if (!name.isEmpty()) {
                     Element elem = nameMap.get(name);
@@ -1236,7 +1440,7 @@ public class Tools {
             throw new PoolException(fragment.getNodeName() + " is not include_object");
         }
         
-        Map<String, Element> nameMap = createNameMap(actual.getOwnerDocument());
+        Map<String, Element> nameMap = NameRegistry.getInstance(actual.getOwnerDocument()).getRootMap();
         String name = fragment.getAttribute(NAME);        
         Element target = nameMap.get(name);
         if (target == null) {
@@ -1262,8 +1466,14 @@ public class Tools {
             worklist.addLast((Element) parent);
         }
         
+        // an element can be reached along many paths, but it needs to be
+        // checked only once
+        Set<Element> visited = new HashSet<>();
         while (!worklist.isEmpty()) {
             Element element = worklist.removeFirst();
+            if (!visited.add(element)) {
+                continue;
+            }
                        
             //System.out.println("CHECKING: " + element.getAttribute(NAME));
             // one of the parents is the target element -> loop
@@ -1301,20 +1511,8 @@ public class Tools {
             return;
         }
 
-        // iterate over all elements in the document
-        Document doc = elem.getOwnerDocument();
-        NodeList nodes = doc.getElementsByTagName(INCLUDE_OBJECT);
-        for (int i = 0, n = nodes.getLength(); i < n; i++) {
-            Element element = (Element) nodes.item(i);
-            // other objects can use include objects to make references
-            if (element.getAttribute(NAME).equals(name)) {
-                parent = element.getParentNode();
-                if (parent.getNodeType() == Element.ELEMENT_NODE) {
-                    
-                    list.add((Element) parent);
-                }
-            }
-        }
+        // other objects can use include objects to make references
+        ReferenceIndex.getInstance(elem.getOwnerDocument()).findReferringParents(name, list);
     }
     
     public static void findAncestorElements(Element element, List<Element> ancestors) {
@@ -1393,42 +1591,60 @@ public class Tools {
     }
     /**
      * Embeds all picture elements in the document using PictureConverter.
+     * The images are converted in the background while the document is
+     * walked (see PictureCache), the image data is filled in after the
+     * walk.
      * 
-     * @param doc
-     * @param clone
-     * @throws IOException 
+     * @param bitmapPath
+     * @return
      */
-    private static void convertAllPictureElements(Document clone, String bitmapPath)
-            throws IOException {
-
-        // find all picture elements
-        NodeList nodes = clone.getElementsByTagName(PICTUREGRAPHIC); 
-        for (int i = 0, n = nodes.getLength(); i < n; i++) {
-            Element element = (Element) nodes.item(i);
-            
-            // get image and convert it to base64
-            BufferedImage image = getImageFile(element, FILE, bitmapPath);
-            
-            // remove attributes that are no longer needed
-            removeAttributes(element, FILE, FILE1, FILE4, FILE8, FORMAT, RLE);
+    private static ExportPipeline.Stage convertPicturesStage(final String bitmapPath) {
+        return new ExportPipeline.Stage("convert pictures") {
+            private final PictureCache cache = new PictureCache();
+            private final List<Element> dataElements = new ArrayList<>();
+            private final List<ForkJoinTask<PictureCache.Picture>> conversions = new ArrayList<>();
             
-            // remove all children
-            NodeList childs = element.getChildNodes();
-            for (int j = childs.getLength() - 1; j >= 0; j--) {
-                element.removeChild(childs.item(j)); 
+            @Override
+            void visit(Element element) throws IOException {
+                if (!element.getNodeName().equals(PICTUREGRAPHIC)) {
+                    return;
+                }
+                
+                // start converting the image to base64
+                String file = element.getAttribute(FILE);
+                if (file.isEmpty()) {
+                    throw new IOException("No image file for picture \"" +
+                            element.getAttribute(NAME) + "\"");
+                }
+                conversions.add(cache.convert(new File(FileTools.joinPaths(bitmapPath, file))));
+
+                // remove attributes that are no longer needed
+                overlay.removeAttributes(element, FILE, FILE1, FILE4, FILE8, FORMAT, RLE);
+
+                // create image data element, it replaces all children
+                Element dataElement = overlay.createElement(IMAGE_DATA);
+                dataElements.add(dataElement);
+                overlay.replaceChildren(element, dataElement);
             }
             
-            // create image data element
-            Element dataElement = clone.createElement(IMAGE_DATA);
-            
-            // add image_width and image_height attributes
-            dataElement.setAttribute(IMAGE_WIDTH, Integer.toString(image.getWidth()));
-            dataElement.setAttribute(IMAGE_HEIGHT, Integer.toString(image.getHeight()));
-            
-            // set content
-            dataElement.setTextContent(PictureConverter.convertToString(image));
-            element.appendChild(dataElement);            
-        }
+            @Override
+            void finish() throws IOException {
+                for (int i = 0, n = dataElements.size(); i < n; i++) {
+                    PictureCache.Picture picture = PictureCache.get(conversions.get(i));
+                    Element dataElement = dataElements.get(i);
+
+                    // add image_width and image_height attributes
+                    dataElement.setAttribute(IMAGE_WIDTH, Integer.toString(picture.width));
+                    dataElement.setAttribute(IMAGE_HEIGHT, Integer.toString(picture.height));
+
+                    // set content
+                    dataElement.setTextContent(picture.data);
+                }
+                out.println("Embedded " + dataElements.size() + " pictures (" +
+                        cache.getFileCount() + " image files, " +
+                        cache.getHitCount() + " from the cache)");
+            }
+        };
     }
 
     private static int parseIntOrZero(String val) {
@@ -1440,191 +1656,415 @@ public class Tools {
         }
     }
     /**
-     * Makes sure that no OutputString element is truncated by increasing
-     * length attribute when necessary.
+     * Makes sure that no OutputString or InputString element is truncated
+     * by increasing length attribute when necessary.
      *
-     * @param clone 
+     * @return 
      */
-    private static void setAllOutputStringLengths(Document clone) {
-        // set output string lengths
-        NodeList outputstrings = clone.getElementsByTagName(OUTPUTSTRING); 
-        for (int i = 0, n = outputstrings.getLength(); i < n; i++) {
-            Element outputstring = (Element) outputstrings.item(i);
-            String value = outputstring.getAttribute(VALUE);
-            int valLen = value.length();
-            String length = outputstring.getAttribute(LENGTH);
-            int len = parseIntOrZero(length);
-            if (valLen > len) {
-                outputstring.setAttribute(LENGTH, Integer.toString(valLen));
+    private static ExportPipeline.Stage stringLengthsStage() {
+        return new ExportPipeline.Stage("string lengths") {
+            @Override
+            void visit(Element element) {
+                if (!Utils.equals(element.getNodeName(), OUTPUTSTRING, INPUTSTRING)) {
+                    return;
+                }
+                String value = overlay.getAttribute(element, VALUE);
+                int valLen = value.length();
+                String length = overlay.getAttribute(element, LENGTH);
+                int len = parseIntOrZero(length);
+                if (valLen > len) {
+                    overlay.setAttribute(element, LENGTH, Integer.toString(valLen));
+                }
             }
-        }
+        };
     }
 
     /**
-     * Makes sure that no InputString element is truncated by increasing
-     * length attribute when necessary.
-     * 
-     * @param clone 
+     * Adds ID attributes to all normal elements and removes ID attributes
+     * from all include_objects. The reserve stage collects the ids that
+     * are in use, the create stage must be in a later pass. Objects
+     * without an id get the id they had in the previous export (see
+     * IDLedger) if it is still free, otherwise an id that no object of
+     * the ledger has.
      */
-    private static void setAllInputStringLengths(Document clone) {
-        // set input string lengths
-        NodeList inputstrings = clone.getElementsByTagName(INPUTSTRING); 
-        for (int i = 0, n = inputstrings.getLength(); i < n; i++) {
-            Element inputstring = (Element) inputstrings.item(i);
-            String value = inputstring.getAttribute(VALUE);
-            int valLen = value.length();
-            String length = inputstring.getAttribute(LENGTH);
-            int len = parseIntOrZero(length);
-            if (valLen > len) {
-                inputstring.setAttribute(LENGTH, Integer.toString(valLen));
+    private static class ObjectIDs {
+        
+        private final IDLedger ledger;
+        /** object -> key in the ledger */
+        private final Map<Element, String> keys = new IdentityHashMap<>();
+        /** key -> number of objects with the key so far */
+        private final Map<String, Integer> counts = new HashMap<>();
+        private final BitSet usedIDs = new BitSet();
+        /** ids used now or recorded in the ledger */
+        private final BitSet takenIDs;
+        /** where to look for ids that are not taken */
+        private int nextMacroId = 0;
+        private int nextId = 256;
+        /** where to look for ids that are only in the ledger */
+        private int nextLedgerMacroId = 0;
+        private int nextLedgerId = 256;
+        
+        ObjectIDs(Document doc) {
+            ledger = IDLedger.getInstance(doc);
+            takenIDs = ledger.getIDs();
+        }
+        
+        /**
+         * Creates the key of the object in the ledger. Objects are called
+         * by their names (with the language like in the name map), if
+         * there are several objects with the same name the later ones
+         * get "#2", "#3"... in document order.
+         */
+        private String createKey(ExportOverlay overlay, Element element) {
+            String name = overlay.getAttribute(element, NAME);
+            String language = overlay.getAttribute(element, LANGUAGE);
+            if (!language.isEmpty() && !language.equals("en")) {
+                name += "." + language;
             }
+            Integer count = counts.get(name);
+            count = count == null ? 1 : count + 1;
+            counts.put(name, count);
+            String key = count == 1 ? name : name + "#" + count;
+            keys.put(element, key);
+            return key;
         }
-    }
-
-    /**
-     * Adds ID attributes to all normal elements and removes ID attributes
-     * from all include_objects.
-     * 
-     * @param out
-     * @param clone
-     * @throws PoolException 
-     */
-    private static void createObjectIDs(PrintStream out, Document clone)
-            throws PoolException {
         
-        // create id to all objects
-        NodeList nodes = clone.getElementsByTagName("*"); 
-        TreeSet<Integer> usedIDs = new TreeSet<>();
+        private void use(int id) {
+            usedIDs.set(id);
+            takenIDs.set(id);
+        }
         
-        // find all ids and remove id from include_objects
-        for (int i = 0, n = nodes.getLength(); i < n; i++) {
-            Element element = (Element) nodes.item(i);
-            String id = element.getAttribute(ID);
-            if (!id.isEmpty()) {
-                if (element.getNodeName().equals(INCLUDE_OBJECT)) {
-                    element.removeAttribute(ID);
-                    out.println("Removing ID " + id + " from " + element.getAttribute(NAME) +
-                            " (include_object)");
-                }                
-                else {
-                    Integer idn = Integer.valueOf(id);
-                    if (idn == null || usedIDs.contains(idn)) {
-                        element.removeAttribute(ID);
-                        out.println("ID " + idn + " already in use. Removing id from " +
-                                element.getAttribute(NAME) + " (" + element.getNodeName() + ")");   
+        /**
+         * Finds all ids and removes ids from include_objects.
+         * @return 
+         */
+        ExportPipeline.Stage reserveStage() {
+            return new ExportPipeline.Stage("reserve ids") {
+                @Override
+                void visit(Element element) {
+                    if (Utils.equals(element.getNodeName(), OBJECTS)) {
+                        createKey(overlay, element);
                     }
+                    String id = overlay.getAttribute(element, ID);
+                    if (id.isEmpty()) {
+                        return;
+                    }
+                    if (element.getNodeName().equals(INCLUDE_OBJECT)) {
+                        overlay.removeAttribute(element, ID);
+                        out.println("Removing ID " + id + " from " + overlay.getAttribute(element, NAME) +
+                                " (include_object)");
+                    }                
                     else {
-                        usedIDs.add(idn);
-                        out.println("Reserving ID " + idn + " for " + element.getAttribute(NAME) + 
-                                " (" + element.getNodeName() + ")"); 
+                        Integer idn = Integer.valueOf(id);
+                        if (idn < 0 || usedIDs.get(idn)) {
+                            overlay.removeAttribute(element, ID);
+                            out.println("ID " + idn + " already in use. Removing id from " +
+                                    overlay.getAttribute(element, NAME) + " (" + element.getNodeName() + ")");   
+                        }
+                        else {
+                            use(idn);
+                            String key = keys.get(element);
+                            if (key != null) {
+                                ledger.put(key, idn);
+                            }
+                            out.println("Reserving ID " + idn + " for " + overlay.getAttribute(element, NAME) + 
+                                    " (" + element.getNodeName() + ")"); 
+                        }
                     }
                 }
-            }
+            };
         }
         
-        // find all real elements with no id and them a unused id
-        int nextMacroId = 0;
-        int nextId = 256;
-        for (int i = 0; i < nodes.getLength(); i++) {
-            Element element = (Element) nodes.item(i);
-            String id = element.getAttribute("id");
-            // if a real isobus objects has no id, then create it one
-            if (id.isEmpty() && Utils.equals(element.getNodeName(), OBJECTS)) {
-                
-                // macro ids are [0..255]
-                if (element.getNodeName().equals(MACRO)) {
-                    while (usedIDs.contains(nextMacroId)) nextMacroId++;
-                    if (nextMacroId >= 256) {
-                        throw new PoolException("Too many macros (>256)!");
+        /**
+         * Finds all real elements with no id and gives them an unused id.
+         * @return 
+         */
+        ExportPipeline.Stage createStage() {
+            return new ExportPipeline.Stage("create ids") {
+                @Override
+                void visit(Element element) throws PoolException {
+                    String id = overlay.getAttribute(element, "id");
+                    // if a real isobus objects has no id, then create it one
+                    if (!id.isEmpty() || !Utils.equals(element.getNodeName(), OBJECTS)) {
+                        return;
                     }
-                    element.setAttribute(ID, Integer.toString(nextMacroId));
-                    usedIDs.add(nextMacroId);
-                    out.println("Created ID " + nextMacroId + " for " + element.getAttribute(NAME) + 
-                                " (" + element.getNodeName() + ")");
-                }
-                // other ids are [256..65535]
-                else {
-                    while (usedIDs.contains(nextId)) nextId++;
-                    if (nextMacroId >= 65536) {
-                        throw new PoolException("Too many objects!");
+                    // macro ids are [0..255], other ids are [256..65535]
+                    boolean macro = element.getNodeName().equals(MACRO);
+                    int min = macro ? 0 : 256;
+                    int limit = macro ? 256 : 65536;
+                    String key = keys.get(element);
+                    
+                    // keep the id of the previous export
+                    Integer old = ledger.get(key);
+                    if (old != null && old >= min && old < limit && !usedIDs.get(old)) {
+                        overlay.setAttribute(element, ID, Integer.toString(old));
+                        use(old);
+                        out.println("Reused ID " + old + " for " + overlay.getAttribute(element, NAME) + 
+                                    " (" + element.getNodeName() + ")");
+                        return;
+                    }
+                    
+                    // ids in the ledger are used only if there is no other
+                    // free id, the bits are only set so the searches go on
+                    // from where they ended
+                    int newId;
+                    if (macro) {
+                        newId = nextMacroId = takenIDs.nextClearBit(nextMacroId);
+                        if (newId >= limit) {
+                            newId = nextLedgerMacroId = usedIDs.nextClearBit(nextLedgerMacroId);
+                        }
+                        if (newId >= limit) {
+                            throw new PoolException("Too many macros (>256)!");
+                        }
+                    }
+                    else {
+                        newId = nextId = takenIDs.nextClearBit(nextId);
+                        if (newId >= limit) {
+                            newId = nextLedgerId = usedIDs.nextClearBit(nextLedgerId);
+                        }
+                        if (newId >= limit) {
+                            throw new PoolException("Too many objects!");
+                        }
                     }
-                    element.setAttribute(ID, Integer.toString(nextId));
-                    usedIDs.add(nextId);
-                    out.println("Created ID "+ nextId + " for " + element.getAttribute(NAME) + 
+                    overlay.setAttribute(element, ID, Integer.toString(newId));
+                    use(newId);
+                    ledger.put(key, newId);
+                    out.println("Created ID " + newId + " for " + overlay.getAttribute(element, NAME) + 
                                 " (" + element.getNodeName() + ")");
                 }
-            }
+            };
+        }
+        
+        /**
+         * Stores the ids of this export for the next one.
+         * @throws IOException 
+         */
+        void save() throws IOException {
+            ledger.save();
         }
     }
 
     /**
-     * Adds ID attributes to all include_objects.
+     * Adds ID attributes to all include_objects. The include_objects are
+     * collected during the walk and get their ids after it, when every
+     * object they can refer to has an id.
      * 
-     * @param out
-     * @param clone 
+     * @param nameMap
+     * @return 
      */
-    private static void createObjectIDsForIncludeObjects(PrintStream out,
-            Document clone, Map<String, Element> nameMap) {
-
-        // use name map to add right id to all include_objects
-
-        NodeList nodes = clone.getElementsByTagName(INCLUDE_OBJECT);         
-        for (int i = 0, n = nodes.getLength(); i < n; i++) {
-            Element element = (Element) nodes.item(i);
-            String name = element.getAttribute(NAME);
-            if (nameMap.containsKey(name)) {
-                element.setAttribute("id", nameMap.get(name).getAttribute("id"));
-            } 
-            else {
-                out.println("ERROR: Can't find object: \"" + name + "\"");
-            }            
-        }
+    private static ExportPipeline.Stage includeObjectIDsStage(final Map<String, Element> nameMap) {
+        return new ExportPipeline.Stage("include_object ids") {
+            private final List<Element> includeObjects = new ArrayList<>();
+            
+            @Override
+            void visit(Element element) {
+                if (element.getNodeName().equals(INCLUDE_OBJECT)) {
+                    includeObjects.add(element);
+                }
+            }
+            
+            @Override
+            void finish() {
+                // use name map to add right id to all include_objects
+                for (Element element : includeObjects) {
+                    String name = overlay.getAttribute(element, NAME);
+                    if (nameMap.containsKey(name)) {
+                        overlay.setAttribute(element, "id", overlay.getAttribute(nameMap.get(name), "id"));
+                    } 
+                    else {
+                        out.println("ERROR: Can't find object: \"" + name + "\"");
+                    }
+                }
+            }
+        };
     }
 
     /**
+     * Replaces all block_font attributes with block_font_size.
      * 
-     * @param clone
      * @param nameMap 
+     * @return 
      */
-    private static void replaceAllBlockFontAttributes(Document clone,
-            Map<String, Element> nameMap) {
-        
-        // replace all block_font-attributes with block_font_size
-        NodeList nodes = clone.getElementsByTagName("*");         
-        for (int i = 0, n = nodes.getLength(); i < n; i++) {
-            Element element = (Element) nodes.item(i);
-            String blockFont = element.getAttribute(BLOCK_FONT);
-            if (!blockFont.isEmpty()){
-                if (nameMap.containsKey(blockFont)) {
-                    Element font = nameMap.get(blockFont);
-                    element.setAttribute(BLOCK_FONT_SIZE, font.getAttribute(FONT_SIZE));
+    private static ExportPipeline.Stage blockFontStage(final Map<String, Element> nameMap) {
+        return new ExportPipeline.Stage("block fonts") {
+            @Override
+            void visit(Element element) {
+                String blockFont = overlay.getAttribute(element, BLOCK_FONT);
+                if (!blockFont.isEmpty()){
+                    if (nameMap.containsKey(blockFont)) {
+                        Element font = nameMap.get(blockFont);
+                        overlay.setAttribute(element, BLOCK_FONT_SIZE, overlay.getAttribute(font, FONT_SIZE));
+                    }
+                    overlay.removeAttribute(element, BLOCK_FONT);
+                } 
+                else {
+                    // if no block font then these are not needed
+                    overlay.removeAttribute(element, BLOCK_COL);
+                    overlay.removeAttribute(element, BLOCK_ROW);
+                    overlay.removeAttribute(element, BLOCK_FONT);
                 }
-                element.removeAttribute(BLOCK_FONT);
-            } 
-            else {
-                // if no block font then these are not needed
-                element.removeAttribute(BLOCK_COL);
-                element.removeAttribute(BLOCK_ROW);
-                element.removeAttribute(BLOCK_FONT);
             }
-        }
+        };
     }
 
-    private static void markAllChildMasksAndDesignators(PrintStream out,
-            Document clone, Map<String, Element> nameMap) {
-        
-        NodeList nodes = clone.getElementsByTagName("*");
-        for (int i = 0, n = nodes.getLength(); i < n; i++) {
-            Element element = (Element) nodes.item(i);
-            String name = element.getNodeName();
-            if (Utils.equals(name, DATAMASK, ALARMMASK)) {
-                markChildrenMask(out, element, nameMap);
+    /** uses of the mask / designator marking */
+    private static final String[] USES = {"mask", "designator"};
+    private static final int MASK_USE = 0;
+    private static final int DESIGNATOR_USE = 1;
+    
+    /**
+     * Marks the objects used by masks and the objects used by designators
+     * (working sets, soft key masks, keys and auxiliary objects). The use
+     * of a mask or designator is passed to all objects under it, following
+     * the links. An object used by both gets "both", except fill
+     * attributes, which get the use of the last mask or designator (in
+     * document order) that refers to them.
+     * <p>
+     * The objects form a graph, an object can be shared by many masks and
+     * links can even form a cycle. The graph is walked once per use: an
+     * object that already has the use is not walked again.
+     * 
+     * @param nameMap 
+     * @return 
+     */
+    private static ExportPipeline.Stage markMasksAndDesignatorsStage(final Map<String, Element> nameMap) {
+        return new ExportPipeline.Stage("mask / designator use") {
+            /** object -> index in the visited sets */
+            private final Map<Element, Integer> index = new IdentityHashMap<>();
+            private final BitSet[] visited = {new BitSet(), new BitSet()};
+            /** masks and designators in document order */
+            private final List<Element> roots = new ArrayList<>();
+            private final BitSet designators = new BitSet();
+            /** fill attributes used by both */
+            private final List<Element> fills = new ArrayList<>();
+            /** objects reached by the reverse walk and how */
+            private final BitSet reached = new BitSet();
+            private final BitSet reachedByDesignator = new BitSet();
+            
+            @Override
+            void visit(Element element) {
+                String name = element.getNodeName();
+                int use;
+                if (Utils.equals(name, DATAMASK, ALARMMASK)) {
+                    use = MASK_USE;
+                }
+                // marking softkeymask is necessary as it can contain pointers as well as keys
+                else if (Utils.equals(name, WORKINGSET, SOFTKEYMASK, KEY, AUXILIARYFUNCTION, AUXILIARYINPUT)) {
+                    use = DESIGNATOR_USE;
+                    designators.set(roots.size());
+                }
+                else {
+                    return;
+                }
+                roots.add(element);
+                mark(element, use, visited[use], true);
             }
-            // marking softkeymask is necessary as it can contain pointers as well as keys
-            else if (Utils.equals(name, WORKINGSET, SOFTKEYMASK, KEY, AUXILIARYFUNCTION, AUXILIARYINPUT)) {
-                markChildrenDesignator(out, element, nameMap);
+            
+            @Override
+            void finish() {
+                if (fills.isEmpty()) {
+                    return;
+                }
+                // walking the masks and designators in reverse order, an
+                // object is first reached from the last one that refers
+                // to it
+                BitSet[] done = {new BitSet(), new BitSet()};
+                for (int i = roots.size() - 1; i >= 0; i--) {
+                    int use = designators.get(i) ? DESIGNATOR_USE : MASK_USE;
+                    mark(roots.get(i), use, done[use], false);
+                }
+                for (Element fill : fills) {
+                    int k = index.get(fill);
+                    overlay.setAttribute(fill, USE, USES[reachedByDesignator.get(k) ? 
+                            DESIGNATOR_USE : MASK_USE]);
+                }
             }
-        }
+            
+            /**
+             * Walks the objects under the element that are not done for the
+             * use yet, in the same order as a recursive walk would. The
+             * objects get the use or, in the reverse walk, are recorded as
+             * reached.
+             */
+            private void mark(Element root, int use, BitSet done, boolean update) {
+                Deque<Element> stack = new ArrayDeque<>();
+                stack.push(root);
+                while (!stack.isEmpty()) {
+                    Element element = stack.pop();
+                    Integer k = index.get(element);
+                    if (k == null) {
+                        k = index.size();
+                        index.put(element, k);
+                    }
+                    if (done.get(k)) {
+                        continue;
+                    }
+                    done.set(k);
+                    if (update) {
+                        setUse(element, use);
+                    }
+                    else if (!reached.get(k)) {
+                        reached.set(k);
+                        reachedByDesignator.set(k, use == DESIGNATOR_USE);
+                    }
+                    
+                    String type = element.getNodeName();
+                    List<Element> children = overlay.getChildElementList(element);
+                    for (int i = children.size() - 1; i >= 0; i--) {
+                        Element e = children.get(i);
+                        // follow links
+                        if (Utils.equals(e.getNodeName(), INCLUDE_OBJECT)) {
+                            e = nameMap.get(overlay.getAttribute(e, NAME));
+                            if (e == null) {
+                                continue; // broken link
+                            }
+                        }
+                        // skip if child is not a proper object or if
+                        // the element is data / alarmmask and the child is
+                        // softkeymask or if the element is workingset and
+                        // the child is data / alarmmask
+                        String childType = e.getNodeName();
+                        if (!Utils.equals(childType, OBJECTS) ||
+                                (use == MASK_USE &&
+                                Utils.equals(type, DATAMASK, ALARMMASK) &&
+                                Utils.equals(childType, SOFTKEYMASK)) ||
+                                (use == DESIGNATOR_USE &&
+                                Utils.equals(type, WORKINGSET) &&
+                                Utils.equals(childType, DATAMASK, ALARMMASK))) {
+                            continue;
+                        }
+                        stack.push(e);
+                    }
+                }
+            }
+            
+            /**
+             * Called when the element gets the use for the first time.
+             */
+            private void setUse(Element element, int use) {
+                String type = element.getNodeName();
+                String name = overlay.getAttribute(element, NAME);
+                String current = overlay.getAttribute(element, USE);
+                if (Utils.equals(type, FILLATTRIBUTES)) {
+                    overlay.setAttribute(element, USE, USES[use]);
+                    if (visited[1 - use].get(index.get(element))) {
+                        fills.add(element);
+                    }
+                }
+                else if (Utils.equals(current, USES[1 - use], "both")) {
+                    if (current.equals("both") && 
+                            visited[1 - use].get(index.get(element))) {
+                        return; // reported already
+                    }
+                    out.println("ERROR: element \"" + name + "\" (" + type +
+                            ") use attribute is now \"both\"!");
+                    overlay.setAttribute(element, USE, "both");
+                }
+                else {
+                    overlay.setAttribute(element, USE, USES[use]);
+                }
+            }
+        };
     }
     
     /**
@@ -1718,22 +2158,42 @@ public class Tools {
      * from 1 degree to 2 degrees). NOTE: it is very debatable whether any 
      * XML format should be using 2 degrees as angle unit. 
      */
-    private static void divAngles(Element root) {
-        String angleAttrs[] = {START_ANGLE, END_ANGLE};
-        
-        // iterate over all objects
-        NodeList elements = root.getElementsByTagName("*");
-        for (int i = 0; i < elements.getLength(); i++) {
-            Element element = (Element) elements.item(i);
+    private static ExportPipeline.Stage divAnglesStage() {
+        return new ExportPipeline.Stage("divide angles") {
+            private final String angleAttrs[] = {START_ANGLE, END_ANGLE};
             
-            // iterate over the specified attributes
-            for (String attribute: angleAttrs) {
-                if (!element.getAttribute(attribute).isEmpty()) {
-                    int value = Integer.parseInt(element.getAttribute(attribute));
-                    element.setAttribute(attribute, Integer.toString(value / 2));
+            @Override
+            void visit(Element element) {
+                // iterate over the specified attributes
+                for (String attribute: angleAttrs) {
+                    if (!overlay.getAttribute(element, attribute).isEmpty()) {
+                        int value = Integer.parseInt(overlay.getAttribute(element, attribute));
+                        overlay.setAttribute(element, attribute, Integer.toString(value / 2));
+                    }
                 }
             }
-        }
+        };
+    }
+    
+    /**
+     * Removes the include objects that have a role and sets the role 
+     * attribute of their parents instead (see removeRoles).
+     */
+    private static ExportPipeline.Stage removeRolesStage() {
+        return new ExportPipeline.Stage("remove roles") {
+            @Override
+            void visit(Element element) {
+                if (!element.getNodeName().equals(INCLUDE_OBJECT)) {
+                    return;
+                }
+                String role = overlay.getAttribute(element, ROLE);
+                if (!role.isEmpty()) {
+                    Element parent = (Element) element.getParentNode();
+                    overlay.setAttribute(parent, role, overlay.getAttribute(element, NAME));
+                    overlay.remove(element);
+                }
+            }
+        };
     }
     
     /**
@@ -1764,13 +2224,15 @@ public class Tools {
         }
     }  
     
+    // attributes that are checked by createRole
+    private static final String ROLE_ATTRIBUTES[] = {
+        ACTIVE_MASK, SOFT_KEY_MASK, FONT_ATTRIBUTES, FOREGROUND_COLOUR, 
+        INPUT_ATTRIBUTES, VARIABLE_REFERENCE, TARGET_VALUE_VARIABLE_REFERENCE,
+        LINE_ATTRIBUTES, FILL_ATTRIBUTES, FILL_PATTERN
+    };
+    
     static void createRole(Element element, List<Pair<Element, Element>> worklist) {
-        // attributes that are checked        
-        final String attributes[] = {
-            ACTIVE_MASK, SOFT_KEY_MASK, FONT_ATTRIBUTES, FOREGROUND_COLOUR, 
-            INPUT_ATTRIBUTES, VARIABLE_REFERENCE, TARGET_VALUE_VARIABLE_REFERENCE,
-            LINE_ATTRIBUTES, FILL_ATTRIBUTES, FILL_PATTERN
-        };
+        final String attributes[] = ROLE_ATTRIBUTES;
         
         // iterate over all attributes
         Document doc = element.getOwnerDocument();
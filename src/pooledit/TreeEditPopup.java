@@ -27,6 +27,7 @@ import static pooledit.Definitions.*;
 import java.awt.Dimension;
 import java.awt.image.BufferedImage;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -42,6 +43,8 @@ import org.w3c.dom.Document;
 import org.w3c.dom.Element;
 import org.w3c.dom.Node;
 import org.w3c.dom.NodeList;
+import treemodel.NameAllocator;
+import treemodel.ReferenceIndex;
 import treemodel.XMLTreeModel;
 import treemodel.XMLTreeNode;
 
@@ -161,8 +164,7 @@ public abstract class TreeEditPopup {
                 if (link == null && node.isType(OBJECTS)) {
                     // setup unique name
                     String name = duplicate.getAttribute(NAME);
-                    String newname = Tools.findFreeName(name, Tools.createNameMap(node.getModel().getDocument(), true));
-                    // node.getModel().getNameMap());
+                    String newname = NameAllocator.getInstance(node.getModel().getDocument()).allocate(name);
                     duplicate.setAttribute(NAME, newname);
                 }
                 target.getParentNode().insertBefore(duplicate, target.getNextSibling());
@@ -416,7 +418,7 @@ public abstract class TreeEditPopup {
                 //XMLTreeModel model = node.getModel();
                 //Element candidate = model.getElementByName(node.getName());
 
-                Map<String, Element> nameMap = Tools.createNameMap(actual.getOwnerDocument());
+                Map<String, Element> nameMap = node.getModel().getNameMap();
                 Element candidate = nameMap.get(actual.getAttribute(NAME));
                 optimize(actual, candidate, nameMap);
 
@@ -425,6 +427,32 @@ public abstract class TreeEditPopup {
         });
         pup.add(optimizeItem);
 
+        JMenuItem deduplicateItem = new JMenuItem("Deduplicate Pool");
+        deduplicateItem.addActionListener(new ActionListener() {
+
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                XMLTreeModel model = getXMLTreeModel();
+                Deduplicator deduplicator = new Deduplicator(model.getDocument());
+
+                // all replacements are applied to the tree model as one batch
+                model.beginUpdate();
+                try {
+                    deduplicator.run();
+                }
+                finally {
+                    model.endUpdate();
+                }
+                String msg = "Removed " + deduplicator.getObjectCount() +
+                        " duplicate objects (" + deduplicator.getByteCount() +
+                        " bytes) in " + deduplicator.getGroupCount() + " groups";
+                System.out.println(msg);
+                JOptionPane.showMessageDialog(null, msg,
+                        "Deduplicate Pool", JOptionPane.INFORMATION_MESSAGE);
+            }
+        });
+        pup.add(deduplicateItem);
+
         pup.addSeparator();
 
         JMenuItem bringFrontItem = new JMenuItem("Bring to Front");
@@ -645,7 +673,24 @@ public abstract class TreeEditPopup {
         // if there are two actual objects with the same name and
         // the user wants to rename one of them, both names will change!
 
-        Document doc = child.getModel().getDocument();
+        XMLTreeModel model = child.getModel();
+        Document doc = model.getDocument();
+        
+        // all renames are applied to the tree model as one batch
+        model.beginUpdate();
+        try {
+            renameObject(doc, actual, link, oldName, newName);
+        }
+        finally {
+            model.endUpdate();
+        }
+    }
+    
+    /**
+     * Renames the actual object or link and updates the links to it.
+     */
+    static private void renameObject(Document doc, Element actual, Element link,
+            String oldName, String newName) {
         
         // working link
         if (link != null) {
@@ -666,15 +711,7 @@ public abstract class TreeEditPopup {
 
             // rename possible links elsewhere in the document
             //System.out.println("CHANGING LINK NAMES");
-            NodeList elements = doc.getElementsByTagName("*");
-            for (int i = 0,  n = elements.getLength(); i < n; i++) {
-                Element elem = (Element) elements.item(i);
-                if (elem.getNodeName().equals(INCLUDE_OBJECT)) {
-                    if (elem.getAttribute(NAME).equals(oldName)) {
-                        elem.setAttribute(NAME, newName);
-                    }
-                }
-            }
+            renameLinks(doc, oldName, newName);
         } // actual object or broken link
         else if (actual != null) {
             
@@ -683,18 +720,22 @@ public abstract class TreeEditPopup {
 
             // if the object is at the root level, update all links to it
             if (actual.getParentNode().equals(doc.getDocumentElement())) {
-                NodeList elements = doc.getElementsByTagName("*");
-                for (int i = 0,  n = elements.getLength(); i < n; i++) {
-                    Element elem = (Element) elements.item(i);
-                    if (elem.getNodeName().equals(INCLUDE_OBJECT)) {
-                        if (elem.getAttribute(NAME).equals(oldName)) {
-                            elem.setAttribute(NAME, newName);
-                        }
-                    }
-                }
+                renameLinks(doc, oldName, newName);
             }
         }
     }
+    
+    /**
+     * Renames all include_objects that refer to the old name.
+     */
+    static private void renameLinks(Document doc, String oldName, String newName) {
+        // the index changes while the links are renamed
+        List<Element> links = new ArrayList<>(
+                ReferenceIndex.getInstance(doc).getReferences(oldName));
+        for (Element elem : links) {
+            elem.setAttribute(NAME, newName);
+        }
+    }
 
     /**
      * Adapted from mouse controller.
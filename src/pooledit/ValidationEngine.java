@@ -0,0 +1,448 @@
+/*
+ * Copyright (C) 2019 Automation technology laboratory,
+ * Helsinki University of Technology
+ *
+ * Visit automation.tkk.fi for information about the automation
+ * technology laboratory.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 3
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston,
+ * MA 02111-1307, USA.
+ */
+package pooledit;
+
+import static pooledit.Definitions.*;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import javax.swing.SwingUtilities;
+import javax.swing.event.ChangeEvent;
+import javax.swing.event.ChangeListener;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+import org.w3c.dom.events.Event;
+import org.w3c.dom.events.EventListener;
+import org.w3c.dom.events.EventTarget;
+import org.w3c.dom.events.MutationEvent;
+import treemodel.NameRegistry;
+import treemodel.ReferenceIndex;
+
+/**
+ * Incremental validation of a document. The engine collects the objects
+ * changed by DOM mutation events and checks only them and the
+ * include_objects that refer to them (renaming, adding or removing an
+ * object changes what a link resolves to). The document is read on the
+ * event dispatch thread when the changes are collected, the checks and
+ * the bookkeeping of the results run on a background thread and the
+ * results are published back on the event dispatch thread.
+ * <p>
+ * There is one engine per document, it is stored as user data of the
+ * document.
+ *
+ * @author mohman
+ */
+class ValidationEngine implements EventListener {
+
+    static final String ERROR = "error";
+
+    /** include_object refers to an object that does not exist */
+    static final String RULE_LINK = "link";
+    /** role attribute does not fit the place of the object */
+    static final String RULE_ROLE = "role";
+
+    /**
+     * A problem found in an object.
+     */
+    static class Diagnostic {
+        final Element element;
+        final String path;
+        final String type;
+        final String rule;
+        final String severity;
+        final String message;
+
+        Diagnostic(Element element, String path, String type,
+                String rule, String severity, String message) {
+            this.element = element;
+            this.path = path;
+            this.type = type;
+            this.rule = rule;
+            this.severity = severity;
+            this.message = message;
+        }
+    }
+
+    /**
+     * The attributes of an object that the rules look at. The snapshot is
+     * taken on the thread that owns the document, so the checks can run
+     * on any thread.
+     */
+    private static class Subject {
+        final Element element;
+        final String path;
+        final String type;
+        final String role;
+        final String parentType;
+        /** type of the linked object, null if the link is broken */
+        final String linkedType;
+
+        Subject(Element element, Map<String, Element> nameMap) {
+            this.element = element;
+            this.path = Tools.getPath(element);
+            this.type = element.getNodeName();
+            this.role = element.getAttribute(ROLE); // role is in the link!
+            this.parentType = element.getParentNode().getNodeName();
+            if (type.equals(INCLUDE_OBJECT)) {
+                Element linked = nameMap.get(element.getAttribute(NAME));
+                this.linkedType = linked == null ? null : linked.getNodeName();
+            }
+            else {
+                this.linkedType = type;
+            }
+        }
+    }
+
+    private static final String KEY = ValidationEngine.class.getName();
+
+    /** all engines share one thread, the checks are short */
+    private static final ExecutorService WORKER =
+            Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "validation");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    private static final Comparator<Diagnostic> ORDER = new Comparator<Diagnostic>() {
+        @Override
+        public int compare(Diagnostic a, Diagnostic b) {
+            int c = a.path.compareTo(b.path);
+            return c != 0 ? c : a.rule.compareTo(b.rule);
+        }
+    };
+
+    private final Document doc;
+
+    /** changed elements, only used on the event dispatch thread */
+    private final Set<Element> dirty = new LinkedHashSet<>();
+    private boolean scheduled;
+
+    /** element -> its problem, only used on the worker thread */
+    private final Map<Element, Diagnostic> results = new HashMap<>();
+
+    /** the latest published results */
+    private List<Diagnostic> diagnostics = Collections.emptyList();
+    private final List<ChangeListener> listeners = new ArrayList<>();
+
+    private ValidationEngine(Document doc) {
+        this.doc = doc;
+        // the indices must see the same mutations as the engine
+        NameRegistry.getInstance(doc);
+        ReferenceIndex.getInstance(doc);
+        ((EventTarget) doc).addEventListener("DOMNodeRemoved", this, false);
+        ((EventTarget) doc).addEventListener("DOMNodeInserted", this, false);
+        ((EventTarget) doc).addEventListener("DOMAttrModified", this, false);
+        revalidate();
+    }
+
+    /**
+     * Gets the validation engine of the document, the engine is created
+     * (and the whole document checked) when it is first needed.
+     * @param doc
+     * @return
+     */
+    static ValidationEngine getInstance(Document doc) {
+        ValidationEngine engine = (ValidationEngine) doc.getUserData(KEY);
+        if (engine == null) {
+            engine = new ValidationEngine(doc);
+            doc.setUserData(KEY, engine, null);
+        }
+        return engine;
+    }
+
+    /**
+     * Checks one object or link.
+     * @param element
+     * @param nameMap root level name map (see Tools.createNameMap)
+     * @return the problem or null if the object is ok
+     */
+    static Diagnostic check(Element element, Map<String, Element> nameMap) {
+        return check(new Subject(element, nameMap));
+    }
+
+    /**
+     * Checks all objects of the document again.
+     */
+    void revalidate() {
+        NodeList elements = doc.getElementsByTagName("*");
+        for (int i = 0, n = elements.getLength(); i < n; i++) {
+            mark((Element) elements.item(i));
+        }
+        schedule();
+    }
+
+    /**
+     * Gets the latest results sorted by path.
+     * @return
+     */
+    List<Diagnostic> getDiagnostics() {
+        return diagnostics;
+    }
+
+    /**
+     * Adds a listener that is notified on the event dispatch thread when
+     * new results are published.
+     * @param l
+     */
+    void addChangeListener(ChangeListener l) {
+        listeners.add(l);
+    }
+
+    /**
+     * Removes a listener.
+     * @param l
+     */
+    void removeChangeListener(ChangeListener l) {
+        listeners.remove(l);
+    }
+
+    //------------------------------------------------------------//
+
+    private static final String[] ELEMENTS_WITH_ROLES =
+            {DATAMASK, ALARMMASK, SOFTKEYMASK,
+             NUMBERVARIABLE, STRINGVARIABLE, FONTATTRIBUTES,
+             LINEATTRIBUTES, FILLATTRIBUTES, INPUTATTRIBUTES};
+
+    /**
+     * Checks that a link resolves and that the role attribute of the
+     * object is appropriate in the current context of the object. If the
+     * object is a link, the role is checked against the type of the
+     * actual object. In principle, these kinds of check should be made
+     * using XML Schema, but linking complicates things.
+     */
+    private static Diagnostic check(Subject s) {
+        if (s.linkedType == null) {
+            return new Diagnostic(s.element, s.path, s.type, RULE_LINK, ERROR,
+                    "broken link!");
+        }
+        if (!Utils.equals(s.linkedType, ELEMENTS_WITH_ROLES)) {
+            return null;
+        }
+        boolean ok;
+        // if the object is on the root level, it can't have a role
+        if (s.parentType.equals(OBJECTPOOL)) {
+            ok = Utils.equals(s.role, "", "none");
+        }
+        // if the object is under any other object, it must have the right role
+        else if (Utils.equals(s.linkedType, DATAMASK, ALARMMASK)) {
+            ok = Utils.equals(s.role, ACTIVE_MASK);
+        }
+        else if (s.linkedType.equals(SOFTKEYMASK)) {
+            ok = Utils.equals(s.role, SOFT_KEY_MASK);
+        }
+        else if (s.linkedType.equals(NUMBERVARIABLE)) {
+            ok = Utils.equals(s.role, VARIABLE_REFERENCE, TARGET_VALUE_VARIABLE_REFERENCE);
+        }
+        else if (s.linkedType.equals(STRINGVARIABLE)) {
+            ok = Utils.equals(s.role, VARIABLE_REFERENCE);
+        }
+        else if (s.linkedType.equals(FONTATTRIBUTES)) {
+            ok = Utils.equals(s.role, FONT_ATTRIBUTES, FOREGROUND_COLOUR);
+        }
+        else if (s.linkedType.equals(LINEATTRIBUTES)) {
+            ok = Utils.equals(s.role, LINE_ATTRIBUTES);
+        }
+        else if (s.linkedType.equals(FILLATTRIBUTES)) {
+            ok = Utils.equals(s.role, FILL_ATTRIBUTES);
+        }
+        else {
+            ok = Utils.equals(s.role, INPUT_ATTRIBUTES);
+        }
+        return ok ? null : new Diagnostic(s.element, s.path, s.type,
+                RULE_ROLE, ERROR, "illegal role (" + s.role + ")!");
+    }
+
+    /**
+     * Marks the element and all elements under it, and the links to the
+     * objects among them.
+     */
+    private void markTree(Element element) {
+        mark(element);
+        markLinks(element);
+        NodeList elements = element.getElementsByTagName("*");
+        for (int i = 0, n = elements.getLength(); i < n; i++) {
+            Element e = (Element) elements.item(i);
+            mark(e);
+            markLinks(e);
+        }
+    }
+
+    private void mark(Element element) {
+        if (isChecked(element)) {
+            dirty.add(element);
+        }
+    }
+
+    /**
+     * The rules look at the objects and the links.
+     */
+    static boolean isChecked(Element element) {
+        String type = element.getNodeName();
+        return Utils.equals(type, OBJECTS) || type.equals(INCLUDE_OBJECT);
+    }
+
+    private void markLinks(Element element) {
+        if (isRootObject(element)) {
+            markLinks(element.getAttribute(NAME));
+        }
+    }
+
+    /**
+     * Only root level objects are in the name map.
+     */
+    private boolean isRootObject(Element element) {
+        return element.getParentNode() == doc.getDocumentElement() &&
+                !element.getNodeName().equals(INCLUDE_OBJECT);
+    }
+
+    private void markLinks(String name) {
+        if (name != null && !name.isEmpty()) {
+            dirty.addAll(ReferenceIndex.getInstance(doc).getReferences(name));
+        }
+    }
+
+    private boolean isAttached(Node node) {
+        while (node != null && node != doc) {
+            node = node.getParentNode();
+        }
+        return node == doc;
+    }
+
+    /**
+     * Collects the changed elements. This is called while the document is
+     * being modified, removed nodes are still attached to their parents.
+     * @param evt
+     */
+    @Override
+    public void handleEvent(Event evt) {
+        if (!(evt.getTarget() instanceof Element)) {
+            return;
+        }
+        MutationEvent mev = (MutationEvent) evt;
+        Element target = (Element) mev.getTarget();
+        if (!mev.getType().equals("DOMAttrModified")) {
+            markTree(target);
+        }
+        else {
+            String attr = mev.getAttrName();
+            if (attr.equals(NAME)) {
+                // the name is in the paths of the objects under it
+                markTree(target);
+                if (isRootObject(target)) {
+                    markLinks(mev.getPrevValue());
+                }
+            }
+            else if (attr.equals(LANGUAGE)) {
+                // the language is part of the key in the name map
+                mark(target);
+                markLinks(target);
+            }
+            else if (attr.equals(ROLE)) {
+                mark(target);
+            }
+            else {
+                return;
+            }
+        }
+        schedule();
+    }
+
+    /**
+     * Takes the snapshot after the current edit, an edit can fire many
+     * events.
+     */
+    private void schedule() {
+        if (scheduled) {
+            return;
+        }
+        scheduled = true;
+        SwingUtilities.invokeLater(new Runnable() {
+            @Override
+            public void run() {
+                scheduled = false;
+                flush();
+            }
+        });
+    }
+
+    private void flush() {
+        Map<String, Element> nameMap = NameRegistry.getInstance(doc).getRootMap();
+        final List<Subject> subjects = new ArrayList<>();
+        final List<Element> removed = new ArrayList<>();
+        for (Element element : dirty) {
+            if (isAttached(element) && isChecked(element)) {
+                subjects.add(new Subject(element, nameMap));
+            }
+            else {
+                removed.add(element);
+            }
+        }
+        dirty.clear();
+        WORKER.execute(new Runnable() {
+            @Override
+            public void run() {
+                for (Element element : removed) {
+                    results.remove(element);
+                }
+                for (Subject s : subjects) {
+                    Diagnostic d = check(s);
+                    if (d == null) {
+                        results.remove(s.element);
+                    }
+                    else {
+                        results.put(s.element, d);
+                    }
+                }
+                List<Diagnostic> list = new ArrayList<>(results.values());
+                Collections.sort(list, ORDER);
+                publish(Collections.unmodifiableList(list));
+            }
+        });
+    }
+
+    private void publish(final List<Diagnostic> list) {
+        SwingUtilities.invokeLater(new Runnable() {
+            @Override
+            public void run() {
+                diagnostics = list;
+                ChangeEvent e = new ChangeEvent(ValidationEngine.this);
+                for (ChangeListener l : new ArrayList<>(listeners)) {
+                    l.stateChanged(e);
+                }
+            }
+        });
+    }
+}
@@ -0,0 +1,120 @@
+/*
+ * Copyright (C) 2019 Automation technology laboratory,
+ * Helsinki University of Technology
+ *
+ * Visit automation.tkk.fi for information about the automation
+ * technology laboratory.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 3
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston,
+ * MA 02111-1307, USA.
+ */
+package pooledit;
+
+import java.util.Collections;
+import java.util.List;
+import javax.swing.event.ChangeEvent;
+import javax.swing.event.ChangeListener;
+import javax.swing.table.AbstractTableModel;
+import org.w3c.dom.Document;
+
+/**
+ * Shows the results of the validation engine of the active document.
+ *
+ * @author mohman
+ */
+class ValidationTableModel extends AbstractTableModel implements ChangeListener {
+
+    private static final String[] COL_NAMES = {"Severity", "Rule", "Object", "Message"};
+
+    private ValidationEngine engine;
+    private List<ValidationEngine.Diagnostic> diagnostics = Collections.emptyList();
+
+    /**
+     * Sets the document.
+     * @param doc
+     */
+    void setDocument(Document doc) {
+        ValidationEngine e = doc == null ? null : ValidationEngine.getInstance(doc);
+        if (engine == e) {
+            return;
+        }
+        if (engine != null) {
+            engine.removeChangeListener(this);
+        }
+        engine = e;
+        if (engine != null) {
+            engine.addChangeListener(this);
+        }
+        stateChanged(null);
+    }
+
+    /**
+     * Checks the whole document again.
+     */
+    void revalidate() {
+        if (engine != null) {
+            engine.revalidate();
+        }
+    }
+
+    /**
+     * Gets the diagnostic shown on the row.
+     * @param row
+     * @return
+     */
+    ValidationEngine.Diagnostic getDiagnostic(int row) {
+        return diagnostics.get(row);
+    }
+
+    /**
+     * Called when the engine publishes new results.
+     * @param e
+     */
+    @Override
+    public void stateChanged(ChangeEvent e) {
+        diagnostics = engine == null ?
+                Collections.<ValidationEngine.Diagnostic>emptyList() :
+                engine.getDiagnostics();
+        fireTableDataChanged();
+    }
+
+    //------------------------------------------//
+
+    @Override
+    public String getColumnName(int col) {
+        return COL_NAMES[col];
+    }
+
+    @Override
+    public int getColumnCount() {
+        return COL_NAMES.length;
+    }
+
+    @Override
+    public int getRowCount() {
+        return diagnostics.size();
+    }
+
+    @Override
+    public Object getValueAt(int row, int col) {
+        ValidationEngine.Diagnostic d = diagnostics.get(row);
+        switch (col) {
+            case 0: return d.severity;
+            case 1: return d.rule;
+            case 2: return d.path + " (" + d.type + ")";
+            default: return d.message;
+        }
+    }
+}
@@ -59,6 +59,7 @@ import javax.xml.transform.TransformerConfigurationException;
 import javax.xml.transform.TransformerException;
 import static jdk.internal.org.jline.utils.Colors.s;
 import pooledit.FileTools;
+import treemodel.NameAllocator;
 
 /**
  * Constructor.
@@ -2582,14 +2583,15 @@ public class PoolImporter {
     }
 
     /**
-     *
+     * Gets the name if it is free, otherwise allocates a free name like
+     * it. Objects without a name are named after their type.
      * @param name
      * @param type
-     * @param set
+     * @param names
      * @return
      */
-    public String createUniqueName(String name, String type, Set<String> set) {
-        if (!name.isEmpty() && !set.contains(name))
+    public String createUniqueName(String name, String type, NameAllocator names) {
+        if (!name.isEmpty() && !names.isUsed(name))
 	    return name;
 
         int i = name.length() - 1;
@@ -2600,11 +2602,7 @@ public class PoolImporter {
 	    basename = type;
 	}
 	int n = digits.isEmpty() ? 0 : Integer.parseInt(digits);
-
-	//go through names until free name is found
-	String result;
-        while (set.contains(result = basename + n)) n++;
-        return result;
+        return names.allocate(basename, n);
     }
 
     /**
@@ -2711,6 +2709,7 @@ public class PoolImporter {
 	    List<VTObject> list = new ArrayList<>();
 	    Map<Integer, String> map = new HashMap<>();
 	    Set<String> set = new HashSet<>();
+	    NameAllocator names = new NameAllocator(set);
 
 	    String name, desc;
 	    while ((name = input.readLine()) != null) {
@@ -2721,7 +2720,7 @@ public class PoolImporter {
 		while (sc.hasNext()) {
 		    int id = br.readId();
 		    VTObject vto = createVTO(br);
-		    name = createUniqueName(name, vto.getType(), set);
+		    name = createUniqueName(name, vto.getType(), names);
 		    set.add(name);
 		    map.put(id, name);
 		    vto.setName(name);
@@ -2755,13 +2754,14 @@ public class PoolImporter {
 	    List<VTObject> list = new ArrayList<>();
 	    Map<Integer, String> map = new HashMap<>();
 	    Set<String> set = new HashSet<>();
+	    NameAllocator names = new NameAllocator(set);
 
 	    ByteReader br = new IOPReader(input);
 	    int b;
 	    while ((b = input.read()) >= 0) {
 		int id = b | (br.readByte() << 8);
 		VTObject vto = createVTO(br);
-		String name = createUniqueName("", vto.getType(), set);
+		String name = createUniqueName("", vto.getType(), names);
 		set.add(name);
 		map.put(id, name);
 		vto.setName(name);
@@ -2791,6 +2791,7 @@ public class PoolImporter {
 	    List<VTObject> list = new ArrayList<>();
 	    Map<Integer, String> map2 = new HashMap<>();
 	    Set<String> set = new HashSet<>();
+	    NameAllocator names = new NameAllocator(set);
             
             String line;
             int mode = 0;
@@ -2839,7 +2840,7 @@ public class PoolImporter {
                     String name = map1.get(id);
                     if (name == null)
                         name = ""; // not suppose to happen!
-                    name = createUniqueName(name, vto.getType(), set);
+                    name = createUniqueName(name, vto.getType(), names);
                     set.add(name);
                     map2.put(id, name);
                     
@@ -0,0 +1,262 @@
+/*
+ * Copyright (C) 2019 Automation technology laboratory,
+ * Helsinki University of Technology
+ *
+ * Visit automation.tkk.fi for information about the automation
+ * technology laboratory.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 3
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston,
+ * MA 02111-1307, USA.
+ */
+package treemodel;
+
+import static pooledit.Definitions.*;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+
+/**
+ * Pre-parsed numeric attributes and option flags of an element. The
+ * snapshot is built when it is first needed, stored as user data of the
+ * element and marked stale when an attribute of the element changes.
+ * Attributes that do not parse are parsed again by the getter, so the
+ * caller gets the same exception as without the snapshot.
+ *
+ * @author mohman
+ */
+class AttributeSnapshot {
+
+    private static final String KEY = AttributeSnapshot.class.getName();
+
+    /** integer attributes, the indices below refer to this array */
+    private static final String[] INT_ATTRIBUTES = {
+        POS_X, POS_Y, BLOCK_COL, BLOCK_ROW, WIDTH, HEIGHT, START_ANGLE,
+        END_ANGLE, NUMBER_OF_DECIMALS, MIN_VALUE, MAX_VALUE, NUMBER_OF_TICKS,
+        BAR_GRAPH_WIDTH, OFFSET, VALUE, TARGET_VALUE, DIMENSION, SK_WIDTH,
+        SK_HEIGHT
+    };
+    static final int I_POS_X = 0;
+    static final int I_POS_Y = 1;
+    static final int I_BLOCK_COL = 2;
+    static final int I_BLOCK_ROW = 3;
+    static final int I_WIDTH = 4;
+    static final int I_HEIGHT = 5;
+    static final int I_START_ANGLE = 6;
+    static final int I_END_ANGLE = 7;
+    static final int I_NUMBER_OF_DECIMALS = 8;
+    static final int I_MIN_VALUE = 9;
+    static final int I_MAX_VALUE = 10;
+    static final int I_NUMBER_OF_TICKS = 11;
+    static final int I_BAR_GRAPH_WIDTH = 12;
+    static final int I_OFFSET = 13;
+    static final int I_VALUE = 14;
+    static final int I_TARGET_VALUE = 15;
+    static final int I_DIMENSION = 16;
+    static final int I_SK_WIDTH = 17;
+    static final int I_SK_HEIGHT = 18;
+
+    /** option names, a flag is set if the options attribute contains it */
+    private static final String[] OPTION_NAMES = {
+        "arc", "border", "ticks", "nofill", "targetline", "horizontal",
+        "growpositive", "clockwise", "transparent", "flashing", "autowrap",
+        "leadingzeros", "blankzero"
+    };
+    static final int O_ARC = 1 << 0;
+    static final int O_BORDER = 1 << 1;
+    static final int O_TICKS = 1 << 2;
+    static final int O_NOFILL = 1 << 3;
+    static final int O_TARGETLINE = 1 << 4;
+    static final int O_HORIZONTAL = 1 << 5;
+    static final int O_GROWPOSITIVE = 1 << 6;
+    static final int O_CLOCKWISE = 1 << 7;
+    static final int O_TRANSPARENT = 1 << 8;
+    static final int O_FLASHING = 1 << 9;
+    static final int O_AUTOWRAP = 1 << 10;
+    static final int O_LEADINGZEROS = 1 << 11;
+    static final int O_BLANKZERO = 1 << 12;
+
+    private final int[] values = new int[INT_ATTRIBUTES.length];
+    private int present; // bit i: attribute i is not empty
+    private int invalid; // bit i: attribute i does not parse
+    private String[] raw; // values of the invalid attributes
+
+    private final double scale;
+    private final String scaleRaw; // null if scale parsed
+    private final int options;
+    private final String blockFont;
+
+    private boolean stale;
+
+    private AttributeSnapshot(Element element) {
+        for (int i = 0, n = INT_ATTRIBUTES.length; i < n; i++) {
+            String s = element.getAttribute(INT_ATTRIBUTES[i]);
+            if (s.isEmpty()) {
+                continue;
+            }
+            present |= 1 << i;
+            try {
+                values[i] = XMLTreeNode.parseInt(s);
+            }
+            catch (NumberFormatException ex) {
+                invalid |= 1 << i;
+                if (raw == null) {
+                    raw = new String[n];
+                }
+                raw[i] = s;
+            }
+        }
+
+        String s = element.getAttribute(SCALE);
+        double d = 1.0;
+        String r = null;
+        if (!s.isEmpty()) {
+            try {
+                d = Double.parseDouble(s);
+            }
+            catch (NumberFormatException ex) {
+                r = s;
+            }
+        }
+        scale = d;
+        scaleRaw = r;
+
+        String opt = element.getAttribute(OPTIONS);
+        int o = 0;
+        if (!opt.isEmpty()) {
+            for (int i = 0, n = OPTION_NAMES.length; i < n; i++) {
+                if (opt.contains(OPTION_NAMES[i])) {
+                    o |= 1 << i;
+                }
+            }
+        }
+        options = o;
+        blockFont = element.getAttribute(BLOCK_FONT);
+    }
+
+    /**
+     * Gets the snapshot of the element, a new snapshot is created if the
+     * element has none.
+     * @param element
+     * @return
+     */
+    static AttributeSnapshot getInstance(Element element) {
+        AttributeSnapshot snapshot = (AttributeSnapshot) element.getUserData(KEY);
+        if (snapshot == null) {
+            snapshot = new AttributeSnapshot(element);
+            element.setUserData(KEY, snapshot, null);
+        }
+        return snapshot;
+    }
+
+    /**
+     * Throws away the snapshot of the element (if any). Nodes that still
+     * hold it will notice that it is stale.
+     * @param element
+     */
+    static void invalidate(Element element) {
+        AttributeSnapshot snapshot = (AttributeSnapshot) element.getUserData(KEY);
+        if (snapshot != null) {
+            snapshot.stale = true;
+            element.setUserData(KEY, null, null);
+        }
+    }
+
+    /**
+     * Calls invalidate for the element and all elements under it.
+     * @param element
+     */
+    static void invalidateAll(Element element) {
+        invalidate(element);
+        NodeList elements = element.getElementsByTagName("*");
+        for (int i = 0, n = elements.getLength(); i < n; i++) {
+            invalidate((Element) elements.item(i));
+        }
+    }
+
+    /**
+     * Checks whether an attribute of the element has changed after this
+     * snapshot was taken.
+     * @return
+     */
+    boolean isStale() {
+        return stale;
+    }
+
+    /**
+     * Checks whether the integer attribute is not empty.
+     * @param index
+     * @return
+     */
+    boolean has(int index) {
+        return (present & (1 << index)) != 0;
+    }
+
+    /**
+     * Gets the value of a non-empty integer attribute.
+     * @param index
+     * @return
+     */
+    int get(int index) {
+        if ((invalid & (1 << index)) != 0) {
+            // throws the same exception as parsing without the snapshot
+            return XMLTreeNode.parseInt(raw[index]);
+        }
+        return values[index];
+    }
+
+    /**
+     * Gets the value of an integer attribute, null if it is empty.
+     * @param index
+     * @return
+     */
+    Integer getInteger(int index) {
+        return has(index) ? get(index) : null;
+    }
+
+    /**
+     * Gets the value of an integer attribute, or the default value if
+     * it is empty.
+     * @param index
+     * @param def
+     * @return
+     */
+    int getInt(int index, int def) {
+        return has(index) ? get(index) : def;
+    }
+
+    /**
+     * Gets the value of the scale attribute, 1.0 if it is empty.
+     * @return
+     */
+    double getScale() {
+        return scaleRaw != null ? Double.parseDouble(scaleRaw) : scale;
+    }
+
+    /**
+     * Checks whether the options attribute contains the option(s).
+     * @param option
+     * @return
+     */
+    boolean isOption(int option) {
+        return (options & option) != 0;
+    }
+
+    /**
+     * Gets the value of the block_font attribute.
+     * @return
+     */
+    String getBlockFont() {
+        return blockFont;
+    }
+}
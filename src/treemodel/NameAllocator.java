@@ -0,0 +1,180 @@
+/*
+ * Copyright (C) 2019 Automation technology laboratory,
+ * Helsinki University of Technology
+ *
+ * Visit automation.tkk.fi for information about the automation
+ * technology laboratory.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 3
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston,
+ * MA 02111-1307, USA.
+ */
+package treemodel;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import org.w3c.dom.Document;
+
+/**
+ * Allocates free object names. A name is split into a base name and a
+ * number ("meter12" is "meter" and 12) and the next free name is the
+ * base name with the first unused number from there on. The allocator
+ * remembers where each search ended, so allocating N names with the same
+ * base name costs O(N) instead of probing the numbers from the start
+ * each time.
+ * <p>
+ * The used names are read from a set that may change between calls
+ * (e.g. the names of a NameRegistry), so names added by other means are
+ * never returned. A returned name is reserved until it shows up in the
+ * set, or until it is released (e.g. by a cancelled wizard), then it can
+ * be returned again. Names that are removed from the set later are not
+ * reused, the searches do not go back.
+ *
+ * @author mohman
+ */
+public class NameAllocator {
+
+    private static final String KEY = NameAllocator.class.getName();
+
+    private final Set<String> names;
+    /** names returned but maybe not used yet */
+    private final Set<String> allocated = new HashSet<>();
+    /** base name and first number -> next number to try */
+    private final Map<String, Integer> next = new HashMap<>();
+    /** number of reserved names after the last sweep */
+    private int swept;
+
+    /**
+     * @param names the used names
+     */
+    public NameAllocator(Set<String> names) {
+        this.names = names;
+    }
+
+    /**
+     * Gets the name allocator of the document, it checks the names
+     * against the name registry of the document (all objects, see
+     * NameRegistry.getFullMap).
+     * @param doc
+     * @return
+     */
+    public static NameAllocator getInstance(Document doc) {
+        NameAllocator allocator = (NameAllocator) doc.getUserData(KEY);
+        if (allocator == null) {
+            allocator = new NameAllocator(NameRegistry.getInstance(doc).getFullMap().keySet());
+            doc.setUserData(KEY, allocator, null);
+        }
+        return allocator;
+    }
+
+    /**
+     * Checks whether the name is used or has been allocated.
+     * @param name
+     * @return
+     */
+    public boolean isUsed(String name) {
+        if (names.contains(name)) {
+            allocated.remove(name); // the set knows it now
+            return true;
+        }
+        return allocated.contains(name);
+    }
+
+    /**
+     * Releases an allocated name that was not used, the name can be
+     * allocated again.
+     * @param name
+     */
+    public void release(String name) {
+        if (!allocated.remove(name)) {
+            return;
+        }
+        int i = splitIndex(name);
+        String digits = name.substring(i);
+        if (digits.isEmpty() || digits.length() > 9) {
+            return;
+        }
+        String basename = name.substring(0, i);
+        int n = Integer.parseInt(digits);
+        // the searches that went past the name start from it again
+        String prefix = basename + '\0';
+        for (Map.Entry<String, Integer> entry : next.entrySet()) {
+            String key = entry.getKey();
+            if (key.startsWith(prefix) && entry.getValue() > n &&
+                    Integer.parseInt(key.substring(prefix.length())) <= n) {
+                entry.setValue(n);
+            }
+        }
+    }
+
+    /**
+     * Allocates the next free name, if the name ends with a number the
+     * search starts from it (e.g. "asdf2" gives "asdf4" if asdf2 and asdf3
+     * are used, see Tools.findFreeName).
+     * @param name
+     * @return
+     */
+    public String allocate(String name) {
+        int i = splitIndex(name);
+        String basename = name.substring(0, i);
+        String digits = name.substring(i);
+        return allocate(basename, digits.isEmpty() ? 0 : Integer.parseInt(digits));
+    }
+
+    /**
+     * Allocates the first free name basename + n, where n is at least the
+     * given number.
+     * @param basename
+     * @param first
+     * @return
+     */
+    public String allocate(String basename, int first) {
+        String key = basename + '\0' + first;
+        Integer start = next.get(key);
+        int n = start == null ? first : start;
+        String result;
+        while (isUsed(result = basename + n)) n++;
+        next.put(key, n + 1);
+        if (allocated.size() > 2 * swept + 16) {
+            sweep();
+        }
+        allocated.add(result);
+        return result;
+    }
+
+    /**
+     * Gets the index where the number at the end of the name starts.
+     */
+    private static int splitIndex(String name) {
+        int i = name.length();
+        while (i > 0 && Character.isDigit(name.charAt(i - 1))) i--;
+        return i;
+    }
+
+    /**
+     * Forgets the reserved names that are in the set, so that the
+     * reservations of names that were used do not pile up.
+     */
+    private void sweep() {
+        for (Iterator<String> it = allocated.iterator(); it.hasNext(); ) {
+            if (names.contains(it.next())) {
+                it.remove();
+            }
+        }
+        swept = allocated.size();
+    }
+}
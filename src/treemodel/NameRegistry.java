@@ -0,0 +1,345 @@
+/*
+ * Copyright (C) 2019 Automation technology laboratory,
+ * Helsinki University of Technology
+ *
+ * Visit automation.tkk.fi for information about the automation
+ * technology laboratory.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 3
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston,
+ * MA 02111-1307, USA.
+ */
+package treemodel;
+
+import static pooledit.Definitions.*;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+import org.w3c.dom.events.Event;
+import org.w3c.dom.events.EventListener;
+import org.w3c.dom.events.EventTarget;
+import org.w3c.dom.events.MutationEvent;
+import pooledit.Utils;
+
+/**
+ * Name registry of a document. Maps object names to elements just like
+ * the maps built by Tools.createNameMap: objects with a language attribute
+ * (other than "en") are stored as "name.language" and if a name is
+ * defined more than once, the last definition in document order wins.
+ * There is one registry per document, it is stored as user data of the
+ * document and kept up to date with DOM mutation events.
+ *
+ * @author mohman
+ */
+public class NameRegistry implements EventListener {
+
+    private static final String KEY = NameRegistry.class.getName();
+
+    private final Element root;
+    /** name -> root level objects in document order */
+    private final Map<String, List<Element>> rootNames = new HashMap<>();
+    /** name -> all objects in document order */
+    private final Map<String, List<Element>> allNames = new HashMap<>();
+    /** object -> the name it is registered with */
+    private final Map<Element, String> keys = new HashMap<>();
+
+    private final Map<String, Element> rootMap = new View(rootNames);
+    private final Map<String, Element> fullMap = new View(allNames);
+
+    private NameRegistry(Document doc, List<Element> elements) {
+        root = doc.getDocumentElement();
+        if (elements == null) {
+            NodeList list = root.getElementsByTagName("*");
+            for (int i = 0, n = list.getLength(); i < n; i++) {
+                register((Element) list.item(i));
+            }
+        } else {
+            for (Element element : elements) {
+                register(element);
+            }
+        }
+        ((EventTarget) doc).addEventListener("DOMNodeRemoved", this, false);
+        ((EventTarget) doc).addEventListener("DOMNodeInserted", this, false);
+        ((EventTarget) doc).addEventListener("DOMAttrModified", this, false);
+    }
+
+    /**
+     * Gets the name registry of the document, the registry is created
+     * when it is first needed.
+     * @param doc
+     * @return
+     */
+    public static NameRegistry getInstance(Document doc) {
+        NameRegistry registry = (NameRegistry) doc.getUserData(KEY);
+        if (registry == null) {
+            registry = new NameRegistry(doc, null);
+            doc.setUserData(KEY, registry, null);
+        }
+        return registry;
+    }
+
+    /**
+     * Creates the name registry of a document that has just been loaded
+     * from the elements collected while parsing, so the document does not
+     * have to be traversed again. The elements must be all elements under
+     * the root element in document order.
+     * @param doc
+     * @param elements
+     * @return
+     */
+    public static NameRegistry createInstance(Document doc, List<Element> elements) {
+        NameRegistry registry = new NameRegistry(doc, elements);
+        doc.setUserData(KEY, registry, null);
+        return registry;
+    }
+
+    /**
+     * Gets a read-only view of the root level names (see
+     * Tools.createNameMap(doc)).
+     * @return
+     */
+    public Map<String, Element> getRootMap() {
+        return rootMap;
+    }
+
+    /**
+     * Gets a read-only view of all names in the document (see
+     * Tools.createNameMap(doc, true)).
+     * @return
+     */
+    public Map<String, Element> getFullMap() {
+        return fullMap;
+    }
+
+    //------------------------------------------------------------//
+
+    /**
+     * Gets the key of an object, or null if the element is not an object
+     * or has no name.
+     */
+    private static String createKey(Element element) {
+        if (!Utils.equals(element.getTagName(), OBJECTS)) {
+            return null;
+        }
+        String name = element.getAttribute(NAME);
+        if (name.isEmpty()) {
+            return null;
+        }
+        // use simple structured names for objects with language
+        // attribute
+        String language = element.getAttribute(LANGUAGE);
+        if (!language.isEmpty() && !language.equals("en")) {
+            name += "." + language;
+        }
+        return name;
+    }
+
+    /**
+     * Adds an element while the registry is being built, elements are
+     * added in document order.
+     */
+    private void register(Element element) {
+        String name = createKey(element);
+        if (name != null) {
+            keys.put(element, name);
+            append(allNames, name, element);
+            if (element.getParentNode() == root) {
+                warnIfDefined(name);
+                append(rootNames, name, element);
+            }
+        }
+    }
+
+    private void warnIfDefined(String name) {
+        if (rootNames.containsKey(name)) {
+            System.err.println(pooledit.Tools.class.getName() + " name \"" +
+                    name + "\" is already defined!");
+        }
+    }
+
+    private static void append(Map<String, List<Element>> map, String name, Element element) {
+        List<Element> list = map.get(name);
+        if (list == null) {
+            list = new ArrayList<>(1);
+            map.put(name, list);
+        }
+        list.add(element);
+    }
+
+    /**
+     * Inserts the element into the list of its name so that the list stays
+     * in document order.
+     */
+    private static void insert(Map<String, List<Element>> map, String name, Element element) {
+        List<Element> list = map.get(name);
+        if (list == null) {
+            list = new ArrayList<>(1);
+            map.put(name, list);
+        }
+        int i = list.size();
+        while (i > 0 && (list.get(i - 1).compareDocumentPosition(element) &
+                Node.DOCUMENT_POSITION_PRECEDING) != 0) {
+            i--;
+        }
+        list.add(i, element);
+    }
+
+    private static void remove(Map<String, List<Element>> map, String name, Element element) {
+        List<Element> list = map.get(name);
+        if (list != null) {
+            list.remove(element);
+            if (list.isEmpty()) {
+                map.remove(name);
+            }
+        }
+    }
+
+    private void add(Element element, boolean atRoot) {
+        String name = createKey(element);
+        if (name == null) {
+            return;
+        }
+        keys.put(element, name);
+        insert(allNames, name, element);
+        if (atRoot) {
+            warnIfDefined(name);
+            insert(rootNames, name, element);
+        }
+    }
+
+    private void remove(Element element, boolean atRoot) {
+        String name = keys.remove(element);
+        if (name == null) {
+            return;
+        }
+        remove(allNames, name, element);
+        if (atRoot) {
+            remove(rootNames, name, element);
+        }
+    }
+
+    /**
+     * Calls add or remove for the element and all elements under it.
+     */
+    private void update(Element element, boolean atRoot, boolean add) {
+        if (add) {
+            add(element, atRoot);
+        } else {
+            remove(element, atRoot);
+        }
+        NodeList elements = element.getElementsByTagName("*");
+        for (int i = 0, n = elements.getLength(); i < n; i++) {
+            if (add) {
+                add((Element) elements.item(i), false);
+            } else {
+                remove((Element) elements.item(i), false);
+            }
+        }
+    }
+
+    /**
+     * Updates the registry. This is called while the document is being
+     * modified, removed nodes are still attached to their parents.
+     * @param evt
+     */
+    @Override
+    public void handleEvent(Event evt) {
+        if (!(evt.getTarget() instanceof Element)) {
+            return;
+        }
+        MutationEvent mev = (MutationEvent) evt;
+        Element target = (Element) mev.getTarget();
+        String type = mev.getType();
+        if (type.equals("DOMNodeRemoved")) {
+            update(target, mev.getRelatedNode() == root, false);
+        } else if (type.equals("DOMNodeInserted")) {
+            update(target, mev.getRelatedNode() == root, true);
+        } else {
+            String attr = mev.getAttrName();
+            if (attr.equals(NAME) || attr.equals(LANGUAGE)) {
+                boolean atRoot = target.getParentNode() == root;
+                remove(target, atRoot);
+                add(target, atRoot);
+            }
+        }
+    }
+
+    //------------------------------------------------------------//
+
+    /**
+     * Read-only map view, the value of a name is the last element in
+     * document order.
+     */
+    private static class View extends AbstractMap<String, Element> {
+
+        private final Map<String, List<Element>> map;
+
+        View(Map<String, List<Element>> map) {
+            this.map = map;
+        }
+
+        @Override
+        public Element get(Object key) {
+            List<Element> list = map.get(key);
+            return list == null ? null : list.get(list.size() - 1);
+        }
+
+        @Override
+        public boolean containsKey(Object key) {
+            return map.containsKey(key);
+        }
+
+        @Override
+        public int size() {
+            return map.size();
+        }
+
+        @Override
+        public Set<Map.Entry<String, Element>> entrySet() {
+            return new AbstractSet<Map.Entry<String, Element>>() {
+                @Override
+                public Iterator<Map.Entry<String, Element>> iterator() {
+                    final Iterator<Map.Entry<String, List<Element>>> it = map.entrySet().iterator();
+                    return new Iterator<Map.Entry<String, Element>>() {
+                        @Override
+                        public boolean hasNext() {
+                            return it.hasNext();
+                        }
+
+                        @Override
+                        public Map.Entry<String, Element> next() {
+                            Map.Entry<String, List<Element>> e = it.next();
+                            List<Element> list = e.getValue();
+                            return new SimpleImmutableEntry<>(e.getKey(), list.get(list.size() - 1));
+                        }
+                    };
+                }
+
+                @Override
+                public int size() {
+                    return map.size();
+                }
+            };
+        }
+    }
+}
@@ -0,0 +1,214 @@
+/*
+ * Copyright (C) 2019 Automation technology laboratory,
+ * Helsinki University of Technology
+ *
+ * Visit automation.tkk.fi for information about the automation
+ * technology laboratory.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 3
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston,
+ * MA 02111-1307, USA.
+ */
+package treemodel;
+
+import static pooledit.Definitions.*;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+import org.w3c.dom.events.Event;
+import org.w3c.dom.events.EventListener;
+import org.w3c.dom.events.EventTarget;
+import org.w3c.dom.events.MutationEvent;
+
+/**
+ * Reverse reference index, maps object names to the include_object
+ * elements that refer to them. There is one index per document, it is
+ * stored as user data of the document and kept up to date with DOM
+ * mutation events.
+ *
+ * @author mohman
+ */
+public class ReferenceIndex implements EventListener {
+
+    private static final String KEY = ReferenceIndex.class.getName();
+
+    /** name -> include_objects, names in the order of first reference */
+    private final Map<String, Set<Element>> refs = new LinkedHashMap<>();
+    /** include_object -> the name it is indexed with */
+    private final Map<Element, String> names = new HashMap<>();
+
+    private ReferenceIndex(Document doc, List<Element> elements) {
+        if (elements == null) {
+            NodeList list = doc.getElementsByTagName(INCLUDE_OBJECT);
+            for (int i = 0, n = list.getLength(); i < n; i++) {
+                add((Element) list.item(i));
+            }
+        } else {
+            for (Element ref : elements) {
+                add(ref);
+            }
+        }
+        ((EventTarget) doc).addEventListener("DOMNodeRemoved", this, false);
+        ((EventTarget) doc).addEventListener("DOMNodeInserted", this, false);
+        ((EventTarget) doc).addEventListener("DOMAttrModified", this, false);
+    }
+
+    /**
+     * Gets the reference index of the document, the index is created
+     * when it is first needed.
+     * @param doc
+     * @return
+     */
+    public static ReferenceIndex getInstance(Document doc) {
+        ReferenceIndex index = (ReferenceIndex) doc.getUserData(KEY);
+        if (index == null) {
+            index = new ReferenceIndex(doc, null);
+            doc.setUserData(KEY, index, null);
+        }
+        return index;
+    }
+
+    /**
+     * Creates the reference index of a document that has just been loaded
+     * from the include_object elements collected while parsing. The
+     * elements must be in document order.
+     * @param doc
+     * @param elements
+     * @return
+     */
+    public static ReferenceIndex createInstance(Document doc, List<Element> elements) {
+        ReferenceIndex index = new ReferenceIndex(doc, elements);
+        doc.setUserData(KEY, index, null);
+        return index;
+    }
+
+    /**
+     * Gets all include_object elements that refer to the specified name.
+     * The returned set is a read-only view.
+     * @param name
+     * @return
+     */
+    public Set<Element> getReferences(String name) {
+        Set<Element> set = refs.get(name);
+        return set == null ? Collections.<Element>emptySet() :
+                Collections.unmodifiableSet(set);
+    }
+
+    /**
+     * Adds the parent elements of all include_object elements that refer
+     * to the specified name to the list.
+     * @param name
+     * @param list
+     */
+    public void findReferringParents(String name, List<Element> list) {
+        Set<Element> set = refs.get(name);
+        if (set == null) {
+            return;
+        }
+        for (Element ref : set) {
+            Node parent = ref.getParentNode();
+            if (parent.getNodeType() == Node.ELEMENT_NODE) {
+                list.add((Element) parent);
+            }
+        }
+    }
+
+    /**
+     * Gets all names that are referred to by at least one include_object
+     * element. The returned set is a read-only view.
+     * @return
+     */
+    public Set<String> getReferencedNames() {
+        return Collections.unmodifiableSet(refs.keySet());
+    }
+
+    //------------------------------------------------------------//
+
+    private void add(Element ref) {
+        String name = ref.getAttribute(NAME);
+        names.put(ref, name);
+        Set<Element> set = refs.get(name);
+        if (set == null) {
+            set = new LinkedHashSet<>();
+            refs.put(name, set);
+        }
+        set.add(ref);
+    }
+
+    private void remove(Element ref) {
+        String name = names.remove(ref);
+        if (name == null) {
+            return;
+        }
+        Set<Element> set = refs.get(name);
+        set.remove(ref);
+        if (set.isEmpty()) {
+            refs.remove(name);
+        }
+    }
+
+    /**
+     * Calls add or remove for the element and all include_objects
+     * under it.
+     */
+    private void update(Element element, boolean add) {
+        if (element.getNodeName().equals(INCLUDE_OBJECT)) {
+            if (add) {
+                add(element);
+            } else {
+                remove(element);
+            }
+        }
+        NodeList elements = element.getElementsByTagName(INCLUDE_OBJECT);
+        for (int i = 0, n = elements.getLength(); i < n; i++) {
+            if (add) {
+                add((Element) elements.item(i));
+            } else {
+                remove((Element) elements.item(i));
+            }
+        }
+    }
+
+    /**
+     * Updates the index. This is called while the document is being
+     * modified, removed nodes are still attached to their parents.
+     * @param evt
+     */
+    @Override
+    public void handleEvent(Event evt) {
+        if (!(evt.getTarget() instanceof Element)) {
+            return;
+        }
+        MutationEvent mev = (MutationEvent) evt;
+        Element target = (Element) mev.getTarget();
+        String type = mev.getType();
+        if (type.equals("DOMNodeRemoved")) {
+            update(target, false);
+        } else if (type.equals("DOMNodeInserted")) {
+            update(target, true);
+        } else if (mev.getAttrName().equals(NAME) &&
+                target.getNodeName().equals(INCLUDE_OBJECT)) {
+            remove(target);
+            add(target);
+        }
+    }
+}
@@ -0,0 +1,118 @@
+/*
+ * Copyright (C) 2019 Automation technology laboratory,
+ * Helsinki University of Technology
+ *
+ * Visit automation.tkk.fi for information about the automation
+ * technology laboratory.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 3
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston,
+ * MA 02111-1307, USA.
+ */
+package treemodel;
+
+import static pooledit.Definitions.*;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Role-slot table of a node, i.e. the children that the renderer needs
+ * (font, line and fill attributes, variables, points) picked from the child
+ * list once. The table is built by the child list of the node and thrown
+ * away when the list or the role of a child changes.
+ *
+ * @author mohman
+ */
+class RoleSlots {
+
+    /** first font attributes child */
+    final XMLTreeNode fontAttributes;
+    /** first line attributes child */
+    final XMLTreeNode lineAttributes;
+    /** first fill attributes child */
+    final XMLTreeNode fillAttributes;
+    /** first string variable child */
+    final XMLTreeNode stringVariable;
+    /** last picture graphic child (fill pattern) */
+    final XMLTreeNode pictureGraphic;
+    /** point children in order */
+    final List<XMLTreeNode> points;
+    /** role -> first number variable child with that role */
+    private final Map<String, XMLTreeNode> numberVariables;
+
+    /**
+     * Constructor.
+     * @param children
+     */
+    RoleSlots(List<XMLTreeNode> children) {
+        XMLTreeNode font = null, line = null, fill = null, string = null, picture = null;
+        List<XMLTreeNode> pts = new ArrayList<>(0);
+        Map<String, XMLTreeNode> numbers = new HashMap<>(4);
+        for (XMLTreeNode nd : children) {
+            String type = nd.getType();
+            switch (type) {
+                case FONTATTRIBUTES:
+                    if (font == null) {
+                        font = nd;
+                    }
+                    break;
+                case LINEATTRIBUTES:
+                    if (line == null) {
+                        line = nd;
+                    }
+                    break;
+                case FILLATTRIBUTES:
+                    if (fill == null) {
+                        fill = nd;
+                    }
+                    break;
+                case STRINGVARIABLE:
+                    if (string == null) {
+                        string = nd;
+                    }
+                    break;
+                case NUMBERVARIABLE:
+                    String role = nd.getRole();
+                    if (!numbers.containsKey(role)) {
+                        numbers.put(role, nd);
+                    }
+                    break;
+                case PICTUREGRAPHIC:
+                    picture = nd;
+                    break;
+                case POINT:
+                    pts.add(nd);
+                    break;
+            }
+        }
+        fontAttributes = font;
+        lineAttributes = line;
+        fillAttributes = fill;
+        stringVariable = string;
+        pictureGraphic = picture;
+        points = pts;
+        numberVariables = numbers;
+    }
+
+    /**
+     * Gets the first number variable child that has the specified role.
+     * @param role
+     * @return
+     */
+    XMLTreeNode getNumberVariable(String role) {
+        return numberVariables.get(role);
+    }
+}
@@ -0,0 +1,151 @@
+/*
+ * Copyright (C) 2019 Automation technology laboratory,
+ * Helsinki University of Technology
+ *
+ * Visit automation.tkk.fi for information about the automation
+ * technology laboratory.
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 3
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston,
+ * MA 02111-1307, USA.
+ */
+package treemodel;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.w3c.dom.events.Event;
+import org.w3c.dom.events.EventListener;
+import org.w3c.dom.events.EventTarget;
+import org.w3c.dom.events.MutationEvent;
+
+/**
+ * Index of the root level elements by tag name. The elements of each
+ * tag are kept in document order. There is one index per document, it is
+ * stored as user data of the document and kept up to date with DOM
+ * mutation events.
+ *
+ * @author mohman
+ */
+public class RootIndex implements EventListener {
+
+    private static final String KEY = RootIndex.class.getName();
+
+    private final Element root;
+    /** tag name -> root level elements in document order */
+    private final Map<String, List<Element>> elements = new HashMap<>();
+
+    private RootIndex(Document doc) {
+        root = doc.getDocumentElement();
+        for (Node node = root.getFirstChild(); node != null; node = node.getNextSibling()) {
+            if (node.getNodeType() == Node.ELEMENT_NODE) {
+                getList(node.getNodeName()).add((Element) node);
+            }
+        }
+        ((EventTarget) doc).addEventListener("DOMNodeRemoved", this, false);
+        ((EventTarget) doc).addEventListener("DOMNodeInserted", this, false);
+    }
+
+    /**
+     * Gets the root index of the document, the index is created when it
+     * is first needed.
+     * @param doc
+     * @return
+     */
+    public static RootIndex getInstance(Document doc) {
+        RootIndex index = (RootIndex) doc.getUserData(KEY);
+        if (index == null) {
+            index = new RootIndex(doc);
+            doc.setUserData(KEY, index, null);
+        }
+        return index;
+    }
+
+    /**
+     * Gets the root level elements with the specified tag name in
+     * document order. The returned list is a read-only view.
+     * @param tag
+     * @return
+     */
+    public List<Element> getElements(String tag) {
+        List<Element> list = elements.get(tag);
+        return list == null ? Collections.<Element>emptyList() :
+                Collections.unmodifiableList(list);
+    }
+
+    //------------------------------------------------------------//
+
+    private List<Element> getList(String tag) {
+        List<Element> list = elements.get(tag);
+        if (list == null) {
+            list = new ArrayList<>();
+            elements.put(tag, list);
+        }
+        return list;
+    }
+
+    /**
+     * Inserts the element after the closest preceding sibling that has
+     * the same tag name. Appending to the root is the common case and
+     * costs O(1).
+     */
+    private void insert(Element element) {
+        String tag = element.getNodeName();
+        List<Element> list = getList(tag);
+        int index = 0;
+        if (element.getNextSibling() == null) {
+            index = list.size();
+        } else {
+            for (Node node = element.getPreviousSibling(); node != null;
+                    node = node.getPreviousSibling()) {
+                if (node.getNodeType() == Node.ELEMENT_NODE &&
+                        node.getNodeName().equals(tag)) {
+                    index = list.lastIndexOf(node) + 1;
+                    break;
+                }
+            }
+        }
+        list.add(index, element);
+    }
+
+    /**
+     * Updates the index. This is called while the document is being
+     * modified, removed nodes are still attached to their parents.
+     * @param evt
+     */
+    @Override
+    public void handleEvent(Event evt) {
+        if (!(evt.getTarget() instanceof Element)) {
+            return;
+        }
+        MutationEvent mev = (MutationEvent) evt;
+        if (mev.getRelatedNode() != root) {
+            return;
+        }
+        Element target = (Element) mev.getTarget();
+        if (mev.getType().equals("DOMNodeInserted")) {
+            insert(target);
+        } else {
+            List<Element> list = elements.get(target.getNodeName());
+            if (list != null) {
+                list.remove(target);
+            }
+        }
+    }
+}
@@ -24,9 +24,15 @@ package treemodel;
 
 import static pooledit.Definitions.*;
 import java.util.Arrays;
-import java.util.BitSet;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Set;
 import javax.swing.SwingUtilities;
 import org.w3c.dom.events.Event;
 import org.w3c.dom.events.EventListener;
@@ -40,7 +46,8 @@ import javax.swing.tree.TreeModel;
 import javax.swing.tree.TreePath;
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
-import pooledit.Tools;
+import org.w3c.dom.Node;
+import pooledit.Utils;
 
 /**
  * XML tree model, maps DOM to TreeModel interface
@@ -57,26 +64,35 @@ public class XMLTreeModel implements TreeModel, EventListener {
     private Document doc;
     private XMLTreeNode root;
     private Map<String, Element> nameMap;
+    private ReferenceIndex references;
+    private RootIndex rootIndex;
     
-    private final Map<XMLTreeNode, XMLTreeNodeList> childMap;
+    /** Cached child lists, least recently used first */
+    private final LinkedHashMap<XMLTreeNode, XMLTreeNodeList> childMap;
+    /** Parents whose child lists must be reconciled by fixModel() */
+    private final Set<XMLTreeNode> dirty = new HashSet<>();
+    /** Element -> the nodes (actual or link) in the cached child lists and
+     * the lists they are in */
+    private final Map<Element, Map<XMLTreeNode, XMLTreeNodeList>> instances = new HashMap<>();
+    /** Pinned nodes (pin counts) */
+    private final Map<XMLTreeNode, Integer> pins = new HashMap<>();
+    /** Nodes whose subtrees are pinned (pin counts) */
+    private final Map<XMLTreeNode, Integer> subtreePins = new HashMap<>();
+    /** Default maximum number of evictable nodes in the cached lists */
+    public static final int DEFAULT_CACHE_LIMIT = 50000;
+    private int cacheLimit = DEFAULT_CACHE_LIMIT;
+    private int cachedNodes;
+    /** Nodes that could not be evicted in the last eviction pass */
+    private int retainedNodes;
+    private long cacheHits;
+    private long cacheMisses;
+    private long cacheEvictions;
     
     /**
      * Default constructor.
      */
     public XMLTreeModel() {
-        childMap = new HashMap<>();
-    }
-    
-    /**
-     * 
-     * @param doc
-     * @param nameMap
-     */
-    public XMLTreeModel(Document doc, Map<String, Element> nameMap) {
-        this.doc = doc;
-        this.nameMap = nameMap;
-        childMap = new HashMap<>();
-        root = createRootAndCategoryNodes();
+        childMap = new LinkedHashMap<>(16, 0.75f, true);
     }
     
     /**
@@ -98,8 +114,22 @@ public class XMLTreeModel implements TreeModel, EventListener {
         ((EventTarget) doc).addEventListener("DOMAttrModified", this, false);
         
         this.doc = doc;
+        for (XMLTreeNodeList c : childMap.values()) {
+            c.detach();
+        }
         childMap.clear();
-        nameMap = Tools.createNameMap(doc);
+        instances.clear();
+        pins.clear();
+        subtreePins.clear();
+        cachedNodes = 0;
+        retainedNodes = 0;
+        dirty.clear();
+        synchronized (pending) {
+            pending.clear();
+        }
+        nameMap = NameRegistry.getInstance(doc).getRootMap();
+        references = ReferenceIndex.getInstance(doc);
+        rootIndex = RootIndex.getInstance(doc);
         
         root = createRootAndCategoryNodes();
         fireTreeStructureChanged(new TreePath(root));
@@ -117,7 +147,7 @@ public class XMLTreeModel implements TreeModel, EventListener {
             int n = SUBCATEGORYGROUPS[j].length;
             SUBCATEGORY_NODES[j] = new XMLTreeNode[n];
             for (int i = 0; i < n; i++) {
-                SUBCATEGORY_NODES[j][i] = rt.createTypeNode(SUBCATEGORYGROUPS[j][i]);
+                SUBCATEGORY_NODES[j][i] = CATEGORY_NODES[j].createTypeNode(SUBCATEGORYGROUPS[j][i]);
             }
         }
         return rt;
@@ -132,13 +162,31 @@ public class XMLTreeModel implements TreeModel, EventListener {
     }
     
     /**
-     * Gets the name map.
+     * Gets the (root level) name map. The map is a read-only view that is
+     * kept up to date by the name registry of the document.
      * @return
      */
     public Map<String, Element> getNameMap() {
         return nameMap;
     }
     
+    /**
+     * Gets the reference index of the document.
+     * @return
+     */
+    public ReferenceIndex getReferenceIndex() {
+        return references;
+    }
+    
+    /**
+     * Gets the root index (root level elements by tag name) of the
+     * document.
+     * @return
+     */
+    public RootIndex getRootIndex() {
+        return rootIndex;
+    }
+    
     /**
      * Gets the element that has the specified name.
      * @param name
@@ -154,17 +202,289 @@ public class XMLTreeModel implements TreeModel, EventListener {
      * @param parent
      * @return
      */
-    private XMLTreeNodeList getXMLTreeNodeList(Object parent) {
+    XMLTreeNodeList getXMLTreeNodeList(Object parent) {
         XMLTreeNodeList c = childMap.get(parent);
         if (c == null) {
+            cacheMisses++;
             c = new XMLTreeNodeList(((XMLTreeNode) parent));
             childMap.put((XMLTreeNode) parent, c);
+            for (XMLTreeNode node : c) {
+                register(node, c);
+            }
+            cachedNodes += c.size();
+            if (!flushing) {
+                evict();
+            }
+        } else {
+            cacheHits++;
         }
         return c;
     }
     
     //------------------------------------------------------------//
     
+    /**
+     * Pins the node, its child list and the child lists of its ancestors
+     * are not evicted from the cache until the node is unpinned. This is
+     * used for the expanded nodes of a tree view. Pins are counted, every
+     * pin must be matched with an unpin.
+     * @param node
+     */
+    public void pin(Object node) {
+        addPin(pins, (XMLTreeNode) node);
+    }
+    
+    /**
+     * Removes a pin set with pin(node).
+     * @param node
+     */
+    public void unpin(Object node) {
+        removePin(pins, (XMLTreeNode) node);
+    }
+    
+    /**
+     * Pins the node and all nodes under it, see pin(node). This is used
+     * for the part of the tree that is rendered by an object view.
+     * @param node
+     */
+    public void pinSubtree(Object node) {
+        addPin(subtreePins, (XMLTreeNode) node);
+    }
+    
+    /**
+     * Removes a pin set with pinSubtree(node).
+     * @param node
+     */
+    public void unpinSubtree(Object node) {
+        removePin(subtreePins, (XMLTreeNode) node);
+    }
+    
+    /**
+     * Tells the listeners that the structure under the node has changed,
+     * a tree view drops the nodes it has loaded under it. This is used for
+     * collapsed nodes, whose child lists can be evicted.
+     * @param path
+     */
+    public void reload(TreePath path) {
+        fireTreeStructureChanged(path);
+    }
+    
+    /**
+     * Checks whether the node is pinned with pin(node).
+     * @param node
+     * @return
+     */
+    public boolean isPinned(Object node) {
+        return pins.containsKey(node);
+    }
+    
+    private static void addPin(Map<XMLTreeNode, Integer> map, XMLTreeNode node) {
+        Integer count = map.get(node);
+        map.put(node, count == null ? 1 : count + 1);
+    }
+    
+    private static void removePin(Map<XMLTreeNode, Integer> map, XMLTreeNode node) {
+        Integer count = map.get(node);
+        if (count == null) {
+            return;
+        }
+        if (count > 1) {
+            map.put(node, count - 1);
+        } else {
+            map.remove(node);
+        }
+    }
+    
+    /**
+     * Sets the maximum number of nodes in the child lists that can be
+     * evicted. Pinned lists and the lists of the root, category and
+     * subcategory nodes are not counted against the limit.
+     * @param limit
+     */
+    public void setCacheLimit(int limit) {
+        cacheLimit = limit;
+        retainedNodes = 0;
+        evict();
+    }
+    
+    /**
+     * Gets the cache limit.
+     * @return
+     */
+    public int getCacheLimit() {
+        return cacheLimit;
+    }
+    
+    /**
+     * Gets the number of child list requests that were served from the
+     * cache.
+     * @return
+     */
+    public long getCacheHits() {
+        return cacheHits;
+    }
+    
+    /**
+     * Gets the number of child list requests that created a new list.
+     * @return
+     */
+    public long getCacheMisses() {
+        return cacheMisses;
+    }
+    
+    /**
+     * Gets the number of child lists that have been evicted (including
+     * the lists below them).
+     * @return
+     */
+    public long getCacheEvictions() {
+        return cacheEvictions;
+    }
+    
+    /**
+     * Gets the number of cached child lists.
+     * @return
+     */
+    public int getCacheSize() {
+        return childMap.size();
+    }
+    
+    /**
+     * Gets the total number of nodes in the cached child lists.
+     * @return
+     */
+    public int getCachedNodeCount() {
+        return cachedNodes;
+    }
+    
+    /**
+     * Checks whether the child list of the node can be evicted, i.e. the
+     * node is a real node and it is neither pinned, an ancestor of a
+     * pinned node nor under a node whose subtree is pinned.
+     */
+    private boolean isEvictable(XMLTreeNode node, Set<XMLTreeNode> keep) {
+        if (node.actual() == null || node.parent() == null || keep.contains(node)) {
+            return false;
+        }
+        for (XMLTreeNode n = node; n != null; n = n.parent()) {
+            if (subtreePins.containsKey(n)) {
+                return false;
+            }
+        }
+        return true;
+    }
+    
+    /**
+     * Evicts the least recently used child lists (and the lists below
+     * them) when the number of evictable cached nodes exceeds the limit.
+     * Lists are evicted until 3/4 of the limit is left so that the cache is
+     * not scanned again on every new list. The evicted lists are created
+     * again when they are needed.
+     */
+    private void evict() {
+        if (cachedNodes - retainedNodes <= cacheLimit) {
+            return;
+        }
+        // pinned nodes and their ancestors
+        Set<XMLTreeNode> keep = new HashSet<>();
+        for (Map<XMLTreeNode, Integer> map : Arrays.asList(pins, subtreePins)) {
+            for (XMLTreeNode node : map.keySet()) {
+                for (XMLTreeNode n = node; n != null && keep.add(n); n = n.parent()) {
+                }
+            }
+        }
+        // unevictable nodes are not counted against the limit
+        int evictable = 0;
+        for (Map.Entry<XMLTreeNode, XMLTreeNodeList> e : childMap.entrySet()) {
+            if (isEvictable(e.getKey(), keep)) {
+                evictable += e.getValue().size();
+            }
+        }
+        List<XMLTreeNode> victims = new ArrayList<>();
+        Iterator<Map.Entry<XMLTreeNode, XMLTreeNodeList>> it = childMap.entrySet().iterator();
+        while (evictable > cacheLimit / 4 * 3 && it.hasNext()) {
+            Map.Entry<XMLTreeNode, XMLTreeNodeList> e = it.next();
+            if (isEvictable(e.getKey(), keep)) {
+                victims.add(e.getKey());
+                evictable -= e.getValue().size();
+            }
+        }
+        for (XMLTreeNode node : victims) {
+            XMLTreeNodeList c = childMap.remove(node);
+            // may have been evicted with an ancestor already
+            if (c != null) {
+                cacheEvictions++;
+                c.detach();
+                cachedNodes -= c.size();
+                for (XMLTreeNode n : c) {
+                    purge(n);
+                }
+            }
+        }
+        retainedNodes = 0;
+        for (Map.Entry<XMLTreeNode, XMLTreeNodeList> e : childMap.entrySet()) {
+            if (!isEvictable(e.getKey(), keep)) {
+                retainedNodes += e.getValue().size();
+            }
+        }
+    }
+    
+    /**
+     * Adds the node to the instance index.
+     * @param node
+     * @param c the cached child list that contains the node
+     */
+    private void register(XMLTreeNode node, XMLTreeNodeList c) {
+        register(node.actual(), node, c);
+        register(node.link(), node, c);
+    }
+    private void register(Element element, XMLTreeNode node, XMLTreeNodeList c) {
+        if (element == null) {
+            return;
+        }
+        Map<XMLTreeNode, XMLTreeNodeList> map = instances.get(element);
+        if (map == null) {
+            map = new IdentityHashMap<>(4);
+            instances.put(element, map);
+        }
+        map.put(node, c);
+    }
+    
+    /**
+     * Removes the node from the instance index.
+     * @param node
+     */
+    private void unregister(XMLTreeNode node) {
+        unregister(node.actual(), node);
+        unregister(node.link(), node);
+    }
+    private void unregister(Element element, XMLTreeNode node) {
+        if (element == null) {
+            return;
+        }
+        Map<XMLTreeNode, XMLTreeNodeList> map = instances.get(element);
+        if (map != null) {
+            map.remove(node);
+            if (map.isEmpty()) {
+                instances.remove(element);
+            }
+        }
+    }
+    
+    /**
+     * Gets the nodes that represent the element in the cached child lists.
+     * The returned map (node -> list that contains it) is a read-only view.
+     * @param element
+     * @return
+     */
+    private Map<XMLTreeNode, XMLTreeNodeList> getInstances(Element element) {
+        Map<XMLTreeNode, XMLTreeNodeList> map = instances.get(element);
+        return map == null ? Collections.<XMLTreeNode, XMLTreeNodeList>emptyMap() :
+                Collections.unmodifiableMap(map);
+    }
+    
+    //------------------------------------------------------------//
+    
     /**
      * Gets the child of parent at index index in the parent's
      * child array.
@@ -379,251 +699,497 @@ public class XMLTreeModel implements TreeModel, EventListener {
         System.out.println();
     }
     
+    /**
+     * Reconciles the cached child lists of all parents that have been
+     * touched since the last call. Only those lists are re-derived from the
+     * document, the rest of the model is left alone.
+     */
     public void fixModel() {
-        Tools.updateNameMap(doc, nameMap);
-        XMLTreeModel newModel = new XMLTreeModel(doc, nameMap);
-        fixModel(newModel, new TreePath(root));
+        // parents before their children, a parent may remove (and purge)
+        // some of the other dirty nodes
+        List<XMLTreeNode> parents = new ArrayList<>(dirty);
+        dirty.clear();
+        Collections.sort(parents, new Comparator<XMLTreeNode>() {
+            @Override
+            public int compare(XMLTreeNode a, XMLTreeNode b) {
+                return a.getPath().getPathCount() - b.getPath().getPathCount();
+            }
+        });
+        for (XMLTreeNode parent : parents) {
+            if (childMap.containsKey(parent)) {
+                fixModel(parent);
+            }
+        }
     }
     
-    public void fixModel(XMLTreeModel newModel, TreePath parentPath) {
-        XMLTreeNode parent = (XMLTreeNode) parentPath.getLastPathComponent();
-        
-        List<XMLTreeNode> oldChildren = getXMLTreeNodeList(parent);
-        List<XMLTreeNode> newChildren = newModel.getXMLTreeNodeList(parent);
-        
-        /*
-        System.out.println("FIXING: " + parent);
-        showList("old: ", oldChildren);
-        showList("new: ", newChildren);
-         */
-        
-        List<XMLTreeNode> toBeRemoved = new ArrayList<>();
-        toBeRemoved.addAll(oldChildren);
-        toBeRemoved.removeAll(newChildren);
+    /**
+     * Re-derives the child list of the specified parent and fires the
+     * minimal set of removed and inserted events that transforms the cached
+     * list into the new one. Nodes that keep their relative order (the
+     * longest increasing subsequence of their new indices) are retained,
+     * other common nodes are moved i.e. removed and inserted again.
+     * @param parent
+     */
+    private void fixModel(XMLTreeNode parent) {
+        XMLTreeNodeList oldChildren = childMap.get(parent);
+        XMLTreeNodeList newChildren = new XMLTreeNodeList(parent, oldChildren);
+        int n = oldChildren.size();
+        int m = newChildren.size();
+        cachedNodes += m - n;
         
-        List<XMLTreeNode> toBeInserted = new ArrayList<>();
-        toBeInserted.addAll(newChildren);
-        toBeInserted.removeAll(oldChildren);
+        Map<XMLTreeNode, Integer> newIndices = new HashMap<>(2 * m);
+        for (int j = 0; j < m; j++) {
+            newIndices.put(newChildren.get(j), j);
+        }
+        int[] seq = new int[n];
+        for (int i = 0; i < n; i++) {
+            Integer j = newIndices.get(oldChildren.get(i));
+            seq[i] = (j == null) ? -1 : j;
+        }
+        boolean[] retained = longestIncreasingSubsequence(seq);
         
-        List<XMLTreeNode> toBeRetained = new ArrayList<>();
-        toBeRetained.addAll(newChildren);
-        toBeRetained.retainAll(oldChildren);
-        //toBeRetained.addAll(oldChildren);
-        //toBeRetained.retainAll(newChildren);
+        // old instances are reused for retained and moved nodes
+        XMLTreeNode[] result = newChildren.toArray(new XMLTreeNode[m]);
+        boolean[] kept = new boolean[m];
+        boolean[] reused = new boolean[m];
+        int removedCount = 0;
+        for (int i = 0; i < n; i++) {
+            if (seq[i] >= 0) {
+                result[seq[i]] = oldChildren.get(i);
+                kept[seq[i]] = retained[i];
+                reused[seq[i]] = true;
+            }
+            if (!retained[i]) {
+                removedCount++;
+            }
+        }
         
-        // find out what nodes must be removed and then inserted
-        // to get all nodes in the proper order
-        int size = toBeRetained.size();
-        BitSet bits = new BitSet(size * size);
-        for (int i = size - 1; i >= 0; i--) {
-            for (int j = i - 1; j >= 0; j--) {
-                if (!haveSameOrder(toBeRetained.get(i), toBeRetained.get(j),
-                        oldChildren, newChildren)) {
-                    
-                    // the relation is symmetric
-                    bits.set(i + size * j);
-                    bits.set(size * i + j);
+        // remove nodes
+        if (removedCount > 0) {
+            int[] removedIndices = new int[removedCount];
+            Object[] removedNodes = new Object[removedCount];
+            List<XMLTreeNode> remaining = new ArrayList<>(n - removedCount);
+            for (int i = 0, k = 0; i < n; i++) {
+                XMLTreeNode node = oldChildren.get(i);
+                if (retained[i]) {
+                    remaining.add(node);
+                } else {
+                    removedIndices[k] = i;
+                    removedNodes[k++] = node;
+                    if (seq[i] < 0) {
+                        purge(node);
+                    }
                 }
             }
+            oldChildren.clear();
+            oldChildren.addAll(remaining);
+            fireTreeNodesRemoved(getTreePath(parent), removedIndices, removedNodes);
         }
         
-        do {
-            int maxVal = 0;
-            int maxIndex = 0;
-            for (int i = 0; i < size; i++) {
-                int start = size * i;
-                int end = start + size;
-                BitSet row = bits.get(start, end);
-                int val = row.cardinality();
-                if (val > maxVal) {
-                    maxVal = val;
-                    maxIndex = i;
+        // insert nodes, indices are in ascending order
+        int insertedCount = m - oldChildren.size();
+        if (insertedCount > 0) {
+            int[] insertedIndices = new int[insertedCount];
+            Object[] insertedNodes = new Object[insertedCount];
+            for (int j = 0, k = 0; j < m; j++) {
+                if (!kept[j]) {
+                    insertedIndices[k] = j;
+                    insertedNodes[k++] = result[j];
+                    if (!reused[j]) {
+                        register(result[j], oldChildren);
+                    }
                 }
             }
-            if (maxVal > 0) {
-                // clear bit row
-                int start = size * maxIndex;
-                int end = start + size;
-                bits.clear(start, end);
-                // clear bit col
-                for (int i = 0; i < size; i++) {
-                    bits.clear(maxIndex + size * i);
+            oldChildren.clear();
+            oldChildren.addAll(Arrays.asList(result));
+            fireTreeNodesInserted(getTreePath(parent), insertedIndices, insertedNodes);
+        }
+    }
+    
+    /**
+     * Finds a longest strictly increasing subsequence of the non-negative
+     * values in seq (negative values are ignored) in O(n log n) time.
+     * @param seq
+     * @return flags for the members of the subsequence
+     */
+    private static boolean[] longestIncreasingSubsequence(int[] seq) {
+        int n = seq.length;
+        int[] tails = new int[n]; // index of the smallest tail of each length
+        int[] prev = new int[n];
+        int len = 0;
+        for (int i = 0; i < n; i++) {
+            if (seq[i] < 0) {
+                continue;
+            }
+            int lo = 0, hi = len;
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                if (seq[tails[mid]] < seq[i]) {
+                    lo = mid + 1;
+                } else {
+                    hi = mid;
                 }
-                XMLTreeNode wrongOrder = toBeRetained.remove(maxIndex);
-                // System.out.println("REORDERING: " + wrongOrder);
-                toBeRemoved.add(wrongOrder);
-                toBeInserted.add(wrongOrder);
             }
-        }
-        while (bits.cardinality() > 0);
-        
-        /*
-        // they may look the same (for the tree model), but they are not...
-        if (toBeRetained.size() > 0) {
-            for (int i = 0, n = toBeRetained.size(); i < n; i++) {
-                XMLTreeNode object = toBeRetained.get(i);
-                oldChildren.set(oldChildren.indexOf(object), object);
+            prev[i] = (lo > 0) ? tails[lo - 1] : -1;
+            tails[lo] = i;
+            if (lo == len) {
+                len++;
             }
         }
-         */
-        
-        // remove nodes
-        if (toBeRemoved.size() > 0) {
-            int[] removedIndices = new int[toBeRemoved.size()];
-            for (int i = 0, n = removedIndices.length; i < n; i++) {
-                removedIndices[i] = oldChildren.indexOf(toBeRemoved.get(i));
+        boolean[] member = new boolean[n];
+        for (int i = (len > 0) ? tails[len - 1] : -1; i >= 0; i = prev[i]) {
+            member[i] = true;
+        }
+        return member;
+    }
+    
+    /**
+     * Removes the node from the instance index and the cached child lists
+     * of the node and all its descendants.
+     * @param node
+     */
+    private void purge(XMLTreeNode node) {
+        unregister(node);
+        pins.remove(node);
+        subtreePins.remove(node);
+        XMLTreeNodeList c = childMap.remove(node);
+        if (c != null) {
+            c.detach();
+            cachedNodes -= c.size();
+            for (XMLTreeNode n : c) {
+                purge(n);
             }
-            oldChildren.removeAll(toBeRemoved);
-            fireTreeNodesRemoved(parentPath, removedIndices, toBeRemoved.toArray());
         }
-        
-        // insert nodes
-        if (toBeInserted.size() > 0) {
-            
-            int[] insertedIndices = new int[toBeInserted.size()];
-            Map<Integer, XMLTreeNode> insertMap = new HashMap<>();
-            for (int i = 0, n = insertedIndices.length; i < n; i++) {
-                XMLTreeNode object = toBeInserted.get(i);
-                int index = newChildren.indexOf(object);
-                insertedIndices[i] = index;
-                insertMap.put(index, object);
+    }
+    
+    /**
+     * Marks every cached instance of the parent elements dirty.
+     * @param parents
+     */
+    private void markDirty(Set<Node> parents) {
+        if (parents.isEmpty()) {
+            return;
+        }
+        for (Node parent : parents) {
+            if (!(parent instanceof Element)) {
+                continue;
             }
-            
-            // indices must be sorted for this operation!
-            Arrays.sort(insertedIndices);
-            for (int i = 0, n = insertedIndices.length; i < n; i++) {
-                // order counts here -> cannot say just addAll(...)
-                int index = insertedIndices[i];
-                oldChildren.add(index, insertMap.get(index));
+            // the root node has only category nodes as children
+            for (XMLTreeNode node : getInstances((Element) parent).keySet()) {
+                if (node.actual() == parent && childMap.containsKey(node)) {
+                    dirty.add(node);
+                }
             }
-            fireTreeNodesInserted(parentPath, insertedIndices, toBeInserted.toArray());
         }
-        
-        /*
-        System.out.print("LIST ARE EQUAL: " +
-                oldChildren.equals(newChildren));
-        compLists(oldChildren, newChildren);
-         */
-        
-        // continue with children
-        for (int i = 0, n = oldChildren.size(); i < n; i++) {
-            Object child = oldChildren.get(i);
-            fixModel(newModel, parentPath.pathByAddingChild(child));
+    }
+    
+    /**
+     * Marks the subcategory node of the child dirty, if the parent is the
+     * document element.
+     * @param parent
+     * @param child
+     */
+    private void markDirty(Node parent, Element child) {
+        if (parent == doc.getDocumentElement()) {
+            int index = Utils.indexEquals(child.getNodeName(), OBJECTS);
+            if (index >= 0) {
+                for (XMLTreeNode[] group : SUBCATEGORY_NODES) {
+                    for (XMLTreeNode node : group) {
+                        if (node.type().equals(SUBCATEGORIES[index])) {
+                            dirty.add(node);
+                        }
+                    }
+                }
+            }
         }
     }
     
     /**
-     * Returns true if the elements a and b are in the same order
-     * in the lists p and q.
+     * Gets the tree path (of XMLTreeNodes) from the root to the node.
+     * @param node
+     * @return
      */
-    private static boolean haveSameOrder(Object a, Object b,
-            List<?> p, List<?> q) {
-        int v1 = p.indexOf(a) - p.indexOf(b);
-        int v2 = q.indexOf(a) - q.indexOf(b);
-        return (v1 < 0 && v2 < 0) || (v1 > 0 && v2 > 0);
+    private static TreePath getTreePath(XMLTreeNode node) {
+        XMLTreeNode parent = node.parent();
+        return (parent == null) ? new TreePath(node) : 
+                getTreePath(parent).pathByAddingChild(node);
     }
     
     //------------------------------------------------------------//
     
     /**
-     * This code does not execute in the GUI thread!!!
+     * A DOM mutation waiting to be applied to the model.
      */
-    @Override
-    public void handleEvent(Event evt) {
-        final MutationEvent mev = (MutationEvent) evt;
-        final Element target = (Element) mev.getTarget();
+    private static class Mutation {
+        final String type;
+        final Element target;
+        final Node related;
+        final String attrName;
+        final String newValue;
+        final String prevValue;
         
+        Mutation(MutationEvent mev) {
+            type = mev.getType();
+            target = (Element) mev.getTarget();
+            related = mev.getRelatedNode();
+            if (type.equals("DOMAttrModified")) {
+                attrName = mev.getAttrName();
+                newValue = mev.getNewValue();
+                prevValue = mev.getPrevValue(); // can be null
+            } else {
+                attrName = NAME;
+                newValue = type.equals("DOMNodeInserted") ? target.getAttribute(NAME) : "";
+                prevValue = type.equals("DOMNodeRemoved") ? target.getAttribute(NAME) : "";
+            }
+        }
+    }
+    
+    private final List<Mutation> pending = new ArrayList<>();
+    private boolean flushScheduled;
+    private boolean flushing;
+    private int updateLevel;
+    private int lastBatchSize;
+    private long foldedEvents;
+    
+    /**
+     * Starts an edit transaction. DOM events are collected until the
+     * matching endUpdate() and then applied to the model as one batch.
+     * Transactions can be nested.
+     */
+    public void beginUpdate() {
+        synchronized (pending) {
+            updateLevel++;
+        }
+    }
+    
+    /**
+     * Ends an edit transaction started with beginUpdate().
+     */
+    public void endUpdate() {
+        synchronized (pending) {
+            if (updateLevel > 0) {
+                updateLevel--;
+            }
+            scheduleFlush();
+        }
+    }
+    
+    /**
+     * Gets the number of DOM events applied in the last batch.
+     * @return
+     */
+    public int getLastBatchSize() {
+        return lastBatchSize;
+    }
+    
+    /**
+     * Gets the total number of DOM events that have been folded into
+     * some other event's batch (i.e. did not cause a model update of
+     * their own).
+     * @return
+     */
+    public long getFoldedEventCount() {
+        return foldedEvents;
+    }
+    
+    /**
+     * Must be called while holding the pending lock.
+     */
+    private void scheduleFlush() {
+        if (flushScheduled || updateLevel > 0 || pending.isEmpty()) {
+            return;
+        }
+        flushScheduled = true;
         SwingUtilities.invokeLater(new Runnable() {
             @Override
             public void run() {
-                String type = mev.getType();
-                if (type.equals("DOMNodeRemoved")) {
-                    //System.out.println("REMOVING: " + target.getAttribute(NAME));
-                    changeAttribute(target, NAME, "", target.getAttribute(NAME));
-                } else if (type.equals("DOMNodeInserted")) {
-                    //System.out.println("INSERTING: " + target.getAttribute(NAME));
-                    changeAttribute(target, NAME, target.getAttribute(NAME), "");
-                }
-                if (type.equals("DOMAttrModified")) {
-                    String name = mev.getAttrName();
-                    String newValue = mev.getNewValue();
-                    String oldValue = mev.getPrevValue(); // can be null
-                    changeAttribute(target, name, newValue, oldValue);
-                    if (!name.equals(NAME)) {
-                        return;
-                    }
-                }
-                
-                fixModel();
+                flush();
             }
         });
     }
     
     /**
-     * Walks through the tree and changes the attributes of every instance of
-     * the element.
+     * This code does not execute in the GUI thread!!! The event is only
+     * recorded, all events of one EDT turn (or one transaction) are
+     * applied together in flush().
      */
-    private void changeAttribute(Element elem, String name, String newValue, String oldValue) {
-        changeAttribute(elem, name, newValue, oldValue, new TreePath(root));
+    @Override
+    public void handleEvent(Event evt) {
+        if (!(evt.getTarget() instanceof Element)) {
+            return;
+        }
+        // parsed attributes must not be used after this point, the model
+        // itself is updated later
+        Element target = (Element) evt.getTarget();
+        if (evt.getType().equals("DOMAttrModified")) {
+            AttributeSnapshot.invalidate(target);
+        } else if (evt.getType().equals("DOMNodeInserted")) {
+            // attributes may have been changed while the elements were
+            // not in the document
+            AttributeSnapshot.invalidateAll(target);
+        }
+        Mutation m = new Mutation((MutationEvent) evt);
+        synchronized (pending) {
+            pending.add(m);
+            scheduleFlush();
+        }
     }
-    private void changeAttribute(Element elem, String name, String newValue, String oldValue, TreePath path) {
-        XMLTreeNode node = (XMLTreeNode) path.getLastPathComponent();
-        
-        // update model lazily
-        // XMLTreeNodeList c = childMap.get(node);
-        XMLTreeNodeList c = this.getXMLTreeNodeList(node);
-        if (c == null) {
+    
+    /**
+     * Applies all pending mutations to the model, reconciles the
+     * affected child lists once and fires the resulting events.
+     */
+    private void flush() {
+        List<Mutation> batch;
+        synchronized (pending) {
+            flushScheduled = false;
+            if (updateLevel > 0) {
+                return;
+            }
+            batch = new ArrayList<>(pending);
+            pending.clear();
+        }
+        if (batch.isEmpty()) {
             return;
         }
-        for (int i = c.size() - 1; i >= 0; i--) {
-            XMLTreeNode nd = c.get(i);
-            Element actual = nd.actual();
-            Element link = nd.link();
-            // it makes no difference whether the node is link or actual object
-            if (link == elem || actual == elem) {
-                // XMLTreeNodes are immutable, so to change links we have
-                // to remove the node and create a new one (it is done
-                // automatically in fixModel())
-                if (name.equals(NAME)) {
-                    c.remove(nd);
-                    fireTreeNodesRemoved(path, new int[] {i}, new Object[] {nd});
-                } else {
-                    // this node has somehow changed (i.e. name)
-                    fireTreeNodesChanged(path, new int[] {i}, new Object[] {nd});
+        lastBatchSize = batch.size();
+        foldedEvents += batch.size() - 1;
+        
+        boolean structural = false;
+        Set<Node> parents = new HashSet<>();
+        for (Mutation m : batch) {
+            if (!m.type.equals("DOMAttrModified")) {
+                parents.add(m.related);
+                markDirty(m.related, m.target);
+                structural = true;
+            } else if (m.attrName.equals(NAME)) {
+                structural = true;
+            }
+        }
+        flushing = true;
+        try {
+            changeAttributes(batch);
+            markDirty(parents);
+            if (structural) {
+                fixModel();
+            }
+        }
+        finally {
+            flushing = false;
+        }
+        evict();
+    }
+    
+    /**
+     * Fires changed events for (or removes) every cached instance of the
+     * elements in the batch. The instances are found from the instance
+     * index, the tree is not traversed.
+     */
+    private void changeAttributes(List<Mutation> batch) {
+        // element -> whether its name (or place in the document) changed
+        Map<Element, Boolean> targets = new HashMap<>();
+        // links with these names must be resolved again
+        Set<String> names = new HashSet<>();
+        // broken links with these names may work now
+        Set<String> newNames = new HashSet<>();
+        for (Mutation m : batch) {
+            boolean isName = m.attrName.equals(NAME);
+            targets.put(m.target, isName || Boolean.TRUE.equals(targets.get(m.target)));
+            if (isName) {
+                if (m.newValue != null && !m.newValue.isEmpty()) {
+                    names.add(m.newValue);
+                    newNames.add(m.newValue);
+                }
+                if (m.prevValue != null && !m.prevValue.isEmpty()) {
+                    names.add(m.prevValue);
                 }
             }
-            // name attribute needs special attention
-            else if (name.equals(NAME)) {
-                // a working link that needs an update
-                if (link != null) {
-                    // someone has removed name attribute
-                    if (newValue == null) {
-                        // nothing to do here
-                    }
-                    // this link (possibly) now points to this object (whose name has changed)
-                    else if (!newValue.isEmpty() && link.getAttribute(NAME).equals(newValue)) {
-                        c.remove(nd);
-                        fireTreeNodesRemoved(path, new int[] {i}, new Object[] {nd});
+        }
+        changeAttributes(targets, names, newNames);
+    }
+    private void changeAttributes(Map<Element, Boolean> targets, Set<String> names,
+            Set<String> newNames) {
+        // node -> the cached child list that contains it
+        Map<XMLTreeNode, XMLTreeNodeList> removed = new IdentityHashMap<>();
+        Map<XMLTreeNode, XMLTreeNodeList> changed = new IdentityHashMap<>();
+        
+        // it makes no difference whether the node is link or actual object
+        for (Map.Entry<Element, Boolean> e : targets.entrySet()) {
+            // XMLTreeNodes are immutable, so to change links we have
+            // to remove the node and create a new one (it is done
+            // automatically in fixModel())
+            (e.getValue() ? removed : changed).putAll(getInstances(e.getKey()));
+        }
+        
+        // name attribute needs special attention
+        for (String name : names) {
+            for (Element ref : references.getReferences(name)) {
+                for (Map.Entry<XMLTreeNode, XMLTreeNodeList> e : getInstances(ref).entrySet()) {
+                    // a working link that (possibly) now points to an object
+                    // whose name has changed or no longer points to it
+                    if (e.getKey().link() == ref) {
+                        removed.put(e.getKey(), e.getValue());
                     }
-                    // this link now (possibly) no longer points to this object (whose name has changed)
-                    else if (oldValue != null && !oldValue.isEmpty() && link.getAttribute(NAME).equals(oldValue)) {
-                        c.remove(nd);
-                        fireTreeNodesRemoved(path, new int[] {i}, new Object[] {nd});
+                    // a broken link that needs fixing
+                    else if (newNames.contains(name)) {
+                        removed.put(e.getKey(), e.getValue());
                     }
                 }
-                // a broken link that needs fixing
-                else if (actual != null && nd.isType(INCLUDE_OBJECT) &&
-                        !newValue.isEmpty() && actual.getAttribute(NAME).equals(newValue)) {
-                    c.remove(nd);
-                    fireTreeNodesRemoved(path, new int[] {i}, new Object[] {nd});
-                }
             }
         }
-        for (XMLTreeNode n : c) {
-            changeAttribute(elem, name, newValue, oldValue, path.pathByAddingChild(n));
+        
+        for (Map.Entry<XMLTreeNode, XMLTreeNodeList> e : removed.entrySet()) {
+            XMLTreeNode nd = e.getKey();
+            XMLTreeNodeList c = e.getValue();
+            // the node may have been removed with its parent already
+            int i = c.isDetached() ? -1 : indexOf(c, nd);
+            if (i >= 0) {
+                removeChild(nd.parent(), c, i, getTreePath(nd.parent()));
+            }
+        }
+        for (Map.Entry<XMLTreeNode, XMLTreeNodeList> e : changed.entrySet()) {
+            XMLTreeNode nd = e.getKey();
+            XMLTreeNodeList c = e.getValue();
+            if (removed.containsKey(nd) || c.isDetached()) {
+                continue;
+            }
+            int i = indexOf(c, nd);
+            if (i >= 0) {
+                // the role of the child may have changed
+                c.invalidateRoleSlots();
+                // this node has somehow changed (i.e. name)
+                fireTreeNodesChanged(getTreePath(nd.parent()), new int[] {i}, new Object[] {nd});
+            }
         }
     }
     
+    /**
+     * Finds the index of the node instance in the list.
+     * @param c
+     * @param node
+     * @return the index or -1 if the instance is not in the list
+     */
+    private static int indexOf(XMLTreeNodeList c, XMLTreeNode node) {
+        for (int i = 0, n = c.size(); i < n; i++) {
+            if (c.get(i) == node) {
+                return i;
+            }
+        }
+        return -1;
+    }
+    
+    /**
+     * Removes the child at index i from the cached list c of the node and
+     * marks the node dirty so that fixModel() creates a new child.
+     */
+    private void removeChild(XMLTreeNode node, XMLTreeNodeList c, int i, TreePath path) {
+        XMLTreeNode nd = c.remove(i);
+        cachedNodes--;
+        purge(nd);
+        dirty.add(node);
+        fireTreeNodesRemoved(path, new int[] {i}, new Object[] {nd});
+    }
+    
     /*
     public void handleEvent(Event evt) {
         try {
@@ -33,6 +33,7 @@ import java.awt.geom.Rectangle2D;
 import java.awt.image.BufferedImage;
 import java.io.File;
 import java.io.IOException;
+import java.lang.ref.WeakReference;
 import java.text.DecimalFormat;
 import javax.imageio.ImageIO;
 import color.ColorPalette;
@@ -41,7 +42,11 @@ import font.BitmapFont;
 import java.awt.BasicStroke;
 import java.awt.Color;
 import java.awt.Dimension;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.StringTokenizer;
+import java.util.List;
+import java.util.Map;
 import org.w3c.dom.Element;
 import pooledit.FileTools;
 import pooledit.PictureConverter;
@@ -51,6 +56,10 @@ import pooledit.PictureConverter;
  * textual presentation. NOTE: the textual presentation can also be
  * changed in the renderer; however, creating wrapper objects is a 
  * good idea (because we are showing a graph as a tree)
+ * <p>
+ * Nodes are interned: a parent node creates at most one live node per
+ * child element (or category type), so two nodes are equal only if they
+ * are the same instance.
  *
  * @author mohman
  */
@@ -63,6 +72,13 @@ public class XMLTreeNode {
     private final Element actual;
     private final Element link; // this is the link node, if any
     private final String type; // for category nodes for which node == null and link == null
+    private XMLTreeNodeList children; // cached child list of this node, for role slots
+    private AttributeSnapshot actualAttributes; // parsed attributes of actual
+    private AttributeSnapshot linkAttributes; // parsed attributes of link
+    private final int hash;
+    /** child element or type -> the live child node created for it */
+    private Map<Object, WeakReference<XMLTreeNode>> interned;
+    private int internedLimit = 16; // size at which cleared entries are swept
     
     private XMLTreeNode(XMLTreeModel model, XMLTreeNode parent, TreePath path,
             Element actual, Element link, String type) {
@@ -72,6 +88,8 @@ public class XMLTreeNode {
         this.actual = actual;
         this.link = link;
         this.type = type;
+        Object key = path.getLastPathComponent();
+        this.hash = (parent == null ? 0 : 31 * parent.hash) + key.hashCode();
     }
     
     /**
@@ -85,6 +103,18 @@ public class XMLTreeNode {
     }
        
     protected XMLTreeNode createChildNode(Element node) {
+        return createChildNode(node, null);
+    }
+    
+    /**
+     * Creates the child node of the element, or returns the live node if
+     * there is one. The hint is a node from the cached child list of this
+     * node, it is returned without a look up if it is still valid.
+     * @param node
+     * @param hint
+     * @return
+     */
+    XMLTreeNode createChildNode(Element node, XMLTreeNode hint) {
         Element act = findActualElement(node);
         Element lnk = null;
         // node was not an actual node? -> it must have been a link node
@@ -94,15 +124,66 @@ public class XMLTreeNode {
         else if (act != node) {
             lnk = node;
         }
-        return new XMLTreeNode(this.getModel(), this,
-                this.getPath().pathByAddingChild(lnk != null ? lnk : act),
-                act, lnk, null);
+        if (hint != null && hint.actual == act && hint.link == lnk) {
+            return hint;
+        }
+        Object key = (lnk != null) ? lnk : act;
+        XMLTreeNode child = getInterned(key);
+        // a link may now resolve to another object, the old node keeps
+        // the old actual element and is replaced
+        if (child == null || child.actual != act || child.link != lnk) {
+            child = new XMLTreeNode(this.getModel(), this,
+                    this.getPath().pathByAddingChild(key),
+                    act, lnk, null);
+            intern(key, child);
+        }
+        return child;
     }
     
     protected XMLTreeNode createTypeNode(String type) {
-        return new XMLTreeNode(this.getModel(), this,
-                this.getPath().pathByAddingChild(type),
-                null, null, type);
+        XMLTreeNode child = getInterned(type);
+        if (child == null) {
+            child = new XMLTreeNode(this.getModel(), this,
+                    this.getPath().pathByAddingChild(type),
+                    null, null, type);
+            intern(type, child);
+        }
+        return child;
+    }
+    
+    /**
+     * Gets the live child node created for the key, or null.
+     * @param key
+     * @return
+     */
+    private XMLTreeNode getInterned(Object key) {
+        if (interned == null) {
+            return null;
+        }
+        WeakReference<XMLTreeNode> ref = interned.get(key);
+        return ref == null ? null : ref.get();
+    }
+    
+    /**
+     * Makes the node the live child node of the key. The child nodes are
+     * referenced weakly, a node that is no longer in any child list (or
+     * used by a view) can be collected.
+     * @param key
+     * @param child
+     */
+    private void intern(Object key, XMLTreeNode child) {
+        if (interned == null) {
+            interned = new HashMap<>();
+        }
+        interned.put(key, new WeakReference<>(child));
+        if (interned.size() > internedLimit) {
+            for (Iterator<WeakReference<XMLTreeNode>> it = interned.values().iterator(); it.hasNext(); ) {
+                if (it.next().get() == null) {
+                    it.remove();
+                }
+            }
+            internedLimit = Math.max(16, 2 * interned.size());
+        }
     }
         
     private Element findActualElement(Element node) {
@@ -118,9 +199,17 @@ public class XMLTreeNode {
         return model;
     }
     
+    /**
+     * Gets the parent node, null for the root node.
+     * @return
+     */
+    public XMLTreeNode parent() {
+        return parent;
+    }
+
     public Element actual() {
         return actual;
-    }  
+    }
     
     public Element link() {
         return link;       
@@ -134,6 +223,45 @@ public class XMLTreeNode {
         return (link == null) ? true : actual == model.getNameMap().get(link.getAttribute(NAME));
     }
     
+    /**
+     * Gets the role-slot table of this node. The child list is looked up
+     * from the model only when it is not known yet or the model has thrown
+     * it away.
+     * @return
+     */
+    RoleSlots getRoleSlots() {
+        if (children == null || children.isDetached()) {
+            children = model.getXMLTreeNodeList(this);
+        }
+        return children.getRoleSlots();
+    }
+    
+    /**
+     * Gets the parsed attributes of the actual element.
+     * @return
+     */
+    private AttributeSnapshot attributes() {
+        if (actualAttributes == null || actualAttributes.isStale()) {
+            actualAttributes = AttributeSnapshot.getInstance(actual);
+        }
+        return actualAttributes;
+    }
+    
+    /**
+     * Gets the parsed attributes of the link element, or of the actual
+     * element if this node is not a link.
+     * @return
+     */
+    private AttributeSnapshot effectiveAttributes() {
+        if (link == null) {
+            return attributes();
+        }
+        if (linkAttributes == null || linkAttributes.isStale()) {
+            linkAttributes = AttributeSnapshot.getInstance(link);
+        }
+        return linkAttributes;
+    }
+    
     public TreePath getPath() {
         return path;
     }
@@ -147,18 +275,23 @@ public class XMLTreeNode {
         return type;
     }
     
+    /**
+     * Nodes are interned, so equal nodes are the same instance.
+     * @param o
+     * @return
+     */
     @Override
     public boolean equals(Object o) {
-        if (!(o instanceof XMLTreeNode)) {
-            return false;
-        }
-        XMLTreeNode other = (XMLTreeNode) o;
-        return this.path.equals(other.path);
+        return this == o;
     }
     
+    /**
+     * The hash is computed from the path when the node is created.
+     * @return
+     */
     @Override
     public int hashCode() {
-        return path.hashCode();
+        return hash;
     }
     /**
      * Kludge
@@ -218,22 +351,21 @@ public class XMLTreeNode {
      * @return 
      */
     public Integer getX() {
-        Element src = (link == null) ? actual : link;
-        String pos_x = src.getAttribute(POS_X);
-        if (pos_x.isEmpty()) {
+        AttributeSnapshot src = effectiveAttributes();
+        if (!src.has(AttributeSnapshot.I_POS_X)) {
             return null;
         }
-        int x = parseInt(pos_x);
+        int x = src.get(AttributeSnapshot.I_POS_X);
         
-        String block_col = src.getAttribute(BLOCK_COL);
-        String block_font = src.getAttribute(BLOCK_FONT);
+        String block_font = src.getBlockFont();
         
-        if (!block_col.isEmpty() && !block_font.isEmpty()) {
+        if (src.has(AttributeSnapshot.I_BLOCK_COL) && !block_font.isEmpty()) {
             
+            // the font is resolved at call time, it may have been changed
             Element font = model.getElementByName(block_font);            
             if (font != null) {
                 Dimension dim = BitmapFont.nameToDimension(font.getAttribute(FONT_SIZE));
-                x += parseInt(block_col) * dim.width;
+                x += src.get(AttributeSnapshot.I_BLOCK_COL) * dim.width;
             }
         }
         return x;
@@ -244,22 +376,21 @@ public class XMLTreeNode {
      * @return 
      */
     public Integer getY() {
-        Element src = (link == null) ? actual : link;
-        String pos_y = src.getAttribute(POS_Y);
-        if (pos_y.isEmpty()) {
+        AttributeSnapshot src = effectiveAttributes();
+        if (!src.has(AttributeSnapshot.I_POS_Y)) {
             return null;
         }
-        int y = parseInt(pos_y);
+        int y = src.get(AttributeSnapshot.I_POS_Y);
         
-        String block_row = src.getAttribute(BLOCK_ROW);
-        String block_font = src.getAttribute(BLOCK_FONT);
+        String block_font = src.getBlockFont();
         
-        if (!block_row.isEmpty() && !block_font.isEmpty()) {
+        if (src.has(AttributeSnapshot.I_BLOCK_ROW) && !block_font.isEmpty()) {
             
+            // the font is resolved at call time, it may have been changed
             Element font = model.getElementByName(block_font);
             if (font != null) {
                 Dimension dim = BitmapFont.nameToDimension(font.getAttribute(FONT_SIZE));
-                y += parseInt(block_row) * dim.height;
+                y += src.get(AttributeSnapshot.I_BLOCK_ROW) * dim.height;
             }
         }
         return y;
@@ -290,16 +421,14 @@ public class XMLTreeNode {
      * @return 
      */
     public Integer getNumberOfDecimals(){
-        String d = actual.getAttribute(NUMBER_OF_DECIMALS);
-        return d.isEmpty() ? 0 : parseInt(d);
+        return attributes().getInt(AttributeSnapshot.I_NUMBER_OF_DECIMALS, 0);
     }
     /**
      * This method returns the value of the "width" attribute.
      * @return 
      */
     public Integer getWidth() {
-        String w = actual.getAttribute(WIDTH);
-        return w.isEmpty() ? null : parseInt(w);
+        return attributes().getInteger(AttributeSnapshot.I_WIDTH);
     }
     /**
      * This method changes the value of the "width" attribute.
@@ -313,8 +442,7 @@ public class XMLTreeNode {
      * @return 
      */
     public Integer getHeight() {
-        String h = actual.getAttribute(HEIGHT);
-        return h.isEmpty() ? null : parseInt(h);
+        return attributes().getInteger(AttributeSnapshot.I_HEIGHT);
     }
      /**
      * This method changes the value of the "height" attribute.
@@ -328,8 +456,7 @@ public class XMLTreeNode {
      * @return 
      */
     public Integer getStartAngle() {
-        String w = actual.getAttribute(START_ANGLE);
-        return w.isEmpty() ? null : parseInt(w);
+        return attributes().getInteger(AttributeSnapshot.I_START_ANGLE);
     }
     /**
      * This method changes the value of the "start_angle" attribute.
@@ -343,8 +470,7 @@ public class XMLTreeNode {
      * @return 
      */
     public Integer getEndAngle() {
-        String h = actual.getAttribute(END_ANGLE);
-        return h.isEmpty() ? null : parseInt(h);
+        return attributes().getInteger(AttributeSnapshot.I_END_ANGLE);
     }
     /**
      * This method changes the value of the "end_angle" attribute.
@@ -404,8 +530,7 @@ public class XMLTreeNode {
      * @return 
      */
     public Integer getDimension() {
-        String d = actual.getAttribute(DIMENSION);
-        return d.isEmpty() ? null : parseInt(d);
+        return attributes().getInteger(AttributeSnapshot.I_DIMENSION);
     }
     /**
      * This method returns the value of the "sk_width" attribute of the 
@@ -413,8 +538,7 @@ public class XMLTreeNode {
      * @return 
      */
     public Integer getSKWidth() {
-        String s = actual.getAttribute(SK_WIDTH);
-        return s.isEmpty() ? null : parseInt(s);
+        return attributes().getInteger(AttributeSnapshot.I_SK_WIDTH);
     }
     /**
      * This method returns the value of the "sk_height" attribute of the 
@@ -422,8 +546,7 @@ public class XMLTreeNode {
      * @return 
      */
     public Integer getSKHeight() {
-        String s = actual.getAttribute(SK_HEIGHT);
-        return s.isEmpty() ? null : parseInt(s);
+        return attributes().getInteger(AttributeSnapshot.I_SK_HEIGHT);
     }
     /**
      * This method returns the value of the "fix_bitmap_path" attribute of the 
@@ -759,15 +882,15 @@ public class XMLTreeNode {
     
     //Outputmeter and linear bar graph methods
     public boolean isOptionsArc() {
-        return actual.getAttribute(OPTIONS).contains("arc");
+        return attributes().isOption(AttributeSnapshot.O_ARC);
     }
     
     public boolean isOptionsBorder() {
-        return actual.getAttribute(OPTIONS).contains("border");
+        return attributes().isOption(AttributeSnapshot.O_BORDER);
     }
     
     public boolean isOptionsTicks() {
-        return actual.getAttribute(OPTIONS).contains("ticks");
+        return attributes().isOption(AttributeSnapshot.O_TICKS);
     }
     /**
      * Returns whether of not no fill option is specified for Linear and 
@@ -775,15 +898,15 @@ public class XMLTreeNode {
      * @return 
      */
     public boolean isOptionsNoFill() {
-        return actual.getAttribute(OPTIONS).contains("nofill");
+        return attributes().isOption(AttributeSnapshot.O_NOFILL);
     }
     
     public boolean isOptionsTargetLine() {
-        return actual.getAttribute(OPTIONS).contains("targetline");
+        return attributes().isOption(AttributeSnapshot.O_TARGETLINE);
     }
     
     public boolean isOptionsHorizontal() {
-        return actual.getAttribute(OPTIONS).contains("horizontal");
+        return attributes().isOption(AttributeSnapshot.O_HORIZONTAL);
     }
     
     public void changeOptionsHorizontal(boolean horizontal) {
@@ -802,7 +925,7 @@ public class XMLTreeNode {
     }
     
     public boolean isOptionsGrowPositive() {
-        return actual.getAttribute(OPTIONS).contains("growpositive");
+        return attributes().isOption(AttributeSnapshot.O_GROWPOSITIVE);
     }
     
     public void changeOptionsGrowPositive(boolean growPositive) {
@@ -821,7 +944,7 @@ public class XMLTreeNode {
     }
     
     public boolean isOptionsClockwise() {
-        return actual.getAttribute(OPTIONS).contains("clockwise");
+        return attributes().isOption(AttributeSnapshot.O_CLOCKWISE);
     }
     
     public void changeOptionsClockwise(boolean clockwise) {
@@ -840,11 +963,11 @@ public class XMLTreeNode {
     }
     
     public boolean isOptionsTransparent(){
-        return actual.getAttribute(OPTIONS).contains("transparent");
+        return attributes().isOption(AttributeSnapshot.O_TRANSPARENT);
     }
     
     public boolean isOptionsFlashing() {
-        return actual.getAttribute(OPTIONS).contains("flashing");
+        return attributes().isOption(AttributeSnapshot.O_FLASHING);
     }
     
     public boolean isFontStyleFlashingHidden() {
@@ -871,7 +994,7 @@ public class XMLTreeNode {
      * @return 
      */
     public boolean isOptionsAutoWrap() {
-        return actual.getAttribute(OPTIONS).contains("autowrap");
+        return attributes().isOption(AttributeSnapshot.O_AUTOWRAP);
     }
     
      /**
@@ -888,7 +1011,7 @@ public class XMLTreeNode {
      * @return 
      */
     public boolean isOptionsDisplayLeadingZeros() {
-        return actual.getAttribute(OPTIONS).contains("leadingzeros");
+        return attributes().isOption(AttributeSnapshot.O_LEADINGZEROS);
     }
     
     /**
@@ -896,7 +1019,7 @@ public class XMLTreeNode {
      * @return 
      */
     public boolean isOptionsBlankZero() {
-        return actual.getAttribute(OPTIONS).contains("blankzero");
+        return attributes().isOption(AttributeSnapshot.O_BLANKZERO);
     }
     
     /**
@@ -940,48 +1063,42 @@ public class XMLTreeNode {
      * @return 
      */
     public Integer getMinValue() {
-        String w = actual.getAttribute(MIN_VALUE);
-        return w.isEmpty() ? null : parseInt(w);
+        return attributes().getInteger(AttributeSnapshot.I_MIN_VALUE);
     }
     /**
      * This method returns the value of the "max_value" attribute.
      * @return 
      */
     public Integer getMaxValue() {
-        String w = actual.getAttribute(MAX_VALUE);
-        return w.isEmpty() ? null : parseInt(w);
+        return attributes().getInteger(AttributeSnapshot.I_MAX_VALUE);
     }
     /**
      * This method returns the value of the "number_of_ticks" attribute.
      * @return 
      */
     public Integer getTicks() {
-        String w = actual.getAttribute(NUMBER_OF_TICKS);
-        return w.isEmpty() ? null : parseInt(w);
+        return attributes().getInteger(AttributeSnapshot.I_NUMBER_OF_TICKS);
     }
     /**
      * This method returns the value of the "bar_graph_width" attribute.
      * @return 
      */
     public int getBargraphWidth() {
-        String w = actual.getAttribute(BAR_GRAPH_WIDTH);
-        return w.isEmpty() ? 0 : parseInt(w);
+        return attributes().getInt(AttributeSnapshot.I_BAR_GRAPH_WIDTH, 0);
     }
     /**
      * This method returns the value of the "scale" attribute.
      * @return 
      */
     public double getScale() {
-        String w = actual.getAttribute(SCALE);
-        return w.isEmpty() ? 1.0 : Double.parseDouble(w);
+        return attributes().getScale();
     }
     /**
      * This method returns the value of the "offset" attribute.
      * @return 
      */
     public int getOffset(){
-        String w = actual.getAttribute(OFFSET);
-        return w.isEmpty() ? 0 : parseInt(w);
+        return attributes().getInt(AttributeSnapshot.I_OFFSET, 0);
     }
     /**
      * This method returns the value of the "value" attribute.
@@ -996,8 +1113,7 @@ public class XMLTreeNode {
      * @return 
      */
     public Integer getValueInt() {
-        String v = actual.getAttribute(VALUE);
-        return v.isEmpty() ? null : parseInt(v);
+        return attributes().getInteger(AttributeSnapshot.I_VALUE);
     }
     
     /**
@@ -1005,8 +1121,7 @@ public class XMLTreeNode {
      * @return 
      */
     public Integer getTargetValueInt() {
-        String v = actual.getAttribute(TARGET_VALUE);
-        return v.isEmpty() ? null : parseInt(v);
+        return attributes().getInteger(AttributeSnapshot.I_TARGET_VALUE);
     }
     /**
      * This method returns the value of the "code" attribute.
@@ -1051,15 +1166,13 @@ public class XMLTreeNode {
                 return lineColor;
             case "pattern":
                 BufferedImage image = null;
-                for (int j = 0, m = model.getChildCount( this ); j < m; j++) {
-                    XMLTreeNode nd2 = (XMLTreeNode) model.getChild(this, j);
-                    if (nd2.isType(PICTUREGRAPHIC)){
-                        image = nd2.getImageFile();
-                        Color transparencyColor = nd2.getTransparencyColor(reduceImages, colorDepth);
-                        image = PictureConverter.applyTransparencyAndReduceColors(image,
-                                transparencyColor, nd2.isOptionsTransparent(),
-                                reduceImages, colorDepth);
-                    }
+                XMLTreeNode nd2 = getRoleSlots().pictureGraphic;
+                if (nd2 != null) {
+                    image = nd2.getImageFile();
+                    Color transparencyColor = nd2.getTransparencyColor(reduceImages, colorDepth);
+                    image = PictureConverter.applyTransparencyAndReduceColors(image,
+                            transparencyColor, nd2.isOptionsTransparent(),
+                            reduceImages, colorDepth);
                 }
                 return image == null ? errPaint :
                         new TexturePaint(image, new Rectangle2D.Double(0, 0, image.getWidth(), image.getHeight()));
@@ -1074,36 +1187,25 @@ public class XMLTreeNode {
      * @return 
      */
     public Integer getNumberVariableValue(String role) {
-        for (int i = 0, n = model.getChildCount(this); i < n; i++) {
-	    XMLTreeNode nd = (XMLTreeNode) model.getChild(this, i);
-            if (nd.isType(NUMBERVARIABLE) && nd.getRole().equals(role)) {
-                return parseInt(nd.getValue());
-            }
+        XMLTreeNode nd = getRoleSlots().getNumberVariable(role);
+        if (nd == null) {
+            return null;
         }
-        return null;
+        AttributeSnapshot a = nd.attributes();
+        return a.has(AttributeSnapshot.I_VALUE) ? a.get(AttributeSnapshot.I_VALUE) :
+                parseInt(nd.getValue());
     }
     /**
      * Gets the value of the "value" attribute from the string variable child
      * @return 
      */
     public String getStringVariableValue() {
-        for (int i = 0, n = model.getChildCount(this); i < n; i++) {
-	    XMLTreeNode nd = (XMLTreeNode) model.getChild(this, i);
-            if (nd.isType(STRINGVARIABLE)) {                
-                return nd.getValue();
-            }
-        }
-        return null;
+        XMLTreeNode nd = getRoleSlots().stringVariable;
+        return nd != null ? nd.getValue() : null;
     }
     
     public XMLTreeNode getFontAttributes() {
-        for (int i = 0, n = model.getChildCount(this); i < n; i++) {
-	    XMLTreeNode nd = (XMLTreeNode) model.getChild(this, i); 
-            if (nd.isType(FONTATTRIBUTES)) {
-                return nd;
-            }	    	        
-	}
-        return null;
+        return getRoleSlots().fontAttributes;
     }
         
     /**
@@ -1148,13 +1250,8 @@ public class XMLTreeNode {
      * @return 
      */
     public LineAttributes getLineAttributes(int colorDepth) {
-        for (int i = 0, n = model.getChildCount(this); i < n; i++) {
-	    XMLTreeNode nd = (XMLTreeNode) model.getChild(this, i); 
-	    if (nd.isType(LINEATTRIBUTES)) {
-		return new LineAttributes(nd.getLineColor(colorDepth), nd.getLineStroke());
-	    }	   
-        }
-        return null;
+        XMLTreeNode nd = getRoleSlots().lineAttributes;
+        return nd != null ? new LineAttributes(nd.getLineColor(colorDepth), nd.getLineStroke()) : null;
     }
     /**
      * Gets the fill attributes from the fill attributes child
@@ -1168,13 +1265,8 @@ public class XMLTreeNode {
      */
     public Paint getFillAttributesPaint(Color lineColor, String imagepath,
             Paint errPaint, boolean reduceImages, int colorDepth) throws IOException {
-        for (int i = 0, n = model.getChildCount(this); i < n; i++) {
-	    XMLTreeNode nd = (XMLTreeNode) model.getChild(this, i);
-	    if (nd.isType(FILLATTRIBUTES)) {
-                return nd.getFillPaint(lineColor, imagepath, errPaint, reduceImages, colorDepth);
-	    }
-        }
-        return null;
+        XMLTreeNode nd = getRoleSlots().fillAttributes;
+        return nd != null ? nd.getFillPaint(lineColor, imagepath, errPaint, reduceImages, colorDepth) : null;
     }
     /**
      * Gets the polygon formed from the point children
@@ -1182,11 +1274,8 @@ public class XMLTreeNode {
      */
     public Polygon getPolygon() {
         Polygon p = new Polygon();
-        for (int i = 0, n = model.getChildCount(this); i < n; i++) {
-	    XMLTreeNode nd = (XMLTreeNode) model.getChild(this, i); 
-            if (nd.isType(POINT)) {
-		p.addPoint(nd.getX(), nd.getY());
-            }
+        for (XMLTreeNode nd : getRoleSlots().points) {
+            p.addPoint(nd.getX(), nd.getY());
         }
         return p;
     }
@@ -1195,23 +1284,12 @@ public class XMLTreeNode {
      * @return 
      */
     public int[] getPolygonPoints() {
-        // calculate the number of points
-        int pointsN = 0;
-        for (int i = 0, n = model.getChildCount(this); i < n; i++) {
-	    XMLTreeNode nd = (XMLTreeNode) model.getChild(this, i); 
-            if (nd.isType(POINT)) {
-		pointsN++;
-            }
-        }
-        int[] points = new int[2*pointsN];
-        int index = 0;
-        for (int i = 0, n = model.getChildCount(this); i < n; i++) {
-	    XMLTreeNode nd = (XMLTreeNode) model.getChild(this, i); 
-            if (nd.isType(POINT)) {
-                points[2 * index] = nd.getX();                
-                points[2 * index + 1] = nd.getY();
-                index++;
-            }
+        List<XMLTreeNode> pts = getRoleSlots().points;
+        int[] points = new int[2 * pts.size()];
+        for (int i = 0, n = pts.size(); i < n; i++) {
+            XMLTreeNode nd = pts.get(i);
+            points[2 * i] = nd.getX();
+            points[2 * i + 1] = nd.getY();
         }
         return points;
     }
@@ -1223,16 +1301,11 @@ public class XMLTreeNode {
      * @param y
      */
     public void setPolygonPoint(int index, int x, int y) {
-        int index2 = 0;
-        for (int i = 0,  n = model.getChildCount(this); i < n; i++) {
-            XMLTreeNode nd = (XMLTreeNode) model.getChild(this, i);
-            if (nd.isType(POINT)) {
-                if (index2 == index) {
-                    nd.setX(x);
-                    nd.setY(y);
-                }
-                index2++;
-            }
+        List<XMLTreeNode> pts = getRoleSlots().points;
+        if (index < pts.size()) {
+            XMLTreeNode nd = pts.get(index);
+            nd.setX(x);
+            nd.setY(y);
         }
     }
     
@@ -36,6 +36,9 @@ import pooledit.Utils;
 class XMLTreeNodeList extends ArrayList<XMLTreeNode> {
 
     private final XMLTreeNode parent;
+    private RoleSlots slots;
+    private int slotsModCount;
+    private boolean detached;
     
     /**
      * Constructor.
@@ -51,11 +54,23 @@ class XMLTreeNodeList extends ArrayList<XMLTreeNode> {
      * @param parent
      */
     protected XMLTreeNodeList(XMLTreeNode parent) {
+        this(parent, null);
+    }
+    
+    /**
+     * Constructor. The nodes of the previous child list of the parent are
+     * reused when they are still valid, this saves looking them up from
+     * the parent.
+     * @param parent
+     * @param previous the previous child list or null
+     */
+    protected XMLTreeNodeList(XMLTreeNode parent, XMLTreeNodeList previous) {
         this.parent = parent;
     
         XMLTreeModel model = parent.getModel();
         String type = parent.getType();
 	int index;
+        int cursor = 0;
         
         // parent is root -> create category nodes
 	if (Utils.indexEquals(type, OBJECTPOOL) >= 0) {
@@ -74,17 +89,10 @@ class XMLTreeNodeList extends ArrayList<XMLTreeNode> {
         // parent is a subcategory node -> create actual nodes stored in subcategories
         else if ((index = Utils.indexEquals(type, SUBCATEGORIES)) >= 0) {
             
-            // iterate over all elements
-            Element root = parent.getModel().getDocument().getDocumentElement();
-            NodeList elements = root.getChildNodes();
-            for (int i = 0, n = elements.getLength(); i < n; i++) {
-                Node node = elements.item(i);
-                if (node.getNodeType() == Node.ELEMENT_NODE &&
-                        node.getNodeName().equals(OBJECTS[index])) {
-
-                    add(parent.createChildNode((Element) node));
-                }
-            }   
+            // root level elements of the subcategory type in document order
+            for (Element element : model.getRootIndex().getElements(OBJECTS[index])) {
+                cursor = addChild(element, previous, cursor);
+            }
 	}
         // parent is a real node (actual or link)
         else {
@@ -95,9 +103,67 @@ class XMLTreeNodeList extends ArrayList<XMLTreeNode> {
             for (int i = 0, n = elements.getLength(); i < n; i++) {
                 Node node = elements.item(i);
                 if (node.getNodeType() == Node.ELEMENT_NODE) {
-                    add(parent.createChildNode((Element) node));
+                    cursor = addChild((Element) node, previous, cursor);
 		}
             }
         }
     }
+    
+    /**
+     * Adds the child node of the element. The node at the cursor of the
+     * previous list (or the one after it, if a node was removed) is
+     * passed to the parent as a hint.
+     * @return the new cursor
+     */
+    private int addChild(Element element, XMLTreeNodeList previous, int cursor) {
+        XMLTreeNode hint = null;
+        if (previous != null) {
+            for (int k = cursor, n = Math.min(cursor + 2, previous.size()); k < n; k++) {
+                if (previous.get(k).effective() == element) {
+                    hint = previous.get(k);
+                    cursor = k + 1;
+                    break;
+                }
+            }
+        }
+        add(parent.createChildNode(element, hint));
+        return cursor;
+    }
+    
+    /**
+     * Gets the role-slot table of the parent. The table is rebuilt when
+     * this list has been modified since it was built.
+     * @return
+     */
+    RoleSlots getRoleSlots() {
+        if (slots == null || slotsModCount != modCount) {
+            slots = new RoleSlots(this);
+            slotsModCount = modCount;
+        }
+        return slots;
+    }
+    
+    /**
+     * Throws away the role-slot table, e.g. when the role of a child
+     * has changed.
+     */
+    void invalidateRoleSlots() {
+        slots = null;
+    }
+    
+    /**
+     * Marks this list as no longer used by the model.
+     */
+    void detach() {
+        detached = true;
+        slots = null;
+    }
+    
+    /**
+     * Checks whether the model has thrown this list away.
+     * @return
+     */
+    boolean isDetached() {
+        return detached;
+    }
 }
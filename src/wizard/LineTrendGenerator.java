@@ -27,6 +27,7 @@ import static pooledit.Definitions.*;
 import font.BitmapFont;
 import java.awt.Dimension;
 import org.w3c.dom.Element;
+import treemodel.NameAllocator;
 import treemodel.XMLTreeNode;
 
 /**
@@ -37,18 +38,20 @@ public class LineTrendGenerator {
 
     private final LineTrendWizard wiz;
     private final XMLTreeNode root;
-    private final String name;
+    private final String basename;
+    private String name;
     
     /** 
      * Creates a new instance of TrendGenerator 
      * @param wiz
      * @param root
-     * @param name
+     * @param basename the name of the container, the first free name
+     * from it is allocated when the container is created
      */
-    public LineTrendGenerator(LineTrendWizard wiz, XMLTreeNode root, String name) {
+    public LineTrendGenerator(LineTrendWizard wiz, XMLTreeNode root, String basename) {
         this.wiz = wiz;         
         this.root = root;
-        this.name = name;
+        this.basename = basename;
         wiz.setTrendGenerator(this);        
     }
 
@@ -60,6 +63,10 @@ public class LineTrendGenerator {
      *  This method is called when the table should be updated
      */
     public void update() {
+        if (name == null) {
+            // a wizard that is cancelled before this does not take a name
+            name = NameAllocator.getInstance(root.getModel().getDocument()).allocate(basename);
+        }
         int width = wiz.getContainerWidth();
         int height = wiz.getContainerHeight();
         Element container = createContainer(root.actual(), name, width, height);                 
@@ -26,6 +26,7 @@ import static pooledit.Definitions.*;
 import static wizard.WizardTools.*;
 import font.BitmapFont;
 import org.w3c.dom.Element;
+import treemodel.NameAllocator;
 import treemodel.XMLTreeNode;
 
 /**
@@ -36,7 +37,8 @@ public class MeterGenerator {
     
     private final MeterWizard wiz;    
     private final XMLTreeNode root;
-    private final String name;
+    private final String basename;
+    private String name;
     
     //A list of elements that are created in process
     //private List<Element> elements = new ArrayList<Element>();    
@@ -46,12 +48,13 @@ public class MeterGenerator {
      * father is the father-elment where the meter should be added
      * @param meterWizard
      * @param root
-     * @param name
+     * @param basename the name of the container, the first free name
+     * from it is allocated when the container is created
      */    
-    public MeterGenerator(MeterWizard meterWizard, XMLTreeNode root, String name) {
+    public MeterGenerator(MeterWizard meterWizard, XMLTreeNode root, String basename) {
         this.wiz = meterWizard;         
         this.root = root;
-        this.name = name;
+        this.basename = basename;
         meterWizard.setMeterGenerator(this);        
     }
     
@@ -63,6 +66,10 @@ public class MeterGenerator {
      *  This method is called when the meter should be updated
      */
     public void update() {        
+        if (name == null) {
+            // a wizard that is cancelled before this does not take a name
+            name = NameAllocator.getInstance(root.getModel().getDocument()).allocate(basename);
+        }
         // create container
         Element container = createContainer(root.actual(), name, 
                 wiz.getTotalWidth(), wiz.getTotalHeight());
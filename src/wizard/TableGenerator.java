@@ -28,6 +28,7 @@ import font.BitmapFont;
 import org.w3c.dom.Element;
 import org.w3c.dom.Node;
 import org.w3c.dom.NodeList;
+import treemodel.NameAllocator;
 import treemodel.XMLTreeNode;
 
 
@@ -41,18 +42,20 @@ public class TableGenerator {
     private static final String CELLNAME = "cell";
     private final TableWizard wiz;
     private final XMLTreeNode root;
-    private final String name;
+    private final String basename;
+    private String name;
     
     /** 
      * Creates a new instance of TableGenerator 
      * @param tableWizard
      * @param root
-     * @param name
+     * @param basename the name of the container, the first free name
+     * from it is allocated when the container is created
      */
-    public TableGenerator(TableWizard tableWizard, XMLTreeNode root, String name) {
+    public TableGenerator(TableWizard tableWizard, XMLTreeNode root, String basename) {
         this.wiz = tableWizard;         
         this.root = root;
-        this.name = name;
+        this.basename = basename;
         tableWizard.setTableGenerator(this);
     }
     
@@ -64,6 +67,10 @@ public class TableGenerator {
      *  This method is called when the table should be updated
      */
     public void update() {                
+        if (name == null) {
+            // a wizard that is cancelled before this does not take a name
+            name = NameAllocator.getInstance(root.getModel().getDocument()).allocate(basename);
+        }
         // create container
         int width = wiz.getCellWidth() * wiz.getCellsHorizontal() + 1;
         width += wiz.hasHeadingColumn() ? wiz.getHeadingColumnWidth() : 0;